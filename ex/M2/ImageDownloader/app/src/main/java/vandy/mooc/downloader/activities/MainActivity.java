@@ -8,6 +8,7 @@ import android.os.Bundle;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.animation.AnimationUtils;
@@ -18,6 +19,7 @@ import android.widget.EditText;
 import java.io.File;
 
 import vandy.mooc.downloader.R;
+import vandy.mooc.downloader.utils.ImageCache;
 import vandy.mooc.downloader.utils.UiUtils;
 import vandy.mooc.downloader.utils.UriUtils;
 
@@ -258,6 +260,11 @@ public class MainActivity
         if (resultCode == Activity.RESULT_OK) {
             // Check if the request code is what we're expecting.
             if (requestCode == DOWNLOAD_IMAGE_REQUEST) {
+                // Log how effective the image cache has been so far.
+                Log.d(TAG,
+                      "image cache "
+                      + ImageCache.getInstance(this).getStats());
+
                 // Call the makeGalleryIntent() factory method to
                 // create an Intent that will launch the "Gallery" app
                 // by passing in the path to the downloaded image
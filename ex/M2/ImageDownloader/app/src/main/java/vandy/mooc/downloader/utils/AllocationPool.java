@@ -0,0 +1,201 @@
+package vandy.mooc.downloader.utils;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of reusable allocations, keyed by their size in bytes, which
+ * keeps the bookkeeping of a BitmapPool apart from the Bitmaps
+ * themselves so it can be tested without Android.  The pool holds at
+ * most a given number of bytes, dropping the least recently added
+ * allocations first.
+ */
+class AllocationPool<T> {
+    /**
+     * Tells the pool about the allocations it holds.
+     */
+    interface Allocations<T> {
+        /**
+         * @return The number of bytes of @a item.
+         */
+        int sizeOf(T item);
+
+        /**
+         * @return True if @a item can be handed out again.
+         */
+        boolean isReusable(T item);
+
+        /**
+         * Free @a item, which the pool drops.
+         */
+        void free(T item);
+    }
+
+    /**
+     * A reused allocation may be at most this many times larger than
+     * needed, so a small request doesn't tie up a large allocation.
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    /**
+     * Tells the pool about the allocations it holds.
+     */
+    private final Allocations<T> mAllocations;
+
+    /**
+     * Maximum number of bytes of allocations in the pool.
+     */
+    private final long mMaxBytes;
+
+    /**
+     * Number of bytes of allocations in the pool.
+     */
+    private long mBytes;
+
+    /**
+     * Maps allocation sizes to the pooled allocations of that size.
+     */
+    private final TreeMap<Integer, ArrayDeque<T>> mItems =
+        new TreeMap<>();
+
+    /**
+     * The pooled allocations from least to most recently added.
+     */
+    private final ArrayDeque<T> mOrder = new ArrayDeque<>();
+
+    /**
+     * Counters that measure the effectiveness of the pool.
+     */
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mBytesAllocated;
+    private long mBytesReused;
+
+    /**
+     * Constructor initializes the byte cap and the @a allocations.
+     */
+    AllocationPool(long maxBytes,
+                   Allocations<T> allocations) {
+        mMaxBytes = maxBytes;
+        mAllocations = allocations;
+    }
+
+    /**
+     * Take an allocation that can hold @a byteCount bytes out of the
+     * pool.
+     *
+     * @return The allocation, or null if none is suitable, in which
+     *         case the caller should allocate a new one.
+     */
+    synchronized T get(long byteCount) {
+        Map.Entry<Integer, ArrayDeque<T>> entry =
+            mItems.ceilingEntry((int) Math.min(byteCount, Integer.MAX_VALUE));
+
+        if (entry == null
+            || entry.getKey() > byteCount * MAX_SIZE_MULTIPLE) {
+            mMisses++;
+            mBytesAllocated += byteCount;
+            return null;
+        }
+
+        T item = entry.getValue().poll();
+        if (entry.getValue().isEmpty())
+            mItems.remove(entry.getKey());
+        mOrder.remove(item);
+        mBytes -= entry.getKey();
+
+        mHits++;
+        mBytesReused += byteCount;
+        return item;
+    }
+
+    /**
+     * Return an @a item the caller no longer uses to the pool.
+     * Allocations that can't be reused are freed instead.
+     */
+    synchronized void put(T item) {
+        int size = mAllocations.sizeOf(item);
+        if (!mAllocations.isReusable(item)
+            || size > mMaxBytes) {
+            mAllocations.free(item);
+            return;
+        }
+
+        ArrayDeque<T> items = mItems.get(size);
+        if (items == null) {
+            items = new ArrayDeque<>();
+            mItems.put(size, items);
+        }
+        items.add(item);
+        mOrder.add(item);
+        mBytes += size;
+
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Record that an allocation from get() couldn't be reused after
+     * all and free the @a item, since putting it back would only hand
+     * it to the next get() of the same size.
+     */
+    void unget(T item,
+               long byteCount) {
+        synchronized (this) {
+            mHits--;
+            mMisses++;
+            mBytesReused -= byteCount;
+            mBytesAllocated += byteCount;
+        }
+        mAllocations.free(item);
+    }
+
+    /**
+     * Drop the least recently added allocations until the pool holds
+     * no more than @a maxBytes bytes.
+     */
+    synchronized void trimToSize(long maxBytes) {
+        Iterator<T> iterator = mOrder.iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            T item = iterator.next();
+            iterator.remove();
+
+            int size = mAllocations.sizeOf(item);
+            ArrayDeque<T> items = mItems.get(size);
+            items.remove(item);
+            if (items.isEmpty())
+                mItems.remove(size);
+
+            mBytes -= size;
+            mEvictions++;
+            mAllocations.free(item);
+        }
+    }
+
+    /**
+     * @return The number of bytes of allocations in the pool.
+     */
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return A summary of how many requests reused a pooled
+     * allocation and how many bytes were allocated versus reused.
+     */
+    synchronized String getStats() {
+        return String.format(Locale.US,
+                             "%d hits, %d misses, %d evictions, "
+                             + "%d/%d bytes, %d bytes allocated, %d bytes reused",
+                             mHits,
+                             mMisses,
+                             mEvictions,
+                             mBytes,
+                             mMaxBytes,
+                             mBytesAllocated,
+                             mBytesReused);
+    }
+}
@@ -0,0 +1,209 @@
+package vandy.mooc.downloader.utils;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps downloads from a host that keeps failing from wasting worker
+ * time.  Each host has a breaker that's normally closed.  After a
+ * number of consecutive failures it opens, and downloads from the
+ * host fail right away instead of waiting for connections that will
+ * likely fail too.  Once a cool-down period has passed the breaker is
+ * half open: a single trial download is let through, which closes
+ * the breaker if it succeeds and reopens it for another cool-down if
+ * it fails.
+ *
+ * A null host is never broken.
+ */
+public class CircuitBreaker {
+    /**
+     * The states of a host's breaker.
+     */
+    public enum State {
+        /**
+         * Downloads run normally.
+         */
+        CLOSED,
+
+        /**
+         * Downloads fail fast until the cool-down has passed.
+         */
+        OPEN,
+
+        /**
+         * One trial download is deciding whether to close or reopen
+         * the breaker.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Default number of consecutive failures that opens a breaker.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Default time (in milliseconds) an open breaker fails downloads
+     * before letting a trial through.
+     */
+    public static final long DEFAULT_COOL_DOWN = 30 * 1000;
+
+    /**
+     * The breaker of one host.
+     */
+    private static class Host {
+        State mState = State.CLOSED;
+        int mFailures;
+        long mOpenedNanos;
+        long mRejections;
+    }
+
+    /**
+     * Number of consecutive failures that opens a breaker.
+     */
+    private final int mFailureThreshold;
+
+    /**
+     * Time (in nanoseconds) an open breaker fails downloads.
+     */
+    private final long mCoolDownNanos;
+
+    /**
+     * The breakers of the hosts that have failed at least once.
+     */
+    private final Map<String, Host> mHosts = new HashMap<>();
+
+    /**
+     * Total number of times a breaker opened and downloads were
+     * failed fast.
+     */
+    private long mTrips;
+    private long mRejections;
+
+    /**
+     * Constructor uses the default threshold and cool-down.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_COOL_DOWN);
+    }
+
+    /**
+     * Constructor opens a host's breaker after @a failureThreshold
+     * consecutive failures and keeps it open for @a coolDown
+     * milliseconds.
+     */
+    public CircuitBreaker(int failureThreshold,
+                          long coolDown) {
+        if (failureThreshold < 1)
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        mFailureThreshold = failureThreshold;
+        mCoolDownNanos = TimeUnit.MILLISECONDS.toNanos(coolDown);
+    }
+
+    /**
+     * Decide whether a download from @a host may run.  If it may and
+     * the breaker is open but cooled down, the download becomes the
+     * trial, whose outcome must be reported.
+     *
+     * @return True if the download may run, false if it should fail
+     *         fast.
+     */
+    public synchronized boolean allowRequest(String host) {
+        Host entry = host != null ? mHosts.get(host) : null;
+        if (entry == null || entry.mState == State.CLOSED)
+            return true;
+
+        if (entry.mState == State.OPEN
+            && System.nanoTime() - entry.mOpenedNanos >= mCoolDownNanos) {
+            entry.mState = State.HALF_OPEN;
+            return true;
+        }
+
+        entry.mRejections++;
+        mRejections++;
+        return false;
+    }
+
+    /**
+     * Record that a download from @a host got a response, which
+     * closes its breaker.
+     */
+    public synchronized void onSuccess(String host) {
+        if (host != null)
+            mHosts.remove(host);
+    }
+
+    /**
+     * Record that a download from @a host failed, which opens its
+     * breaker if it's the trial or one failure too many.
+     */
+    public synchronized void onFailure(String host) {
+        if (host == null)
+            return;
+
+        Host entry = mHosts.get(host);
+        if (entry == null) {
+            entry = new Host();
+            mHosts.put(host, entry);
+        }
+
+        entry.mFailures++;
+        if (entry.mState == State.HALF_OPEN
+            || (entry.mState == State.CLOSED
+                && entry.mFailures >= mFailureThreshold)) {
+            entry.mState = State.OPEN;
+            entry.mOpenedNanos = System.nanoTime();
+            mTrips++;
+        }
+    }
+
+    /**
+     * Record that a download from @a host that was let through ended
+     * without telling whether the host works, e.g., because it was
+     * cancelled.  If it was the trial, the next download becomes the
+     * trial instead.
+     */
+    public synchronized void onIgnored(String host) {
+        Host entry = host != null ? mHosts.get(host) : null;
+        if (entry != null && entry.mState == State.HALF_OPEN) {
+            entry.mState = State.OPEN;
+            entry.mOpenedNanos = System.nanoTime() - mCoolDownNanos;
+        }
+    }
+
+    /**
+     * @return The state of the breaker of @a host.
+     */
+    public synchronized State getState(String host) {
+        Host entry = host != null ? mHosts.get(host) : null;
+        return entry != null ? entry.mState : State.CLOSED;
+    }
+
+    /**
+     * @return A summary of the breakers that aren't closed or have
+     * failures and the total trips and rejections.
+     */
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder
+            (String.format(Locale.US,
+                           "breakers (%d failures, %d s cool-down): "
+                           + "%d trips, %d failed fast;",
+                           mFailureThreshold,
+                           TimeUnit.NANOSECONDS.toSeconds(mCoolDownNanos),
+                           mTrips,
+                           mRejections));
+        for (Map.Entry<String, Host> entry : mHosts.entrySet())
+            stats.append(' ')
+                .append(entry.getKey())
+                .append(' ')
+                .append(entry.getValue().mState)
+                .append(" after ")
+                .append(entry.getValue().mFailures)
+                .append(" failures/")
+                .append(entry.getValue().mRejections)
+                .append(" failed fast;");
+        return stats.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package vandy.mooc.downloader.utils;
+
+import android.os.CancellationSignal;
+
+/**
+ * Options that control how DownloadUtils downloads and stores an
+ * image.  Like BitmapFactory.Options, the fields are public and a
+ * default-constructed instance yields the default behavior.
+ */
+public class DownloadOptions {
+    /**
+     * Priority classes, where lower values are more urgent.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    /**
+     * The priority class of the download, whose bandwidth is shaped
+     * by the BandwidthLimiter.  It's raised while the download runs
+     * if a more urgent request for the same image attaches to it.
+     */
+    public volatile int priority = PRIORITY_INTERACTIVE;
+
+    /**
+     * If false (the default), the downloaded bytes are stored as-is
+     * after checking that they contain a supported image.  If true,
+     * the image is decoded into a Bitmap and re-encoded as a JPEG,
+     * which costs more CPU time and memory.
+     */
+    public boolean reencode;
+
+    /**
+     * JPEG quality (0-100) used when @a reencode is true.
+     */
+    public int reencodeQuality = 100;
+
+    /**
+     * Size the image is decoded at when @a reencode is true.  The
+     * image is downsampled by a power of two as long as it stays at
+     * least this size, and further if it wouldn't fit in the memory
+     * budget.  DecodePlan.ANY_SIZE (the default) doesn't constrain
+     * the corresponding dimension.
+     */
+    public int maxWidth = DecodePlan.ANY_SIZE;
+    public int maxHeight = DecodePlan.ANY_SIZE;
+
+    /**
+     * Maximum number of concurrent connections used to download a
+     * single large image.  If greater than 1, the image is split into
+     * byte ranges that are downloaded in parallel when the server
+     * supports Range requests.  The actual number of segments depends
+     * on the size of the image.
+     */
+    public int maxSegments = 1;
+
+    /**
+     * Receives progress updates during the download, or null.
+     */
+    public ProgressListener progressListener;
+
+    /**
+     * Cancels the download when its cancel() method is called, or
+     * null if the download can't be cancelled.  Cancelling closes the
+     * download's connections, so a transfer in progress is aborted
+     * rather than run to completion.
+     */
+    public CancellationSignal cancellationSignal;
+
+    /**
+     * The start time of a permit of DownloadUtils' ConcurrencyLimiter
+     * that the caller took via tryAcquire() before it started the
+     * download, or ConcurrencyLimiter.NO_PERMIT (the default).  The
+     * download's first fetch attempt runs under this permit instead
+     * of waiting for one, and the download releases it in any case.
+     */
+    public long limiterPermit = ConcurrencyLimiter.NO_PERMIT;
+}
@@ -1,19 +1,27 @@
 package vandy.mooc.downloader.utils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Locale;
 
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Environment;
-import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.util.Base64;
 import android.util.Log;
@@ -30,6 +38,57 @@ public class DownloadUtils {
     private final static String TAG = 
         DownloadUtils.class.getCanonicalName();
 
+    /**
+     * The transport used to open HTTP connections.
+     */
+    private static volatile HttpTransport sTransport =
+        new UrlConnectionTransport();
+
+    /**
+     * The downloads in progress, which concurrent requests for the
+     * same URL attach to rather than fetching the image again.
+     */
+    static final InFlightRegistry<Uri> sInFlight =
+        new InFlightRegistry<>();
+
+    /**
+     * Limits how many fetches run at once, or null if they're not
+     * limited beyond the number of threads that run them.
+     */
+    private static volatile ConcurrencyLimiter sLimiter;
+
+    /**
+     * Sends the requests for images, hedging slow ones if enabled.
+     */
+    private static final HedgedRequests sHedging = new HedgedRequests();
+
+    /**
+     * Decides which failed fetches are retried and when.
+     */
+    private static final RetryPolicy sRetryPolicy = new RetryPolicy();
+
+    /**
+     * Fails fetches from hosts that keep failing fast.
+     */
+    private static final CircuitBreaker sBreaker = new CircuitBreaker();
+
+    /**
+     * Makes completed images durable before they're published.
+     */
+    private static final GroupCommit sCommit = new GroupCommit();
+
+    /**
+     * Stores the downloaded images by content, which is created
+     * lazily.
+     */
+    private static ImageStore sStore;
+
+    /**
+     * True once the images stored by earlier versions are being
+     * moved into the store.
+     */
+    private static boolean sMigrationStarted;
+
     /**
      * Ensure this class is only used as a utility.
      */
@@ -37,6 +96,132 @@ public class DownloadUtils {
         throw new AssertionError();
     }
     
+    /**
+     * Set the @a transport used to open HTTP connections, e.g., to
+     * change timeouts or plug in a different HTTP client.
+     */
+    public static void setTransport(HttpTransport transport) {
+        sTransport = transport;
+    }
+
+    /**
+     * @return The transport used to open HTTP connections.
+     */
+    public static HttpTransport getTransport() {
+        return sTransport;
+    }
+
+    /**
+     * Set the @a limiter that adapts how many fetches run at once to
+     * the observed link, or null to not limit them.
+     */
+    public static void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        sLimiter = limiter;
+    }
+
+    /**
+     * @return The limiter of concurrent fetches, or null.
+     */
+    public static ConcurrencyLimiter getConcurrencyLimiter() {
+        return sLimiter;
+    }
+
+    /**
+     * @return The sender of requests for images, which can be told to
+     * hedge slow requests and reports their response times.
+     */
+    public static HedgedRequests getHedging() {
+        return sHedging;
+    }
+
+    /**
+     * @return The policy that retries fetches that failed
+     * transiently, which reports the retries made.
+     */
+    public static RetryPolicy getRetryPolicy() {
+        return sRetryPolicy;
+    }
+
+    /**
+     * @return The per-host circuit breaker that fails fetches from
+     * hosts that keep failing, which reports the state of each host.
+     */
+    public static CircuitBreaker getCircuitBreaker() {
+        return sBreaker;
+    }
+
+    /**
+     * @return The group commit that syncs completed images to the
+     * disk before they're renamed into the store, which can be told
+     * how durable to make them and reports the syncs made.
+     */
+    public static GroupCommit getGroupCommit() {
+        return sCommit;
+    }
+
+    /**
+     * @return The store that keeps each downloaded image once under
+     * the digest of its bytes, creating it if necessary.
+     */
+    public static synchronized ImageStore getImageStore() {
+        if (sStore == null)
+            sStore = new ImageStore(getImageDirectory());
+        return sStore;
+    }
+
+    /**
+     * Move the images stored by earlier versions into the store's
+     * layout in a background thread, unless that's been started
+     * already, and point their rows in the MediaStore at their new
+     * paths.  The store only scans the directory once, and it can be
+     * used while the images are moved.
+     */
+    public static synchronized void migrateImageStore(Context context) {
+        if (sMigrationStarted)
+            return;
+        sMigrationStarted = true;
+
+        ImageStore store = getImageStore();
+        MediaIndexer indexer = MediaIndexer.getInstance(context);
+        Thread migration = new Thread(() -> {
+                int migrated = store.migrate(new ImageStore.LegacyImages() {
+                        @Override
+                        public String getUrl(File file) {
+                            return getLegacyUrl(file);
+                        }
+
+                        @Override
+                        public void onMigrated(File file,
+                                               File object,
+                                               String url) {
+                            if (url != null) {
+                                // Keep the image's validators and drop
+                                // any partial download named after the
+                                // old file.
+                                CacheValidators validators =
+                                    CacheValidators.load(file);
+                                if (validators != null)
+                                    saveValidators(store.getKeyFile(url),
+                                                   validators);
+                                CacheValidators.delete(file);
+                                PartialDownload.open(file, url).discard();
+                            }
+
+                            // Move the image's row in the Gallery to
+                            // its new path.
+                            indexer.remove(file);
+                            indexer.index(object,
+                                          describeStoredImage(url, object));
+                        }
+                    });
+                if (migrated > 0)
+                    Log.d(TAG,
+                          "migrated " + migrated + " image(s) to the sharded layout");
+            }, "ImageStoreMigration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
     /**
      * Download the image located at the provided Internet url, store it
      * in external storage on the local device, and return the path to the
@@ -50,24 +235,680 @@ public class DownloadUtils {
      */
     public static Uri downloadImage(Context context,
                                     Uri url) {
+        return downloadImage(context, url, null);
+    }
+
+    /**
+     * Download the image located at the provided Internet url, store it
+     * in external storage on the local device, and return the path to the
+     * image file.
+     *
+     * @param context	the context in which to write the file.
+     * @param url       the web url.
+     * @param options   options that control the download, or null to
+     *                  use the defaults.
+     * 
+     * @return the absolute path to the downloaded image file
+     *         on the file system. 
+     */
+    public static Uri downloadImage(Context context,
+                                    Uri url,
+                                    DownloadOptions options) {
+        DownloadOptions requested =
+            options != null ? options : new DownloadOptions();
+        try {
+            // Share the result of a download of the same image that's
+            // already in progress, if any.  Only the caller that runs
+            // the fetch receives progress updates.
+            return sInFlight.execute(url.toString(),
+                                     variantOf(requested),
+                                     requested.priority,
+                                     cancellationOf(requested),
+                                     flight -> process(fetch(context,
+                                                             url,
+                                                             share(requested,
+                                                                   flight))));
+        } catch (Exception e) {
+            Log.e(TAG,
+                  "Exception while waiting for download. Returning null."
+                  + e.toString());
+            return null;
+        } finally {
+            // Release the caller's permit if the caller attached to a
+            // download in progress rather than fetching the image.
+            releasePermit(requested);
+        }
+    }
+
+    /**
+     * @return The key under which the image downloaded from @a url
+     * with @a options is stored and cached, which is the URL itself
+     * unless the image is re-encoded.
+     */
+    static String keyOf(String url,
+                        DownloadOptions options) {
+        return url + variantOf(options);
+    }
+
+    /**
+     * @return The part of the key of a download in progress, and of
+     * the stored image, that tells apart the different images that
+     * downloading the same URL with @a options and with other options
+     * stores.
+     */
+    static String variantOf(DownloadOptions options) {
+        return options.reencode
+            ? String.format(Locale.US,
+                            " jpeg %d %dx%d",
+                            options.reencodeQuality,
+                            options.maxWidth,
+                            options.maxHeight)
+            : "";
+    }
+
+    /**
+     * @return The cancellation of a request made with @a options, or
+     * null if it can't be cancelled.
+     */
+    static InFlightRegistry.Cancellation cancellationOf(DownloadOptions options) {
+        CancellationSignal signal = options.cancellationSignal;
+        if (signal == null)
+            return null;
+        return onCancel ->
+            signal.setOnCancelListener(onCancel != null
+                                       ? onCancel::run
+                                       : null);
+    }
+
+    /**
+     * @return A copy of @a options for the fetch of the @a flight,
+     * which every caller attached to it shares: it runs at the most
+     * urgent priority of the callers and is cancelled only once all
+     * of them have cancelled, and it reports progress to the listener
+     * of the caller that started it.
+     */
+    static DownloadOptions share(DownloadOptions options,
+                                 InFlightRegistry.Flight<?> flight) {
+        DownloadOptions shared = new DownloadOptions();
+        shared.reencode = options.reencode;
+        shared.reencodeQuality = options.reencodeQuality;
+        shared.maxWidth = options.maxWidth;
+        shared.maxHeight = options.maxHeight;
+        shared.maxSegments = options.maxSegments;
+        shared.progressListener = options.progressListener;
+
+        // Hand the caller's permit (if any) to the fetch.
+        shared.limiterPermit = options.limiterPermit;
+        options.limiterPermit = ConcurrencyLimiter.NO_PERMIT;
+
+        CancellationSignal signal = new CancellationSignal();
+        shared.cancellationSignal = signal;
+        flight.setOnCancel(signal::cancel);
+        flight.setOnPriorityRaised(priority -> shared.priority = priority);
+        return shared;
+    }
+
+    /**
+     * Run the stages after fetch() on the @a job in the calling
+     * thread.
+     *
+     * @return the absolute path to the downloaded image file
+     *         on the file system. 
+     */
+    private static Uri process(DownloadJob job) {
+        if (!job.isDone())
+            decode(job);
+        if (!job.isDone())
+            encode(job);
+        if (!job.isDone())
+            persist(job);
+        if (!job.isDone())
+            index(job);
+        return job.getResult();
+    }
+
+    /**
+     * The fetch stage, which downloads the image located at the
+     * provided Internet url into a temporary file unless it's cached.
+     *
+     * @return The job, which is done if the image was cached or the
+     *         download failed.
+     */
+    static DownloadJob fetch(Context context,
+                             Uri url,
+                             DownloadOptions options) {
+        if (options == null)
+            options = new DownloadOptions();
+        return fetch(new DownloadJob(context, url, options));
+    }
+
+    /**
+     * Download the image of the @a job, allowing the download to be
+     * cancelled via the cancellation signal of its options.
+     *
+     * @return The @a job.
+     */
+    private static DownloadJob fetch(DownloadJob job) {
+        try {
+            return fetchImage(job);
+        } finally {
+            // Release the permit the caller took for the fetch if no
+            // attempt used it, e.g., because the image was cached.
+            releasePermit(job.mOptions);
+        }
+    }
+
+    /**
+     * Download the image of the @a job as fetch() does, which
+     * releases the caller's permit (if any) if this doesn't use it.
+     *
+     * @return The @a job.
+     */
+    private static DownloadJob fetchImage(DownloadJob job) {
         if (!isExternalStorageWritable()) {
             Log.d(TAG,
                   "external storage is not writable");
-            return null;
+            return job.finish(null);
+        }
+
+        // Return the previously downloaded file if it's still cached,
+        // which is a re-encoded one only if re-encoding was requested.
+        String url = job.mUrl.toString();
+        Uri cachedImage =
+            ImageCache.getInstance(job.mContext).getFile(job.mKey);
+        if (cachedImage != null) {
+            Log.d(TAG,
+                  "returning cached image for " + url);
+            return job.finish(cachedImage);
         }
 
-        // Download the contents at the URL, which should
-        // reference an image.
-        try (InputStream inputStream = (InputStream)
-             new URL(url.toString()).getContent()) {
-                // Create an output file and save the image into it.
-                return DownloadUtils.createDirectoryAndSaveFile
-                    (context, inputStream, url.toString());
-            } catch (Exception e) {
+        CancellationSignal signal = job.mOptions.cancellationSignal;
+        if (signal == null)
+            return fetchWithRetries(job, sTransport, null);
+
+        // Close the download's connections if it's cancelled, which
+        // aborts a transfer that's in progress.
+        CancellableTransport transport =
+            new CancellableTransport(sTransport);
+        signal.setOnCancelListener(transport::cancel);
+        try {
+            return fetchWithRetries(job, transport, transport);
+        } finally {
+            signal.setOnCancelListener(null);
+        }
+    }
+
+    /**
+     * Download the image of the @a job using connections opened by
+     * @a transport, retrying a download that failed transiently after
+     * a jittered exponential backoff.  The download fails fast if the
+     * circuit breaker of its host is open.  Cancelling @a cancellable
+     * (if it's not null) stops the retries.
+     *
+     * @return The job of the last attempt, whose partial download
+     *         each retry resumes from.
+     */
+    private static DownloadJob fetchWithRetries(DownloadJob job,
+                                                HttpTransport transport,
+                                                CancellableTransport cancellable) {
+        String url = job.mUrl.toString();
+        String host = HostScheduler.hostOf(url);
+
+        for (int retry = 0; ; retry++) {
+            if (!sBreaker.allowRequest(host)) {
+                Log.d(TAG,
+                      "failing fast for " + url
+                      + " since " + host + " keeps failing");
+                return job.finish(null);
+            }
+
+            sRetryPolicy.onAttempt(retry);
+            job = fetchLimited(job, transport, cancellable);
+
+            if ((cancellable != null && cancellable.isCancelled())
+                || Thread.currentThread().isInterrupted()) {
+                // A cancelled download says nothing about the host.
+                sBreaker.onIgnored(host);
+                return job;
+            } else if (!job.mRetryable) {
+                // The host responded, even if it didn't return an
+                // image.
+                sBreaker.onSuccess(host);
+                if (job.mHeader != null || job.getResult() != null)
+                    sRetryPolicy.onSucceeded(retry);
+                return job;
+            }
+
+            sBreaker.onFailure(host);
+            if (retry + 1 >= sRetryPolicy.getMaxAttempts()) {
+                sRetryPolicy.onGaveUp();
+                return job;
+            }
+
+            long delay = sRetryPolicy.getDelay(retry + 1);
+            Log.d(TAG,
+                  "retrying " + url + " in " + delay + " ms");
+            if (!awaitRetry(delay, cancellable))
+                return job;
+
+            job = new DownloadJob(job.mContext, job.mUrl, job.mOptions);
+        }
+    }
+
+    /**
+     * Download the image of the @a job once using connections opened
+     * by @a transport, as fetch() does, holding a permit of the
+     * concurrency limiter (if any) only while the attempt runs, so a
+     * cached image or a retry's backoff never occupies one.  The
+     * first attempt uses the permit the caller took before it started
+     * the download, if any, rather than waiting for one.  Only the
+     * attempts that tell something about the link are reported to the
+     * limiter as successes or drops; cancelling @a cancellable (if
+     * it's not null) or interrupting the thread doesn't count as a
+     * drop.
+     *
+     * @return The @a job.
+     */
+    private static DownloadJob fetchLimited(DownloadJob job,
+                                            HttpTransport transport,
+                                            CancellableTransport cancellable) {
+        ConcurrencyLimiter limiter = sLimiter;
+        if (limiter == null)
+            return fetch(job, transport);
+
+        // Use the caller's permit, if any, or wait until the limiter
+        // lets another fetch run.
+        long startNanos = job.mOptions.limiterPermit;
+        job.mOptions.limiterPermit = ConcurrencyLimiter.NO_PERMIT;
+        if (startNanos == ConcurrencyLimiter.NO_PERMIT) {
+            try {
+                startNanos = limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return job.finish(null);
+            }
+        }
+
+        job = fetch(job, transport);
+
+        // Tell the limiter how the link performed.
+        if (job.mHeader != null)
+            limiter.onSuccess(startNanos,
+                              job.mPartial.getFile().length());
+        else if (job.mRetryable
+                 && !(cancellable != null && cancellable.isCancelled())
+                 && !Thread.currentThread().isInterrupted())
+            // The network or an overloaded server failed the fetch.
+            limiter.onDropped(startNanos);
+        else
+            // The image was unmodified, the server refused it for
+            // good (e.g., 404 or 410), the content isn't an image,
+            // or the fetch was cancelled, none of which reflects the
+            // link's capacity.
+            limiter.onIgnored(startNanos);
+        return job;
+    }
+
+    /**
+     * Release the permit the caller took for a download with
+     * @a options, if it hasn't been used or handed on.
+     */
+    private static void releasePermit(DownloadOptions options) {
+        long startNanos = options.limiterPermit;
+        if (startNanos == ConcurrencyLimiter.NO_PERMIT)
+            return;
+
+        options.limiterPermit = ConcurrencyLimiter.NO_PERMIT;
+        ConcurrencyLimiter limiter = sLimiter;
+        if (limiter != null)
+            limiter.onIgnored(startNanos);
+    }
+
+    /**
+     * Wait @a delay milliseconds before retrying a download, waking
+     * up early if it's cancelled via @a cancellable (if it's not
+     * null) or the thread is interrupted.
+     *
+     * @return True if the download should be retried.
+     */
+    private static boolean awaitRetry(long delay,
+                                      CancellableTransport cancellable) {
+        try {
+            if (cancellable != null)
+                return !cancellable.awaitCancel(delay);
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Download the image of the @a job once using connections opened
+     * by @a transport, marking the job as retryable if the download
+     * failed transiently.
+     *
+     * @return The @a job.
+     */
+    private static DownloadJob fetch(DownloadJob job,
+                                     HttpTransport transport) {
+        String url = job.mUrl.toString();
+        DownloadOptions options = job.mOptions;
+
+        File keyFile = job.mKeyFile;
+        File storedFile = job.mPreviousFile;
+
+        // Recover the bytes left by an interrupted download, if any.
+        // The key file tells apart the partial downloads of the same
+        // URL that are re-encoded differently.
+        PartialDownload partial = PartialDownload.open(keyFile, url);
+        job.mPartial = partial;
+
+        // Load the validators of a previous download, if any.
+        CacheValidators validators =
+            storedFile != null && !partial.isResumable()
+            ? CacheValidators.load(keyFile)
+            : null;
+
+        try {
+            // Download a large image over several connections if
+            // requested and the server supports byte ranges.
+            if (options.maxSegments > 1
+                && validators == null
+                && !partial.isResumable()) {
+                SegmentedDownload.Probe probe =
+                    SegmentedDownload.probe(transport, url);
+                int segments =
+                    SegmentedDownload.chooseSegmentCount(probe,
+                                                         options.maxSegments);
+                try {
+                    if (segments > 1) {
+                        MessageDigest digest = ImageStore.newDigest();
+                        job.mHeader =
+                            downloadSegments(url, probe, segments, partial,
+                                             transport, options, digest);
+                        if (job.mHeader == null)
+                            return job.finish(null);
+                        job.mDigest = ImageStore.toName(digest.digest());
+
+                        // Remember the validators for the next
+                        // download.
+                        job.mValidators =
+                            CacheValidators.fromResponse
+                                (probe.connection,
+                                 System.currentTimeMillis());
+                        return job;
+                    }
+                } finally {
+                    // Release the probe's connection, including when
+                    // falling back to a single connection below.
+                    if (probe != null)
+                        probe.close();
+                }
+            }
+
+            HttpURLConnection connection = sHedging.execute(() -> {
+                    HttpURLConnection attempt = transport.open(url);
+
+                    // Ask the server not to send the body again if the
+                    // previously downloaded image is still current.
+                    if (validators != null && validators.hasValidators())
+                        validators.addTo(attempt);
+
+                    // Ask for only the missing bytes of an interrupted
+                    // download.
+                    partial.addRangeTo(attempt);
+                    return attempt;
+                });
+
+            int responseCode = connection.getResponseCode();
+            boolean resume = false;
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                && validators != null) {
+                // Release the (empty) body so the connection can be
+                // reused.
+                connection.getInputStream().close();
+
+                // Reuse the existing file and extend its lifetime.
+                saveValidators(keyFile,
+                               validators.refresh(connection,
+                                                  System.currentTimeMillis()));
+                ImageCache.getInstance(job.mContext)
+                    .putRevalidatedFile(job.mKey, storedFile);
+                Log.d(TAG,
+                      "reusing unmodified image for " + url);
+                return job.finish(Uri.parse(storedFile.getAbsolutePath()));
+            } else if (responseCode == HttpURLConnection.HTTP_PARTIAL
+                       && partial.isContinuation(connection)) {
+                resume = true;
+                Log.d(TAG,
+                      "resuming download of " + url
+                      + " at byte " + partial.getOffset());
+            } else if (partial.isRangeRejected(connection)) {
+                // The bytes on hand don't match what the server has,
+                // so discard them and start over.  This happens at
+                // most once, since the discarded download isn't
+                // resumable and the next request has no range to
+                // reject.
+                connection.disconnect();
+                partial.discard();
+                return fetch(new DownloadJob(job.mContext,
+                                             job.mUrl,
+                                             options),
+                             transport);
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG,
+                      "server returned " + responseCode + " for " + url);
+                connection.disconnect();
+                job.mRetryable = RetryPolicy.isTransient(responseCode);
+                return job.finish(null);
+            }
+
+            // Start over unless the server sent the missing bytes.
+            partial.start(connection, resume);
+
+            // The length of a continuation excludes the bytes on hand.
+            long totalBytes = connection.getContentLengthLong();
+            if (totalBytes >= 0)
+                totalBytes += partial.getOffset();
+
+            // Download the contents at the URL, which should
+            // reference an image.
+            try (InputStream inputStream =
+                 BandwidthLimiter.wrap(connection.getInputStream(),
+                                       () -> options.priority)) {
+                // Create an output file and save the image into it,
+                // computing its digest along the way.
+                MessageDigest digest = ImageStore.newDigest();
+                job.mHeader = DownloadUtils.createDirectoryAndSaveFile
+                    (inputStream, url, partial, totalBytes, options, digest);
+                if (job.mHeader == null)
+                    return job.finish(null);
+                job.mDigest = ImageStore.toName(digest.digest());
+
+                // Remember the validators for the next download.
+                job.mValidators =
+                    CacheValidators.fromResponse(connection,
+                                                 System.currentTimeMillis());
+                return job;
+            }
+        } catch (Exception e) {
             Log.e(TAG,
                   "Exception while downloading. Returning null."
                   + e.toString());
-            return null;
+            job.mRetryable = RetryPolicy.isTransient(e);
+            return job.finish(null);
+        }
+    }
+
+    /**
+     * The decode stage, which decodes the downloaded image if the
+     * job's options request re-encoding it.
+     */
+    static void decode(DownloadJob job) {
+        if (!job.mOptions.reencode)
+            return;
+
+        // Decode the downloaded file into a Bitmap image that's no
+        // bigger than requested and fits in the memory budget,
+        // reusing the memory of a pooled Bitmap if possible.
+        job.mBitmap =
+            DecodePlanner.decodeFile(job.mPartial.getFile(),
+                                     job.mOptions.maxWidth,
+                                     job.mOptions.maxHeight,
+                                     DecodePlanner.getMemoryBudget(job.mContext),
+                                     ImageCache.getInstance(job.mContext)
+                                         .getBitmapPool());
+
+        // Bail out of we get an invalid bitmap.
+        if (job.mBitmap == null) {
+            job.mPartial.discard();
+            job.finish(null);
+        }
+    }
+
+    /**
+     * The encode stage, which compresses the decoded image (if any)
+     * as a JPEG into a temporary file.
+     */
+    static void encode(DownloadJob job) {
+        if (job.mBitmap == null)
+            return;
+
+        job.mEncodedFile =
+            new File(job.mPartial.getFile().getPath() + ".jpg");
+        MessageDigest digest = ImageStore.newDigest();
+        try (OutputStream outputStream =
+             new DigestOutputStream(new FileOutputStream(job.mEncodedFile),
+                                    digest)) {
+            job.mBitmap.compress(Bitmap.CompressFormat.JPEG,
+                                 job.mOptions.reencodeQuality,
+                                 outputStream);
+            outputStream.flush();
+
+            // Store the re-encoded image under the digest of its own
+            // bytes.
+            job.mDigest = ImageStore.toName(digest.digest());
+        } catch (IOException e) {
+            // Indicate a failure.
+            job.mEncodedFile.delete();
+            job.finish(null);
+        } finally {
+            // The original bytes and the decoded image aren't needed
+            // anymore, so the Bitmap's memory can be reused by the
+            // next decode.
+            job.mPartial.discard();
+            ImageCache.getInstance(job.mContext)
+                .getBitmapPool()
+                .put(job.mBitmap);
+            job.mBitmap = null;
+        }
+    }
+
+    /**
+     * The persist stage, which moves the completed temporary file
+     * (or the re-encoded one) into the image store under its digest,
+     * or just deletes it if the same image is already stored.  The
+     * file is synced before it's moved, so the atomic rename never
+     * publishes a file whose bytes could be lost in a crash.
+     */
+    static void persist(DownloadJob job) {
+        File file = job.mEncodedFile != null
+            ? job.mEncodedFile
+            : job.mPartial.getFile();
+        ImageStore store = getImageStore();
+
+        try {
+            // A duplicate is deleted rather than published, so it
+            // needn't be synced.
+            if (!store.getObjectFile(job.mDigest).exists())
+                sCommit.sync(file);
+
+            job.mDuplicate = !store.put(job.mKey,
+                                        file,
+                                        job.mDigest);
+            job.mImageFile = store.getObjectFile(job.mDigest);
+        } catch (IOException e) {
+            Log.w(TAG,
+                  "unable to store the image of " + job.mUrl,
+                  e);
+            // Indicate a failure.
+            file.delete();
+            job.finish(null);
+        } finally {
+            // Delete the journal of the completed download.
+            job.mPartial.discard();
+        }
+    }
+
+    /**
+     * The index stage, which adds the stored image to the Gallery
+     * and the image cache.
+     */
+    static void index(DownloadJob job) {
+        String fileName = job.mUrl.toString();
+        File file = job.mImageFile;
+        boolean reencoded = job.mEncodedFile != null;
+
+        // Get the absolute path of the image.
+        String absolutePathToImage = file.getAbsolutePath();
+
+        // Provide metadata so the downloaded image is viewable in the
+        // Gallery.
+        ContentValues values =
+            newImageValues(fileName,
+                           file,
+                           System.currentTimeMillis(),
+                           reencoded ? "image/jpeg" : job.mHeader.getMimeType(),
+                           reencoded ? null : job.mHeader);
+
+        // Store the metadata for the image into the Gallery content
+        // provider in the next batch, updating the image's row if it
+        // already has one (e.g., because it's a duplicate).
+        MediaIndexer indexer = MediaIndexer.getInstance(job.mContext);
+        indexer.index(file, values);
+
+        Log.d(TAG,
+              "absolute path to image file is " 
+              + absolutePathToImage
+              + (job.mDuplicate ? " (duplicate)" : ""));
+
+        // Remember the validators for the next download.
+        if (job.mValidators != null)
+            saveValidators(job.mKeyFile, job.mValidators);
+
+        // Add the new file to the cache.
+        ImageCache cache = ImageCache.getInstance(job.mContext);
+        cache.putFile(job.mKey, file);
+
+        // Forget the image the URL used to have if it changed and the
+        // store deleted it since no other URL refers to it.
+        File previousFile = job.mPreviousFile;
+        if (previousFile != null
+            && !previousFile.equals(file)
+            && !previousFile.exists()) {
+            indexer.remove(previousFile);
+            cache.removeFile(previousFile);
+        }
+
+        // Return the absolute path of the image file.
+        job.finish(Uri.parse(absolutePathToImage));
+    }
+
+    /**
+     * Store the @a validators for @a imageFile, logging rather than
+     * failing the download if they can't be stored.
+     */
+    private static void saveValidators(File imageFile,
+                                       CacheValidators validators) {
+        try {
+            validators.save(imageFile);
+        } catch (IOException e) {
+            Log.w(TAG,
+                  "unable to store validators for " + imageFile,
+                  e);
         }
     }
 
@@ -82,109 +923,356 @@ public class DownloadUtils {
     }
 
     /**
-     * Decode an InputStream into a Bitmap and store it in a file on
-     * the device.
+     * Store the image in an InputStream in a file on the device.  The
+     * bytes are appended to the temporary file of the @a partial
+     * download, which the later stages move to the image directory
+     * (or re-encode) once the download completes.
      *
-     * @param context	   the context in which to write the file.
      * @param inputStream  the Input Stream.
      * @param fileName     name of the file.
+     * @param partial      the temporary file and journal that hold
+     *                     the bytes downloaded so far.
+     * @param totalBytes   length of the image, or -1 if unknown.
+     * @param options      options that control the download.
+     * @param digest       updated with every byte of the image.
      * 
-     * @return the absolute path to the downloaded image file
-     *         on the file system. 
+     * @return the format and dimensions of the image, or null if it
+     *         isn't a supported image.
+     * @throws IOException if the download stopped, in which case the
+     *         bytes downloaded so far are kept so a later download
+     *         can resume from them.
      */
-    private static Uri createDirectoryAndSaveFile(Context context,
-                                                  InputStream inputStream,
-                                                  String fileName) {
-        // Decode the InputStream into a Bitmap image.
-        Bitmap imageToSave =
-            BitmapFactory.decodeStream(inputStream);
+    private static ImageHeader createDirectoryAndSaveFile(InputStream inputStream,
+                                                          String fileName,
+                                                          PartialDownload partial,
+                                                          long totalBytes,
+                                                          DownloadOptions options,
+                                                          MessageDigest digest)
+        throws IOException {
+        // Create a directory in external storage if necessary.
+        File directory = getImageDirectory();
+        if (!directory.exists())
+            directory.mkdirs();
 
-        // Bail out of we get an invalid bitmap.
-        if (imageToSave == null)
-            return null;
+        ByteBuffer buffer = BufferPool.acquire();
+        ImageHeader header;
+
+        try (FileOutputStream outputStream =
+             new FileOutputStream(partial.getFile(), true)) {
+            // Append the image to the temporary file.
+            if (partial.getOffset() == 0)
+                // Read just enough of the image to check its format
+                // and dimensions.
+                header = readHeader(inputStream, buffer);
+            else {
+                // The header was downloaded before the download was
+                // interrupted, along with the rest of the bytes that
+                // need to be hashed before the new ones.
+                try (InputStream partStream =
+                     new DigestInputStream(new FileInputStream(partial.getFile()),
+                                           digest)) {
+                    header = readHeader(partStream, buffer);
+                    drain(partStream, buffer);
+                }
+                buffer.clear();
+            }
 
-        // Create a name of a directory in external storage.
-        File directory =
-            new File(Environment.getExternalStoragePublicDirectory
-                     (Environment.DIRECTORY_DCIM)
-                     + "/ImageDir");
+            // Bail out if we don't get a valid image.
+            if (!header.isSupported()) {
+                Log.d(TAG,
+                      "downloaded content is not a supported image");
+                partial.discard();
+                return null;
+            }
 
-        if (!directory.exists()) {
-            // Create a directory in external storage.
-            File newDirectory =
-                new File(directory.getAbsolutePath());
-            newDirectory.mkdirs();
+            try {
+                copyImage(inputStream,
+                          buffer,
+                          outputStream.getChannel(),
+                          partial,
+                          options.progressListener,
+                          totalBytes,
+                          digest);
+            } finally {
+                // Record how far the download got in case it was
+                // interrupted.
+                partial.checkpoint();
+            }
+        } catch (IOException e) {
+            // Indicate a failure, but keep the bytes downloaded so
+            // far so a later download (or a retry) can resume from
+            // them.
+            Log.d(TAG,
+                  "download of " + fileName + " stopped at byte "
+                  + partial.getOffset());
+            throw e;
+        } finally {
+            BufferPool.release(buffer);
         }
 
-        // Make a new temporary file name.
-        File file = new File(directory, 
-                             getTemporaryFilename(fileName));
-        if (file.exists())
-            // Delete the file if it already exists.
-            file.delete();
+        return header;
+    }
 
-        // Save the image to the output file.
-        try (FileOutputStream outputStream =
-             new FileOutputStream(file)) {
-            imageToSave.compress(Bitmap.CompressFormat.JPEG,
-                                 100,
-                                 outputStream);
-            outputStream.flush();
-        } catch (Exception e) {
-            // Indicate a failure.
+    /**
+     * Download the image at @a url over several concurrent
+     * connections opened by @a transport into the temporary file of
+     * the @a partial download, updating @a digest with its bytes.
+     * Since the segments arrive out of order, the bytes are hashed by
+     * reading the completed file.  The journal of the @a partial
+     * download tracks the bytes at the start of the file that were
+     * written without a gap.
+     *
+     * @return the format and dimensions of the image, or null if it
+     *         isn't a supported image.
+     * @throws IOException if the download failed, in which case the
+     *         gapless prefix of the file is kept so a later download
+     *         (or a retry) can resume from it over one connection.
+     */
+    private static ImageHeader downloadSegments(String url,
+                                                SegmentedDownload.Probe probe,
+                                                int segments,
+                                                PartialDownload partial,
+                                                HttpTransport transport,
+                                                DownloadOptions options,
+                                                MessageDigest digest)
+        throws IOException {
+        // Start afresh, since the segments come from a new response.
+        partial.discard();
+        partial.start(probe.validator);
+
+        ByteBuffer buffer = BufferPool.acquire();
+        ImageHeader header;
+
+        try {
+            SegmentedDownload.download(transport,
+                                       url,
+                                       probe,
+                                       segments,
+                                       partial.getFile(),
+                                       options.progressListener,
+                                       () -> options.priority,
+                                       length ->
+                                       partial.onWritten(length
+                                                         - partial.getOffset()));
+            if (options.progressListener != null)
+                options.progressListener.onCompleted(probe.contentLength);
+
+            // Check the format and dimensions of the image and hash
+            // its bytes.
+            try (InputStream partStream =
+                 new DigestInputStream(new FileInputStream(partial.getFile()),
+                                       digest)) {
+                header = readHeader(partStream, buffer);
+                drain(partStream, buffer);
+            }
+        } catch (IOException e) {
+            // Indicate a failure, but keep the bytes at the start of
+            // the file so the retry, which isn't segmented since the
+            // download is resumable, only fetches the rest.
+            partial.checkpoint();
+            Log.d(TAG,
+                  "segmented download of " + url + " failed at byte "
+                  + partial.getOffset() + " " + e);
+            throw e;
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        // Bail out if we don't get a valid image.
+        if (!header.isSupported()) {
+            Log.d(TAG,
+                  "downloaded content is not a supported image");
+            partial.discard();
             return null;
         }
 
-        // Get the absolute path of the image.
-        String absolutePathToImage = file.getAbsolutePath();
+        return header;
+    }
 
-        // Provide metadata so the downloaded image is viewable in the
-        // Gallery.
+    /**
+     * @return The metadata that makes the image in @a file viewable
+     * in the Gallery, titled after @a title, taken at @a dateTaken,
+     * and of type @a mimeType (if it's known), with the dimensions in
+     * @a header if it's not null and has them.
+     */
+    private static ContentValues newImageValues(String title,
+                                                File file,
+                                                long dateTaken,
+                                                String mimeType,
+                                                ImageHeader header) {
         ContentValues values =
             new ContentValues();
         values.put(Images.Media.TITLE,
-                   fileName);
+                   title);
         values.put(Images.Media.DESCRIPTION,
-                   fileName);
+                   title);
         values.put(Images.Media.DATE_TAKEN,
-                   System.currentTimeMillis ());
+                   dateTaken);
         values.put(Images.ImageColumns.BUCKET_DISPLAY_NAME,
                    file.getName().toLowerCase(Locale.US));
-        values.put("_data",
-                   absolutePathToImage);
+        if (mimeType != null)
+            values.put(Images.Media.MIME_TYPE,
+                       mimeType);
+        if (header != null && header.hasDimensions()) {
+            values.put(Images.Media.WIDTH,
+                       header.getWidth());
+            values.put(Images.Media.HEIGHT,
+                       header.getHeight());
+        }
+        return values;
+    }
 
-        // Get the content resolver for this context.
-        ContentResolver cr = 
-            context.getContentResolver();
+    /**
+     * @return The metadata of the image in @a file, which was moved
+     * into the store and downloaded from @a url (or null if that's
+     * unknown), with its format and dimensions read from the first
+     * bytes of the file.
+     */
+    private static ContentValues describeStoredImage(String url,
+                                                     File file) {
+        ByteBuffer buffer = BufferPool.acquire();
+        ImageHeader header = null;
+        try (InputStream inputStream = new FileInputStream(file)) {
+            header = readHeader(inputStream, buffer);
+        } catch (IOException e) {
+            // Leave the format and dimensions out of the metadata.
+        } finally {
+            BufferPool.release(buffer);
+        }
 
-        // Store the metadata for the image into the Gallery content provider.
-        cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                  values);
+        return newImageValues(url != null ? url : file.getName(),
+                              file,
+                              file.lastModified(),
+                              header != null && header.isSupported()
+                              ? header.getMimeType()
+                              : null,
+                              header);
+    }
 
-        Log.d(TAG,
-              "absolute path to image file is " 
-              + absolutePathToImage);
+    /**
+     * Read from @a inputStream into @a buffer until the format and
+     * dimensions of the image are known, the buffer is full, or the
+     * end of the stream is reached.
+     *
+     * @return The ImageHeader parsed from the bytes in @a buffer,
+     *         which holds these bytes between 0 and its position.
+     */
+    private static ImageHeader readHeader(InputStream inputStream,
+                                          ByteBuffer buffer)
+        throws IOException {
+        byte[] array = buffer.array();
+        ImageHeader header = ImageHeader.parse(array, 0);
 
-        // Return the absolute path of the image file.
-        return Uri.parse(absolutePathToImage);
+        while (buffer.hasRemaining()
+               && header.needsMoreData(buffer.position())) {
+            int count = inputStream.read(array,
+                                         buffer.position(),
+                                         buffer.remaining());
+            if (count < 0)
+                break;
+            buffer.position(buffer.position() + count);
+            header = ImageHeader.parse(array, buffer.position());
+        }
+        return header;
     }
 
     /**
-     * Create a temporary filename to store the result of a download.
+     * Read the rest of @a inputStream into @a buffer, discarding the
+     * bytes, e.g., so a DigestInputStream hashes them.
+     */
+    private static void drain(InputStream inputStream,
+                              ByteBuffer buffer)
+        throws IOException {
+        byte[] array = buffer.array();
+        while (inputStream.read(array, 0, buffer.capacity()) >= 0)
+            continue;
+    }
+
+    /**
+     * Copy the header bytes in @a buffer followed by the rest of
+     * @a inputStream to the @a channel without decoding the image,
+     * reusing @a buffer for every chunk and recording the progress
+     * of the @a partial download, which is also reported to the
+     * @a listener (if any) along with the @a totalBytes expected.
+     * The bytes are hashed into @a digest as they're written, so the
+     * image never needs to be read again to compute its digest.
+     */
+    private static void copyImage(InputStream inputStream,
+                                  ByteBuffer buffer,
+                                  FileChannel channel,
+                                  PartialDownload partial,
+                                  ProgressListener listener,
+                                  long totalBytes,
+                                  MessageDigest digest)
+        throws IOException {
+        byte[] array = buffer.array();
+
+        for (;;) {
+            // Hash and write the bytes in the buffer to the file.
+            buffer.flip();
+            digest.update(array, 0, buffer.limit());
+            int written = 0;
+            while (buffer.hasRemaining())
+                written += channel.write(buffer);
+            partial.onWritten(written);
+            if (listener != null)
+                listener.onProgress(partial.getOffset(), totalBytes);
+
+            // Stop if the download has been cancelled.
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException("download cancelled");
+
+            // Refill the buffer from the network.
+            buffer.clear();
+            int count = inputStream.read(array, 0, buffer.capacity());
+            if (count < 0)
+                break;
+            buffer.position(count);
+        }
+
+        // Report completion explicitly, since the final update may
+        // have been skipped, and the listener can't tell it's final
+        // if the length of the image wasn't known.
+        if (listener != null)
+            listener.onCompleted(partial.getOffset());
+    }
+
+    /**
+     * @return The directory in external storage where downloaded
+     *         images are stored.
+     */
+    static File getImageDirectory() {
+        return new File(Environment.getExternalStoragePublicDirectory
+                        (Environment.DIRECTORY_DCIM)
+                        + "/ImageDir");
+    }
+
+    /**
+     * @return A file in the image directory named after @a url, whose
+     *         name keys the partial download and the validators of the
+     *         URL.  The image itself is stored under the digest of its
+     *         bytes by the ImageStore.
+     */
+    static File getKeyFile(String url) {
+        return getImageStore().getKeyFile(url);
+    }
+
+    /**
+     * Return the URL of the image in a @a file that an earlier version
+     * named after the Base64 encoding of the URL.
      * 
-     * @param url Name of the URL.
-     * @return String containing the temporary filename.
-     */
-    static private String getTemporaryFilename(final String url) {
-        // This is what you'd normally call to get a unique temporary
-        // filename, but for testing purposes we always name the file
-        // the same to avoid filling up student phones with numerous
-        // files!
-        //
-        // return Base64.encodeToString((url.toString() 
-        //                              + System.currentTimeMillis()).getBytes(),
-        //                              Base64.NO_WRAP);
-        return Base64.encodeToString(url.getBytes(),
-                                     Base64.NO_WRAP);
+     * @return The URL, or null if the name doesn't encode one.
+     */
+    private static String getLegacyUrl(File file) {
+        try {
+            String url = new String(Base64.decode(file.getName(),
+                                                  Base64.NO_WRAP),
+                                    StandardCharsets.UTF_8);
+            return url.startsWith("http://") || url.startsWith("https://")
+                ? url
+                : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 }
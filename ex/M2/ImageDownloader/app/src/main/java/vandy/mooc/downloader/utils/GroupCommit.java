@@ -0,0 +1,301 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the bytes of completed temporary files durable before they're
+ * renamed into place, so a crash or power loss can't leave a
+ * truncated image under its final name: the rename is only issued
+ * once the bytes it publishes are on the disk.  The rename itself
+ * isn't synced (Android's Java API can't open a directory to sync
+ * it), so a crash may undo it, in which case the image is simply
+ * missing and gets downloaded again.
+ *
+ * Each file still gets its own sync, but in a busy burst of downloads
+ * the syncs are grouped.  A thread that asks for a sync while no
+ * other sync is in flight syncs its file right away, so a lone
+ * download (e.g., from a service with a single worker) never waits.
+ * Otherwise it opens a batch, or joins the open one, and the batch
+ * closes once it holds a number of files, the syncs in flight have
+ * finished, or a time limit has passed.  Then every thread in the
+ * batch syncs its own file at the same moment, so a journaling file
+ * system (e.g., ext4 or f2fs) can commit their data together instead
+ * of one after another, and the threads share the wait for the disk
+ * rather than queueing behind each other's flushes.
+ */
+public class GroupCommit {
+    /**
+     * How durable a file is made before it's renamed into place.
+     */
+    public enum Durability {
+        /**
+         * Files aren't synced, leaving them to be written back
+         * whenever the kernel likes, which is fastest but may publish
+         * a truncated file after a power loss.
+         */
+        NONE,
+
+        /**
+         * Each file is synced on its own before it's renamed.
+         */
+        PER_FILE,
+
+        /**
+         * Each file is synced on its own, but together with the
+         * other files of a batch of up to the batch size, which
+         * waits at most the batch interval to fill, and only while
+         * other syncs are in flight.  This issues as many syncs as
+         * PER_FILE, just at the same moment, and hasn't been
+         * measured to be consistently faster.
+         */
+        BATCHED
+    }
+
+    /**
+     * Default largest number of files whose syncs are issued
+     * together.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 8;
+
+    /**
+     * Default longest time (in milliseconds) a batch waits for more
+     * files before it's synced.
+     */
+    public static final long DEFAULT_BATCH_INTERVAL = 20;
+
+    /**
+     * A batch of files whose syncs are issued together.
+     */
+    private static class Batch {
+        final long mDeadlineNanos;
+        int mSize;
+
+        Batch(long deadlineNanos) {
+            mDeadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * How durable files are made.
+     */
+    private Durability mDurability;
+
+    /**
+     * Largest number of files in a batch.
+     */
+    private int mBatchSize;
+
+    /**
+     * Longest time (in nanoseconds) a batch waits for more files.
+     */
+    private long mIntervalNanos;
+
+    /**
+     * The batch that's still accepting files, or null if there's none.
+     */
+    private Batch mOpenBatch;
+
+    /**
+     * Number of threads syncing their files.
+     */
+    private int mSyncing;
+
+    /**
+     * Counters that measure the cost of syncing, where mSyncNanos
+     * adds up the time each thread spent in its sync.
+     */
+    private long mFiles;
+    private long mSyncs;
+    private long mBatches;
+    private long mSyncNanos;
+
+    /**
+     * Constructor syncs each file on its own, and uses the default
+     * batch size and interval if it's switched to BATCHED.
+     */
+    public GroupCommit() {
+        this(Durability.PER_FILE, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_INTERVAL);
+    }
+
+    /**
+     * Constructor makes files as durable as @a durability, syncing
+     * batches of up to @a batchSize files that wait at most
+     * @a batchInterval milliseconds for more files.
+     */
+    public GroupCommit(Durability durability,
+                       int batchSize,
+                       long batchInterval) {
+        setDurability(durability, batchSize, batchInterval);
+    }
+
+    /**
+     * Make files as durable as @a durability from now on, syncing
+     * batches of up to @a batchSize files that wait at most
+     * @a batchInterval milliseconds for more files.
+     */
+    public synchronized void setDurability(Durability durability,
+                                           int batchSize,
+                                           long batchInterval) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive");
+        if (batchInterval < 0)
+            throw new IllegalArgumentException("batchInterval must not be negative");
+        mDurability = durability;
+        mBatchSize = batchSize;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(batchInterval);
+    }
+
+    /**
+     * @return How durable files are made.
+     */
+    public synchronized Durability getDurability() {
+        return mDurability;
+    }
+
+    /**
+     * @return The largest number of files whose syncs are issued
+     * together, which is also the number of threads that may usefully
+     * wait in sync() at once.
+     */
+    public synchronized int getBatchSize() {
+        return mDurability == Durability.BATCHED ? mBatchSize : 1;
+    }
+
+    /**
+     * Make the bytes written to @a file durable, as far as the
+     * durability setting asks, blocking until they are.  An interrupt
+     * doesn't cut the wait for the batch short, since the file must
+     * be synced before it's published, but it's preserved for the
+     * caller.
+     *
+     * @throws IOException if the file couldn't be synced.
+     */
+    public void sync(File file) throws IOException {
+        Durability durability;
+        synchronized (this) {
+            durability = mDurability;
+            mFiles++;
+        }
+
+        switch (durability) {
+        case NONE:
+            return;
+
+        case PER_FILE:
+            long start = System.nanoTime();
+            try {
+                syncFile(file);
+            } finally {
+                onSynced(System.nanoTime() - start);
+            }
+            return;
+
+        default:
+            syncInBatch(file);
+        }
+    }
+
+    /**
+     * @return A summary of the files synced and the time spent.
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.US,
+                             "durability %s (batches of %d/%d ms): "
+                             + "%d files, %d syncs in %d batches, "
+                             + "%.1f ms syncing",
+                             mDurability,
+                             mBatchSize,
+                             TimeUnit.NANOSECONDS.toMillis(mIntervalNanos),
+                             mFiles,
+                             mSyncs,
+                             mBatches,
+                             mSyncNanos / 1e6);
+    }
+
+    /**
+     * Add @a file to the open batch, opening one if there's none,
+     * wait until the batch closes, and then sync the file alongside
+     * the other files of the batch.  The batch closes right away if
+     * no other thread is syncing, since there's then nothing to wait
+     * for that more files could share.
+     */
+    private void syncInBatch(File file) throws IOException {
+        boolean interrupted = false;
+
+        synchronized (this) {
+            if (mOpenBatch == null) {
+                mOpenBatch = new Batch(System.nanoTime() + mIntervalNanos);
+                mBatches++;
+            }
+            Batch batch = mOpenBatch;
+            if (++batch.mSize >= mBatchSize) {
+                // Close the full batch and wake the rest of it.
+                mOpenBatch = null;
+                notifyAll();
+            }
+
+            // Wait for more threads to join the batch while earlier
+            // syncs occupy the disk, closing it once they've finished
+            // or its time is up.
+            for (long remaining;
+                 mOpenBatch == batch
+                     && mSyncing > 0
+                     && (remaining = batch.mDeadlineNanos
+                         - System.nanoTime()) > 0; ) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (mOpenBatch == batch) {
+                mOpenBatch = null;
+                notifyAll();
+            }
+            mSyncing++;
+        }
+
+        long start = System.nanoTime();
+        try {
+            syncFile(file);
+        } finally {
+            onBatchSynced(System.nanoTime() - start);
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record a sync of one file that took @a nanos nanoseconds.
+     */
+    private synchronized void onSynced(long nanos) {
+        mSyncs++;
+        mSyncNanos += nanos;
+    }
+
+    /**
+     * Record a sync of one file of a batch that took @a nanos
+     * nanoseconds, closing the open batch if it was the last sync in
+     * flight.
+     */
+    private synchronized void onBatchSynced(long nanos) {
+        onSynced(nanos);
+        if (--mSyncing == 0)
+            notifyAll();
+    }
+
+    /**
+     * Flush the bytes of @a file to the disk, which any descriptor of
+     * the file does, without changing its contents.
+     */
+    private static void syncFile(File file) throws IOException {
+        try (FileOutputStream outputStream =
+             new FileOutputStream(file, true)) {
+            outputStream.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Opens the HTTP connections that DownloadUtils uses to download
+ * images.  Implementations decide how connections are pooled, timed
+ * out, and secured, so an alternative HTTP client can be plugged in
+ * via DownloadUtils.setTransport() as long as it can present its
+ * requests as HttpURLConnections.
+ */
+public interface HttpTransport {
+    /**
+     * Create an unconnected HttpURLConnection for @a url, which the
+     * caller configures and then connects.  The caller closes the
+     * connection's input stream after reading the whole body so the
+     * connection can be reused, or calls disconnect() to discard it.
+     */
+    HttpURLConnection open(String url) throws IOException;
+}
@@ -0,0 +1,69 @@
+package vandy.mooc.downloader.utils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keeps the most recent latencies of some operation and reports
+ * their percentiles, e.g., so a threshold can be learned from recent
+ * history or the tail latency can be logged.
+ */
+public class LatencyTracker {
+    /**
+     * The most recent latencies in nanoseconds, as a ring buffer.
+     */
+    private final long[] mSamples;
+
+    /**
+     * Total number of latencies recorded.
+     */
+    private long mCount;
+
+    /**
+     * Constructor keeps the most recent @a capacity latencies.
+     */
+    public LatencyTracker(int capacity) {
+        mSamples = new long[capacity];
+    }
+
+    /**
+     * Record a latency of @a nanos nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        mSamples[(int) (mCount++ % mSamples.length)] = nanos;
+    }
+
+    /**
+     * @return The number of latencies that are kept.
+     */
+    public synchronized int size() {
+        return (int) Math.min(mCount, mSamples.length);
+    }
+
+    /**
+     * @return The given @a percentile (0-100) of the kept latencies
+     * in nanoseconds, or -1 if there are none.
+     */
+    public synchronized long getPercentile(double percentile) {
+        int size = size();
+        if (size == 0)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(mSamples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        return sorted[Math.max(0, Math.min(index, size - 1))];
+    }
+
+    /**
+     * @return A summary of the median and tail latencies.
+     */
+    public String getStats() {
+        return String.format(Locale.US,
+                             "p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms over %d",
+                             getPercentile(50) / 1e6,
+                             getPercentile(99) / 1e6,
+                             getPercentile(99.9) / 1e6,
+                             size());
+    }
+}
@@ -0,0 +1,292 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Properties;
+
+/**
+ * Keeps the bytes of an image that's being downloaded in a temporary
+ * file, along with a small journal that records the URL, the
+ * validator (ETag or Last-Modified) of the response, and how many
+ * bytes have been written.  If the download is interrupted, a later
+ * download of the same URL uses the journal to request only the
+ * remaining bytes with an HTTP Range request.
+ */
+public class PartialDownload {
+    /**
+     * Name of the hidden subdirectory of the image directory that
+     * holds the temporary files and journals.
+     */
+    private static final String PARTIAL_DIRECTORY = ".partial";
+
+    /**
+     * HTTP status code returned when a Range request can't be
+     * satisfied, which HttpURLConnection doesn't define.
+     */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Number of bytes written between updates of the journal.
+     */
+    private static final long CHECKPOINT_INTERVAL = 256 * 1024;
+
+    /**
+     * Keys used in the journal.
+     */
+    private static final String URL = "url";
+    private static final String VALIDATOR = "validator";
+    private static final String OFFSET = "offset";
+
+    /**
+     * The temporary file that holds the bytes downloaded so far.
+     */
+    private final File mPartFile;
+
+    /**
+     * The journal that describes mPartFile.
+     */
+    private final File mJournalFile;
+
+    /**
+     * The URL of the image.
+     */
+    private final String mUrl;
+
+    /**
+     * ETag or Last-Modified header of the response the bytes came
+     * from, or null if the download can't be resumed.
+     */
+    private String mValidator;
+
+    /**
+     * Number of bytes in mPartFile.
+     */
+    private long mOffset;
+
+    /**
+     * Value of mOffset when the journal was last written.
+     */
+    private long mCheckpointOffset;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    private PartialDownload(File imageFile,
+                            String url) {
+        File directory = new File(imageFile.getParentFile(),
+                                  PARTIAL_DIRECTORY);
+        mPartFile = new File(directory, imageFile.getName() + ".part");
+        mJournalFile = new File(directory, imageFile.getName() + ".journal");
+        mUrl = url;
+    }
+
+    /**
+     * Factory method that returns the partial download of @a url that
+     * will be stored in @a imageFile, recovering the bytes left by an
+     * interrupted download if its journal is intact.
+     */
+    public static PartialDownload open(File imageFile,
+                                       String url) {
+        PartialDownload partial = new PartialDownload(imageFile, url);
+        partial.recover();
+        return partial;
+    }
+
+    /**
+     * @return The temporary file that holds the downloaded bytes.
+     */
+    public File getFile() {
+        return mPartFile;
+    }
+
+    /**
+     * @return The number of bytes downloaded so far.
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return True if an interrupted download can be resumed.
+     */
+    public boolean isResumable() {
+        return mOffset > 0 && mValidator != null;
+    }
+
+    /**
+     * Ask for only the remaining bytes on @a connection if the
+     * download can be resumed.  The If-Range header makes the server
+     * send the whole image instead if it has changed.
+     */
+    public void addRangeTo(URLConnection connection) {
+        if (isResumable()) {
+            connection.setRequestProperty("Range",
+                                          "bytes=" + mOffset + "-");
+            connection.setRequestProperty("If-Range", mValidator);
+        }
+    }
+
+    /**
+     * Check whether a "206 Partial Content" response on @a connection
+     * continues at the current offset of a resumable download.
+     */
+    public boolean isContinuation(URLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        return isResumable()
+            && contentRange != null
+            && contentRange.startsWith("bytes " + mOffset + "-");
+    }
+
+    /**
+     * Check whether the response on @a connection, which was prepared
+     * by addRangeTo(), rejected the range it asked for, i.e., it's a
+     * "416 Range Not Satisfiable" or a "206 Partial Content" that
+     * doesn't continue at the current offset.  A request without a
+     * range can't have one rejected, so such a response to it is an
+     * ordinary failure rather than a reason to start over.
+     */
+    public boolean isRangeRejected(HttpURLConnection connection)
+        throws IOException {
+        if (!isResumable())
+            return false;
+
+        int responseCode = connection.getResponseCode();
+        return responseCode == HTTP_RANGE_NOT_SATISFIABLE
+            || (responseCode == HttpURLConnection.HTTP_PARTIAL
+                && !isContinuation(connection));
+    }
+
+    /**
+     * Start receiving the body of the response on @a connection,
+     * either appending to the bytes downloaded so far (if @a resume
+     * is true) or starting over.
+     */
+    public void start(URLConnection connection,
+                      boolean resume) throws IOException {
+        if (!resume) {
+            mOffset = 0;
+            mPartFile.getParentFile().mkdirs();
+            new FileOutputStream(mPartFile).close();
+        }
+
+        // Prefer a strong ETag since weak ones can't be used with
+        // If-Range.
+        String eTag = connection.getHeaderField("ETag");
+        mValidator = eTag != null && !eTag.startsWith("W/")
+            ? eTag
+            : connection.getHeaderField("Last-Modified");
+        checkpoint();
+    }
+
+    /**
+     * Start receiving an image whose bytes are written at their own
+     * positions of the file by several responses validated by
+     * @a validator, e.g., the segments of a SegmentedDownload, so
+     * onWritten() is only told about the bytes at the start of the
+     * file that were written without a gap.
+     */
+    public void start(String validator) throws IOException {
+        mOffset = 0;
+        mValidator = validator;
+        checkpoint();
+    }
+
+    /**
+     * Record that @a count more bytes were appended to the file,
+     * updating the journal periodically.
+     */
+    public void onWritten(long count) throws IOException {
+        mOffset += count;
+        if (mOffset - mCheckpointOffset >= CHECKPOINT_INTERVAL)
+            checkpoint();
+    }
+
+    /**
+     * Write the journal so an interrupted download can resume from
+     * the current offset.
+     */
+    public void checkpoint() throws IOException {
+        if (mValidator == null) {
+            // The download can't be resumed, so don't keep a journal.
+            mJournalFile.delete();
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(URL, mUrl);
+        properties.setProperty(VALIDATOR, mValidator);
+        properties.setProperty(OFFSET, String.valueOf(mOffset));
+
+        mJournalFile.getParentFile().mkdirs();
+        try (OutputStream outputStream =
+             new FileOutputStream(mJournalFile)) {
+            properties.store(outputStream, null);
+        }
+        mCheckpointOffset = mOffset;
+    }
+
+    /**
+     * Move the completed file to @a imageFile and delete the journal.
+     *
+     * @return True if the file was moved.
+     */
+    public boolean commit(File imageFile) {
+        mJournalFile.delete();
+        return mPartFile.renameTo(imageFile);
+    }
+
+    /**
+     * Delete the temporary file and the journal.
+     */
+    public void discard() {
+        mPartFile.delete();
+        mJournalFile.delete();
+        mOffset = 0;
+        mCheckpointOffset = 0;
+        mValidator = null;
+    }
+
+    /**
+     * Recover the state left by an interrupted download of mUrl,
+     * discarding it if the journal is missing, belongs to a different
+     * URL, or claims more bytes than the file holds.
+     */
+    private void recover() {
+        if (!mJournalFile.exists() || !mPartFile.exists()) {
+            discard();
+            return;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream inputStream = new FileInputStream(mJournalFile)) {
+            properties.load(inputStream);
+            long offset = Long.parseLong(properties.getProperty(OFFSET));
+
+            if (!mUrl.equals(properties.getProperty(URL))
+                || offset > mPartFile.length()) {
+                discard();
+                return;
+            }
+
+            // Drop any bytes written after the last checkpoint, since
+            // they may not have reached the disk intact.
+            try (RandomAccessFile file =
+                 new RandomAccessFile(mPartFile, "rw")) {
+                file.setLength(offset);
+            }
+
+            mValidator = properties.getProperty(VALIDATOR);
+            mOffset = offset;
+            mCheckpointOffset = offset;
+        } catch (IOException | RuntimeException e) {
+            discard();
+        }
+    }
+}
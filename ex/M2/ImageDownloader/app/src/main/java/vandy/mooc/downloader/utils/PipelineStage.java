@@ -0,0 +1,167 @@
+package vandy.mooc.downloader.utils;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a DownloadPipeline, which runs its work in its own
+ * fixed pool of threads.  At most threads + queueCapacity pieces of
+ * work are admitted at a time, so submit() blocks when the stage
+ * falls behind, which in turn stalls the stage that feeds it rather
+ * than letting work pile up in memory.  The stage keeps counters that
+ * show where a pipeline spends its time.
+ */
+public class PipelineStage {
+    /**
+     * The name of the stage, which is used for its threads and stats.
+     */
+    private final String mName;
+
+    /**
+     * Runs the work of the stage.
+     */
+    private final ExecutorService mExecutor;
+
+    /**
+     * Limits the work that's queued or running in the stage.
+     */
+    private final Semaphore mPermits;
+
+    /**
+     * Number of pieces of work waiting for a thread.
+     */
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+    /**
+     * Counters that measure the stage.
+     */
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mBusyNanos = new AtomicLong();
+    private final AtomicLong mWaitNanos = new AtomicLong();
+    private final AtomicLong mBlockedNanos = new AtomicLong();
+
+    /**
+     * Constructor starts @a threads threads and admits up to
+     * @a queueCapacity pieces of work beyond those that are running.
+     */
+    public PipelineStage(String name,
+                         int threads,
+                         int queueCapacity) {
+        mName = name;
+        mPermits = new Semaphore(threads + queueCapacity);
+        AtomicInteger count = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool
+            (threads,
+             runnable -> {
+                Thread thread =
+                    new Thread(runnable,
+                               "PipelineStage-"
+                               + name
+                               + "-"
+                               + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Run @a work in one of the stage's threads, blocking the calling
+     * thread while the stage is full.
+     *
+     * @return A future that completes with the result of @a work.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        long start = System.nanoTime();
+        try {
+            mPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        long queued = System.nanoTime();
+        mBlockedNanos.addAndGet(queued - start);
+
+        int depth = mQueueDepth.incrementAndGet();
+        mMaxQueueDepth.accumulateAndGet(depth, Math::max);
+
+        mExecutor.execute(() -> {
+                mQueueDepth.decrementAndGet();
+                long started = System.nanoTime();
+                mWaitNanos.addAndGet(started - queued);
+                try {
+                    T result = work.call();
+                    mCompleted.incrementAndGet();
+                    future.complete(result);
+                } catch (Throwable t) {
+                    mFailed.incrementAndGet();
+                    future.completeExceptionally(t);
+                } finally {
+                    mBusyNanos.addAndGet(System.nanoTime() - started);
+                    mPermits.release();
+                }
+            });
+        return future;
+    }
+
+    /**
+     * @return The number of pieces of work waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return The largest number of pieces of work that have waited
+     * for a thread at once.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * @return The number of pieces of work that completed normally.
+     */
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /**
+     * @return The number of pieces of work that threw an exception.
+     */
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    /**
+     * @return A summary of the stage's counters: how much work it
+     * has done, how long that work ran and waited for a thread, how
+     * long submitters were blocked because the stage was full, and how
+     * deep its queue is.
+     */
+    public String getStats() {
+        long done = Math.max(mCompleted.get() + mFailed.get(), 1);
+        return String.format(Locale.US,
+                             "%s: %d completed, %d failed, "
+                             + "%.1f ms average busy, %.1f ms average wait, "
+                             + "%d ms blocked, depth %d (max %d)",
+                             mName,
+                             mCompleted.get(),
+                             mFailed.get(),
+                             mBusyNanos.get() / 1e6 / done,
+                             mWaitNanos.get() / 1e6 / done,
+                             mBlockedNanos.get() / 1000000,
+                             mQueueDepth.get(),
+                             mMaxQueueDepth.get());
+    }
+}
@@ -0,0 +1,129 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The default HttpTransport, which is based on the platform's
+ * HttpURLConnection.  The platform keeps idle connections to each
+ * host in a pool and reuses them for later requests, which avoids a
+ * TCP (and TLS) handshake per image.  Connections are only pooled if
+ * they use the same SSLSocketFactory, so this transport shares one
+ * factory whose client session cache also lets new TLS connections
+ * resume an earlier session with an abbreviated handshake.
+ *
+ * The pool keeps up to five idle connections by default, which is
+ * enough for the few connections per host that HostScheduler allows.
+ * The platform reads the limit from the "http.maxConnections" system
+ * property only when it creates the pool, i.e., before the app's
+ * first connection, so this transport doesn't offer to change it.
+ */
+public class UrlConnectionTransport
+       implements HttpTransport {
+    /**
+     * Default connect and read timeouts in milliseconds.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+
+    /**
+     * Number of TLS sessions kept for resumption.
+     */
+    private static final int TLS_SESSION_CACHE_SIZE = 64;
+
+    /**
+     * How long (in seconds) a TLS session can be resumed.
+     */
+    private static final int TLS_SESSION_TIMEOUT = 60 * 60;
+
+    /**
+     * The SSLSocketFactory shared by all HTTPS connections.
+     */
+    private static final SSLSocketFactory sSocketFactory =
+        makeSocketFactory();
+
+    /**
+     * Timeout in milliseconds for establishing a connection.
+     */
+    private final int mConnectTimeout;
+
+    /**
+     * Timeout in milliseconds for each read from a connection.
+     */
+    private final int mReadTimeout;
+
+    /**
+     * True if connections are returned to the pool after use.
+     */
+    private final boolean mKeepAlive;
+
+    /**
+     * Constructor uses the default timeouts and reuses connections.
+     */
+    public UrlConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, true);
+    }
+
+    /**
+     * Constructor initializes the fields.
+     *
+     * @param connectTimeout  milliseconds to wait for a connection.
+     * @param readTimeout     milliseconds to wait for each read.
+     * @param keepAlive       false to close each connection after
+     *                        one request, e.g., for comparison.
+     */
+    public UrlConnectionTransport(int connectTimeout,
+                                  int readTimeout,
+                                  boolean keepAlive) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * Create an unconnected HttpURLConnection for @a url.
+     */
+    @Override
+    public HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection =
+            (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+
+        if (!mKeepAlive)
+            connection.setRequestProperty("Connection", "close");
+
+        if (connection instanceof HttpsURLConnection
+            && sSocketFactory != null)
+            ((HttpsURLConnection) connection)
+                .setSSLSocketFactory(sSocketFactory);
+
+        return connection;
+    }
+
+    /**
+     * Make the shared SSLSocketFactory, whose client session cache
+     * allows TLS sessions to be resumed.
+     *
+     * @return The factory, or null to use the platform default.
+     */
+    private static SSLSocketFactory makeSocketFactory() {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            sslContext.getClientSessionContext()
+                .setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sslContext.getClientSessionContext()
+                .setSessionTimeout(TLS_SESSION_TIMEOUT);
+            return sslContext.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+}
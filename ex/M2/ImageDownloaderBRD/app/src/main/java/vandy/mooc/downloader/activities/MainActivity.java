@@ -24,6 +24,7 @@ import android.widget.EditText;
 import java.io.File;
 
 import vandy.mooc.downloader.R;
+import vandy.mooc.downloader.utils.ImageCache;
 import vandy.mooc.downloader.utils.UiUtils;
 import vandy.mooc.downloader.utils.UriUtils;
 
@@ -317,6 +318,11 @@ public class MainActivity
         public void onReceive(Context context,
                               Intent uriData) {
             Log.d(TAG, "onReceive() called.");
+
+            // Log how effective the image cache has been so far.
+            Log.d(TAG,
+                  "image cache "
+                  + ImageCache.getInstance(context).getStats());
             viewImage(context, uriData);
         }
 
@@ -0,0 +1,135 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.function.IntSupplier;
+
+/**
+ * Shapes the bandwidth used by downloads with token buckets: one
+ * shared by all downloads and one per priority class.  The limits
+ * can be changed at any time, which takes effect on the transfers in
+ * progress, so, e.g., background prefetches can be held to the
+ * capacity left over by an interactive download while it runs.  By
+ * default nothing is limited.
+ */
+public class BandwidthLimiter {
+    /**
+     * The bucket shared by all downloads.
+     */
+    private static final TokenBucket sGlobal =
+        new TokenBucket(TokenBucket.UNLIMITED);
+
+    /**
+     * The bucket of each priority class, indexed by
+     * DownloadOptions.priority.
+     */
+    private static final TokenBucket[] sClasses = {
+        new TokenBucket(TokenBucket.UNLIMITED),
+        new TokenBucket(TokenBucket.UNLIMITED)
+    };
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private BandwidthLimiter() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Limit all downloads together to @a bytesPerSecond, or don't
+     * limit them if that's TokenBucket.UNLIMITED.
+     */
+    public static void setGlobalRate(long bytesPerSecond) {
+        sGlobal.setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return The limit of all downloads together in bytes per
+     * second, or TokenBucket.UNLIMITED.
+     */
+    public static long getGlobalRate() {
+        return sGlobal.getRate();
+    }
+
+    /**
+     * Limit the downloads of the given @a priority class to
+     * @a bytesPerSecond, or don't limit them if that's
+     * TokenBucket.UNLIMITED.
+     */
+    public static void setRate(int priority,
+                               long bytesPerSecond) {
+        getBucket(priority).setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return The limit of the downloads of the given @a priority
+     * class in bytes per second, or TokenBucket.UNLIMITED.
+     */
+    public static long getRate(int priority) {
+        return getBucket(priority).getRate();
+    }
+
+    /**
+     * Wrap the @a inputStream of a download of the given @a priority
+     * class so its reads are shaped by that class's limit and the
+     * global one.
+     */
+    public static InputStream wrap(InputStream inputStream,
+                                   int priority) {
+        return new ThrottledInputStream(inputStream,
+                                        getBucket(priority),
+                                        sGlobal);
+    }
+
+    /**
+     * Wrap the @a inputStream of a download whose priority class
+     * @a priority returns, which is asked again before each read, so
+     * the download is shaped by its new class if its priority is
+     * raised while it runs.
+     */
+    public static InputStream wrap(InputStream inputStream,
+                                   IntSupplier priority) {
+        return new ThrottledInputStream(inputStream,
+                                        () -> new TokenBucket[] {
+                                            getBucket(priority.getAsInt()),
+                                            sGlobal
+                                        });
+    }
+
+    /**
+     * @return A summary of the limits and the bytes downloaded by
+     * each priority class.
+     */
+    public static String getStats() {
+        StringBuilder stats =
+            new StringBuilder(String.format(Locale.US,
+                                            "bandwidth: %d bytes at %s",
+                                            sGlobal.getByteCount(),
+                                            format(sGlobal.getRate())));
+        for (int i = 0; i < sClasses.length; i++)
+            stats.append(String.format(Locale.US,
+                                       "; class %d: %d bytes at %s",
+                                       i,
+                                       sClasses[i].getByteCount(),
+                                       format(sClasses[i].getRate())));
+        return stats.toString();
+    }
+
+    /**
+     * @return The bucket of the given @a priority class, treating
+     * unknown classes as the least urgent one.
+     */
+    private static TokenBucket getBucket(int priority) {
+        return sClasses[Math.max(0, Math.min(priority,
+                                             sClasses.length - 1))];
+    }
+
+    /**
+     * @return A readable form of @a rate.
+     */
+    private static String format(long rate) {
+        return rate == TokenBucket.UNLIMITED
+            ? "no limit"
+            : rate + " bytes/sec";
+    }
+}
@@ -0,0 +1,147 @@
+package vandy.mooc.downloader.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This utility class maintains a pool of fixed-size buffers that are
+ * used for every copy of downloaded bytes, which avoids allocating a
+ * new buffer for each download.  Each thread keeps a few idle
+ * buffers of its own, so a worker that downloads one image after
+ * another reuses the same buffer without any synchronization, and
+ * buffers released beyond that go to a small shared pool.  The
+ * buffers are heap-allocated so their backing array can be passed to
+ * InputStream.read().
+ */
+public class BufferPool {
+    /**
+     * Default size of each buffer in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of idle buffers kept by each thread, which
+     * covers a thread that holds a couple of buffers at once.
+     */
+    private static final int MAX_THREAD_BUFFERS = 2;
+
+    /**
+     * Maximum number of idle buffers kept in the shared pool.
+     */
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    /**
+     * Size of each buffer in bytes.
+     */
+    private static volatile int sBufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Idle buffers that are available for reuse by the current thread.
+     */
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>> sThreadPool =
+        new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+            @Override
+            protected ArrayDeque<ByteBuffer> initialValue() {
+                return new ArrayDeque<>(MAX_THREAD_BUFFERS);
+            }
+        };
+
+    /**
+     * Idle buffers that are available for reuse by any thread.
+     */
+    private static final Queue<ByteBuffer> sPool =
+        new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of idle buffers in the shared pool.
+     */
+    private static final AtomicInteger sPooledCount =
+        new AtomicInteger();
+
+    /**
+     * Number of buffers allocated because none could be reused.
+     */
+    private static final AtomicLong sAllocationCount =
+        new AtomicLong();
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private BufferPool() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Set the size of the buffers to @a bufferSize bytes, e.g., to
+     * use larger buffers on a fast link.  Buffers of the old size are
+     * dropped as they're released.
+     */
+    public static void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize " + bufferSize);
+        sBufferSize = bufferSize;
+    }
+
+    /**
+     * @return The size of the buffers in bytes.
+     */
+    public static int getBufferSize() {
+        return sBufferSize;
+    }
+
+    /**
+     * @return The number of buffers allocated so far, which stops
+     * growing once the pool holds enough buffers for the workload.
+     */
+    public static long getAllocationCount() {
+        return sAllocationCount.get();
+    }
+
+    /**
+     * Obtain a cleared buffer from the pool, allocating a new one if
+     * the pool is empty.
+     */
+    public static ByteBuffer acquire() {
+        int bufferSize = sBufferSize;
+
+        // Prefer a buffer released by this thread.
+        ByteBuffer buffer = sThreadPool.get().poll();
+        if (buffer == null) {
+            buffer = sPool.poll();
+            if (buffer != null)
+                sPooledCount.decrementAndGet();
+        }
+
+        if (buffer == null
+            || buffer.capacity() != bufferSize) {
+            sAllocationCount.incrementAndGet();
+            return ByteBuffer.allocate(bufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a @a buffer obtained from acquire() to the pool.  The
+     * buffer must not be used by the caller afterwards.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null
+            || buffer.capacity() != sBufferSize)
+            return;
+
+        ArrayDeque<ByteBuffer> threadPool = sThreadPool.get();
+        if (threadPool.size() < MAX_THREAD_BUFFERS)
+            threadPool.push(buffer);
+        else if (sPooledCount.incrementAndGet() <= MAX_POOLED_BUFFERS)
+            sPool.offer(buffer);
+        else
+            // The pool is full, so let the buffer be garbage collected.
+            sPooledCount.decrementAndGet();
+    }
+}
@@ -0,0 +1,96 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An HttpTransport that keeps track of the connections it opens for
+ * one download so the download can be cancelled from another thread.
+ * Cancelling disconnects every connection, which closes its socket
+ * and makes a read that's blocked in the middle of a transfer fail
+ * right away, and makes any later open() fail too.
+ */
+public class CancellableTransport
+       implements HttpTransport {
+    /**
+     * The transport that actually opens the connections.
+     */
+    private final HttpTransport mTransport;
+
+    /**
+     * The connections opened so far.
+     */
+    private final List<HttpURLConnection> mConnections = new ArrayList<>();
+
+    /**
+     * True once cancel() has been called.
+     */
+    private boolean mCancelled;
+
+    /**
+     * Constructor initializes the field.
+     */
+    public CancellableTransport(HttpTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Open a connection to @a url with the wrapped transport.
+     *
+     * @throws InterruptedIOException if the download has been
+     *         cancelled.
+     */
+    @Override
+    public HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = mTransport.open(url);
+        synchronized (this) {
+            if (!mCancelled) {
+                mConnections.add(connection);
+                return connection;
+            }
+        }
+        connection.disconnect();
+        throw new InterruptedIOException("download cancelled");
+    }
+
+    /**
+     * Cancel the download by disconnecting all its connections.
+     */
+    public void cancel() {
+        List<HttpURLConnection> connections;
+        synchronized (this) {
+            mCancelled = true;
+            connections = new ArrayList<>(mConnections);
+            mConnections.clear();
+            notifyAll();
+        }
+        for (HttpURLConnection connection : connections)
+            connection.disconnect();
+    }
+
+    /**
+     * Block for up to @a millis milliseconds or until cancel() is
+     * called, e.g., to wait before retrying the download.
+     *
+     * @return True if cancel() has been called.
+     */
+    public synchronized boolean awaitCancel(long millis)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        for (long remaining = millis;
+             !mCancelled && remaining > 0;
+             remaining = deadline - System.currentTimeMillis())
+            wait(remaining);
+        return mCancelled;
+    }
+
+    /**
+     * @return True if cancel() has been called.
+     */
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+}
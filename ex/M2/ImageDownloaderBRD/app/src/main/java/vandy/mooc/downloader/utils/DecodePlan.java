@@ -0,0 +1,178 @@
+package vandy.mooc.downloader.utils;
+
+import java.util.Locale;
+
+/**
+ * How an image of a given size should be decoded so that the Bitmap
+ * is no larger than needed for a target size and fits within a
+ * memory budget.  The plan chooses a power-of-two sample size (which
+ * decoders apply while decoding, so the full-size pixels are never
+ * allocated) and whether 2-byte RGB_565 pixels can be used instead of
+ * 4-byte ARGB_8888 pixels.
+ */
+public class DecodePlan {
+    /**
+     * Value of a target dimension that doesn't constrain the plan.
+     */
+    public static final int ANY_SIZE = 0;
+
+    /**
+     * Bytes per pixel of ARGB_8888 and RGB_565 Bitmaps.
+     */
+    static final int ARGB_8888_BYTES = 4;
+    static final int RGB_565_BYTES = 2;
+
+    /**
+     * Dimensions of the encoded image.
+     */
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+
+    /**
+     * The factor each dimension is divided by while decoding.
+     */
+    private final int mSampleSize;
+
+    /**
+     * Bytes per pixel of the decoded Bitmap.
+     */
+    private final int mBytesPerPixel;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    private DecodePlan(int sourceWidth,
+                       int sourceHeight,
+                       int sampleSize,
+                       int bytesPerPixel) {
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mSampleSize = sampleSize;
+        mBytesPerPixel = bytesPerPixel;
+    }
+
+    /**
+     * Factory method that plans how to decode a @a sourceWidth by
+     * @a sourceHeight image for display at @a targetWidth by
+     * @a targetHeight (either of which may be ANY_SIZE) using no more
+     * than @a byteBudget bytes.  The sample size is the largest that
+     * keeps the Bitmap at least as big as the target.  If the Bitmap
+     * would still exceed the budget, an @a opaque image (e.g., a
+     * JPEG) uses RGB_565 pixels, and then the sample size is doubled
+     * until it fits.
+     */
+    public static DecodePlan plan(int sourceWidth,
+                                  int sourceHeight,
+                                  boolean opaque,
+                                  int targetWidth,
+                                  int targetHeight,
+                                  long byteBudget) {
+        int sampleSize = 1;
+        if (targetWidth != ANY_SIZE || targetHeight != ANY_SIZE)
+            // Halve the dimensions while both stay at least as big
+            // as the target.
+            while ((targetWidth == ANY_SIZE
+                    || sourceWidth / (sampleSize * 2) >= targetWidth)
+                   && (targetHeight == ANY_SIZE
+                       || sourceHeight / (sampleSize * 2) >= targetHeight))
+                sampleSize *= 2;
+
+        int bytesPerPixel = ARGB_8888_BYTES;
+        if (opaque
+            && byteCount(sourceWidth, sourceHeight, sampleSize, bytesPerPixel)
+               > byteBudget)
+            bytesPerPixel = RGB_565_BYTES;
+
+        while (byteCount(sourceWidth, sourceHeight, sampleSize, bytesPerPixel)
+               > byteBudget
+               && (sourceWidth > sampleSize || sourceHeight > sampleSize))
+            sampleSize *= 2;
+
+        return new DecodePlan(sourceWidth,
+                              sourceHeight,
+                              sampleSize,
+                              bytesPerPixel);
+    }
+
+    /**
+     * @return The value of BitmapFactory.Options.inSampleSize.
+     */
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * @return True if the Bitmap should use RGB_565 pixels rather
+     * than ARGB_8888 pixels.
+     */
+    public boolean useRgb565() {
+        return mBytesPerPixel == RGB_565_BYTES;
+    }
+
+    /**
+     * @return The width of the decoded Bitmap.
+     */
+    public int getWidth() {
+        return scale(mSourceWidth, mSampleSize);
+    }
+
+    /**
+     * @return The height of the decoded Bitmap.
+     */
+    public int getHeight() {
+        return scale(mSourceHeight, mSampleSize);
+    }
+
+    /**
+     * @return The number of bytes allocated for the decoded Bitmap's
+     * pixels, which is the peak heap used by the decode.
+     */
+    public long getByteCount() {
+        return byteCount(mSourceWidth, mSourceHeight, mSampleSize,
+                         mBytesPerPixel);
+    }
+
+    /**
+     * @return The number of bytes the Bitmap would need if the image
+     * were decoded without a plan.
+     */
+    public long getFullByteCount() {
+        return byteCount(mSourceWidth, mSourceHeight, 1, ARGB_8888_BYTES);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                             "%dx%d at 1/%d as %s = %dx%d (%d bytes instead of %d)",
+                             mSourceWidth,
+                             mSourceHeight,
+                             mSampleSize,
+                             useRgb565() ? "RGB_565" : "ARGB_8888",
+                             getWidth(),
+                             getHeight(),
+                             getByteCount(),
+                             getFullByteCount());
+    }
+
+    /**
+     * @return The number of bytes of a Bitmap decoded from a
+     * @a width by @a height image at @a sampleSize.
+     */
+    private static long byteCount(int width,
+                                  int height,
+                                  int sampleSize,
+                                  int bytesPerPixel) {
+        return (long) scale(width, sampleSize)
+            * scale(height, sampleSize)
+            * bytesPerPixel;
+    }
+
+    /**
+     * @return The @a dimension divided by @a sampleSize, rounded up
+     * as decoders do.
+     */
+    private static int scale(int dimension,
+                             int sampleSize) {
+        return (dimension + sampleSize - 1) / sampleSize;
+    }
+}
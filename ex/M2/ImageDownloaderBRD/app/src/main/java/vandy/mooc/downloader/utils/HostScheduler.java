@@ -0,0 +1,310 @@
+package vandy.mooc.downloader.utils;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Queues work for downloads by the host it downloads from and hands
+ * it out fairly: no host has more than a fixed number of downloads
+ * in flight, and hosts with queued work take turns in round-robin
+ * order, so a batch of URLs from one slow host can't occupy every
+ * worker while URLs from other hosts wait.  If a comparator is given,
+ * work with a better priority is still handed out first, and hosts
+ * take turns among the work of equal priority.
+ *
+ * Work for a null host isn't subject to the per-host limit.
+ */
+public class HostScheduler<T> {
+    /**
+     * Default number of downloads from one host that may be in
+     * flight at once.
+     */
+    public static final int DEFAULT_MAX_PER_HOST = 4;
+
+    /**
+     * A queued piece of work.
+     */
+    private static class Entry<T> {
+        final T mItem;
+        final long mSequence;
+
+        Entry(T item,
+              long sequence) {
+            mItem = item;
+            mSequence = sequence;
+        }
+    }
+
+    /**
+     * The work queued for and in flight from one host.
+     */
+    private static class Host<T> {
+        final String mName;
+        final PriorityQueue<Entry<T>> mQueue;
+        int mInFlight;
+
+        Host(String name,
+             Comparator<Entry<T>> order) {
+            mName = name;
+            mQueue = new PriorityQueue<>(11, order);
+        }
+    }
+
+    /**
+     * Maximum number of downloads from one host that may be in
+     * flight at once.
+     */
+    private int mMaxPerHost;
+
+    /**
+     * Maximum number of queued pieces of work, beyond which put()
+     * blocks.
+     */
+    private final int mCapacity;
+
+    /**
+     * Orders work by priority, or null if all work has the same
+     * priority.
+     */
+    private final Comparator<? super T> mPriority;
+
+    /**
+     * The hosts with work queued or in flight, in the order in which
+     * they take turns.  A host moves to the back after its turn.
+     */
+    private final LinkedHashMap<String, Host<T>> mHosts =
+        new LinkedHashMap<>();
+
+    /**
+     * Number of queued pieces of work.
+     */
+    private int mQueued;
+
+    /**
+     * Order in which work was queued, which breaks ties between work
+     * of equal priority for the same host.
+     */
+    private long mNextSequence;
+
+    /**
+     * Constructor allows up to @a maxPerHost downloads from each host
+     * at once and up to @a capacity queued pieces of work, which are
+     * ordered by @a priority if it's not null.
+     */
+    public HostScheduler(int maxPerHost,
+                         int capacity,
+                         Comparator<? super T> priority) {
+        if (maxPerHost < 1)
+            throw new IllegalArgumentException("maxPerHost must be positive");
+        mMaxPerHost = maxPerHost;
+        mCapacity = capacity;
+        mPriority = priority;
+    }
+
+    /**
+     * Allow up to @a maxPerHost downloads from each host at once,
+     * which takes effect for the work that hasn't been taken yet.
+     */
+    public synchronized void setMaxPerHost(int maxPerHost) {
+        if (maxPerHost < 1)
+            throw new IllegalArgumentException("maxPerHost must be positive");
+        mMaxPerHost = maxPerHost;
+        notifyAll();
+    }
+
+    /**
+     * @return The lowercased host of @a url, or null if it has none.
+     */
+    public static String hostOf(String url) {
+        try {
+            String host = new URI(url).getHost();
+            return host != null ? host.toLowerCase(Locale.US) : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Queue @a item for @a host, blocking while the queue is full.
+     */
+    public synchronized void put(String host,
+                                 T item) throws InterruptedException {
+        while (!offer(host, item))
+            wait();
+    }
+
+    /**
+     * Queue @a item for @a host unless the queue is full.
+     *
+     * @return True if @a item was queued.
+     */
+    public synchronized boolean offer(String host,
+                                      T item) {
+        if (mQueued >= mCapacity)
+            return false;
+
+        Host<T> entry = mHosts.get(host);
+        if (entry == null) {
+            entry = new Host<>(host, this::compareWithinHost);
+            mHosts.put(host, entry);
+        }
+        entry.mQueue.add(new Entry<>(item, mNextSequence++));
+        mQueued++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Take the next piece of work whose host has room for another
+     * download, counting it as in flight until onFinished() is called
+     * for its host.
+     *
+     * @return The work, or null if there's none that can start now.
+     */
+    public synchronized T poll() {
+        Host<T> best = null;
+        for (Host<T> host : mHosts.values())
+            if (!host.mQueue.isEmpty()
+                && (host.mName == null || host.mInFlight < mMaxPerHost)
+                && (best == null
+                    || comparePriority(host.mQueue.peek(),
+                                       best.mQueue.peek()) < 0))
+                best = host;
+
+        if (best == null)
+            return null;
+
+        Entry<T> entry = best.mQueue.poll();
+        best.mInFlight++;
+        mQueued--;
+
+        // Let the other hosts go first next time.
+        mHosts.remove(best.mName);
+        mHosts.put(best.mName, best);
+
+        notifyAll();
+        return entry.mItem;
+    }
+
+    /**
+     * Block until there's work whose host has room for another
+     * download, then take it like poll().
+     */
+    public synchronized T take() throws InterruptedException {
+        T item;
+        while ((item = poll()) == null)
+            wait();
+        return item;
+    }
+
+    /**
+     * Remove @a item from the queue if it hasn't been taken yet.
+     *
+     * @return True if it was removed.
+     */
+    public synchronized boolean remove(T item) {
+        for (Iterator<Host<T>> hosts = mHosts.values().iterator();
+             hosts.hasNext(); ) {
+            Host<T> host = hosts.next();
+            for (Iterator<Entry<T>> entries = host.mQueue.iterator();
+                 entries.hasNext(); )
+                if (entries.next().mItem == item) {
+                    entries.remove();
+                    mQueued--;
+                    if (host.mQueue.isEmpty() && host.mInFlight == 0)
+                        hosts.remove();
+                    notifyAll();
+                    return true;
+                }
+        }
+        return false;
+    }
+
+    /**
+     * Record that a download from @a host that was taken from the
+     * queue has finished, making room for another.
+     */
+    public synchronized void onFinished(String host) {
+        Host<T> entry = mHosts.get(host);
+        if (entry == null || entry.mInFlight == 0)
+            return;
+
+        entry.mInFlight--;
+        if (entry.mQueue.isEmpty() && entry.mInFlight == 0)
+            mHosts.remove(host);
+        notifyAll();
+    }
+
+    /**
+     * @return The number of queued pieces of work.
+     */
+    public synchronized int size() {
+        return mQueued;
+    }
+
+    /**
+     * @return The number of downloads from @a host in flight.
+     */
+    public synchronized int getInFlightCount(String host) {
+        Host<T> entry = mHosts.get(host);
+        return entry != null ? entry.mInFlight : 0;
+    }
+
+    /**
+     * @return The number of pieces of work queued for @a host.
+     */
+    public synchronized int getQueuedCount(String host) {
+        Host<T> entry = mHosts.get(host);
+        return entry != null ? entry.mQueue.size() : 0;
+    }
+
+    /**
+     * @return A summary of the downloads in flight and queued for
+     * each host.
+     */
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder("hosts (max ")
+            .append(mMaxPerHost)
+            .append(" each):");
+        if (mHosts.isEmpty())
+            stats.append(" idle");
+        for (Map.Entry<String, Host<T>> entry : mHosts.entrySet())
+            stats.append(' ')
+                .append(entry.getKey() != null ? entry.getKey() : "(none)")
+                .append(' ')
+                .append(entry.getValue().mInFlight)
+                .append(" in flight/")
+                .append(entry.getValue().mQueue.size())
+                .append(" queued;");
+        return stats.toString();
+    }
+
+    /**
+     * Order work queued for the same host by priority and then by
+     * arrival.
+     */
+    private int compareWithinHost(Entry<T> a,
+                                  Entry<T> b) {
+        int result = comparePriority(a, b);
+        return result != 0
+            ? result
+            : Long.compare(a.mSequence, b.mSequence);
+    }
+
+    /**
+     * Compare the priorities of @a a and @a b, ignoring their
+     * arrival so hosts take turns among work of equal priority.
+     */
+    private int comparePriority(Entry<T> a,
+                                Entry<T> b) {
+        return mPriority != null
+            ? mPriority.compare(a.mItem, b.mItem)
+            : 0;
+    }
+}
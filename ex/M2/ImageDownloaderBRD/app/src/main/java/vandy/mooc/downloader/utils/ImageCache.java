@@ -0,0 +1,273 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.net.Uri;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * A cache of downloaded images that is keyed by URL, or for a
+ * re-encoded image by its URL and re-encoding options (see
+ * DownloadUtils.keyOf()), so the original and re-encoded images of a
+ * URL are cached separately.  The cache is the ImageStore in the
+ * image directory, whose StorageManager deletes the least recently
+ * requested images, i.e., those least recently stored or returned
+ * by getFile() (and their rows in the MediaStore), in the background
+ * when they exceed a byte budget.
+ *
+ * There's no tier of decoded Bitmaps, since the activities display
+ * each image by handing its file to the Gallery app, so nothing in
+ * this process would read it.  The cache instead owns the BitmapPool
+ * that the re-encoding path decodes into, which is emptied, along
+ * with the StorageManager's index, when Android reports memory
+ * pressure via onTrimMemory().
+ */
+public class ImageCache
+       implements ComponentCallbacks2 {
+    /**
+     * Used for debugging.
+     */
+    private final static String TAG =
+        ImageCache.class.getCanonicalName();
+
+    /**
+     * Default number of bytes of image files kept by the cache.
+     */
+    public static final long DEFAULT_DISK_BUDGET = 64 * 1024 * 1024;
+
+    /**
+     * How long (in milliseconds) a cached file is considered fresh
+     * enough to be returned without downloading it again if the
+     * server didn't specify a lifetime or validators.
+     */
+    public static final long DEFAULT_FRESHNESS = 60 * 60 * 1000;
+
+    /**
+     * Fraction of the app's memory class used by the Bitmap pool.
+     */
+    private static final int POOL_FRACTION = 16;
+
+    /**
+     * The singleton instance, which is created lazily.
+     */
+    private static ImageCache sInstance;
+
+    /**
+     * Bitmaps that the re-encoding path is done with, whose memory is
+     * reused to decode other images.
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * The context used to remove evicted images from the MediaStore.
+     */
+    private final Context mContext;
+
+    /**
+     * The images in the image store.
+     */
+    private final ImageStore mStore;
+
+    /**
+     * Keeps the image store within its byte budget.
+     */
+    private final StorageManager mStorage;
+
+    /**
+     * Counters that measure the effectiveness of the cache.
+     */
+    private long mDiskHits;
+    private long mDiskMisses;
+    private long mDiskRevalidations;
+    private long mDiskBytesServed;
+
+    /**
+     * Return the singleton ImageCache, creating it if necessary.
+     */
+    public static synchronized ImageCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new ImageCache(appContext);
+
+            // Receive onTrimMemory() callbacks for the whole app.
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructor sizes the Bitmap pool from the app's memory class.
+     */
+    private ImageCache(Context context) {
+        ActivityManager activityManager = (ActivityManager)
+            context.getSystemService(Context.ACTIVITY_SERVICE);
+        mBitmapPool =
+            new BitmapPool(activityManager.getMemoryClass() * 1024L * 1024
+                           / POOL_FRACTION);
+
+        mContext = context;
+        mStore = DownloadUtils.getImageStore();
+        DownloadUtils.migrateImageStore(context);
+        mStorage = new StorageManager(mStore,
+                                      DEFAULT_DISK_BUDGET,
+                                      this::onEvicted);
+    }
+
+    /**
+     * Set the maximum number of bytes of files kept by the cache,
+     * evicting files in the background if necessary.
+     */
+    public void setDiskBudget(long budget) {
+        mStorage.setBudget(budget);
+    }
+
+    /**
+     * Return the previously downloaded file for @a url if the cache
+     * has a fresh copy of it.
+     *
+     * @return The absolute path to the image file, or null on a miss.
+     */
+    public synchronized Uri getFile(String url) {
+        File file = mStore.getFile(url);
+        long size = file != null
+            ? mStorage.getSize(file.getName())
+            : -1;
+
+        if (size >= 0
+            && isFresh(url, file)) {
+            mDiskHits++;
+            mDiskBytesServed += size;
+            mStorage.onRequested(file.getName());
+            return Uri.parse(file.getAbsolutePath());
+        }
+
+        mDiskMisses++;
+        return null;
+    }
+
+    /**
+     * Record that the image for @a url has been downloaded into
+     * @a file, evicting older files in the background if the disk
+     * budget is exceeded.
+     */
+    public void putFile(String url,
+                        File file) {
+        mStorage.onStored(file);
+    }
+
+    /**
+     * Record that the server confirmed the image for @a url in
+     * @a file hasn't changed, so it was reused without downloading it.
+     */
+    public synchronized void putRevalidatedFile(String url,
+                                                File file) {
+        mDiskRevalidations++;
+        mDiskBytesServed += file.length();
+        if (mStorage.getSize(file.getName()) < 0)
+            putFile(url, file);
+        else
+            mStorage.onRequested(file.getName());
+    }
+
+    /**
+     * Record that @a file, which held a previous image, was deleted
+     * from the image store.
+     */
+    public void removeFile(File file) {
+        mStorage.onRemoved(file.getName());
+    }
+
+    /**
+     * @return The pool whose Bitmaps are reused to decode images.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * @return A summary of the hit, miss, and eviction counters of
+     * the cache and the Bitmap pool.
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.US,
+                             "disk: %d hits, %d misses, %d revalidations, "
+                             + "%d bytes served without downloading, ",
+                             mDiskHits,
+                             mDiskMisses,
+                             mDiskRevalidations,
+                             mDiskBytesServed)
+            + mStorage.getStats()
+            + "; " + mBitmapPool.getStats()
+            + ", " + Debug.getRuntimeStat("art.gc.gc-count") + " GCs";
+    }
+
+    /**
+     * Hook method called when Android wants the app to release
+     * memory.  The Bitmap pool is emptied once memory runs low, and
+     * the StorageManager's index is saved and released when the app
+     * is likely to be killed, since it can be loaded again.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            mBitmapPool.clear();
+        if (level >= TRIM_MEMORY_MODERATE)
+            mStorage.release();
+
+        Log.d(TAG,
+              "onTrimMemory(" + level + ") " + getStats());
+    }
+
+    /**
+     * Hook method called when the whole system is running low on
+     * memory.
+     */
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * No-op since the cache doesn't depend on the configuration.
+     */
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * @return True if the cached @a file downloaded from @a url can
+     * be returned without asking the server whether it has changed.
+     */
+    private static boolean isFresh(String url,
+                                   File file) {
+        long now = System.currentTimeMillis();
+        CacheValidators validators =
+            CacheValidators.load(DownloadUtils.getKeyFile(url));
+        return validators != null
+            ? validators.isFresh(now, DEFAULT_FRESHNESS)
+            : now - file.lastModified() < DEFAULT_FRESHNESS;
+    }
+
+    /**
+     * Hook method called by the StorageManager in its background
+     * thread after it deleted the image in @a file, which deletes the
+     * validators of the @a urls the image was downloaded from and
+     * removes its row from the MediaStore.
+     */
+    private void onEvicted(File file,
+                           List<String> urls) {
+        for (String url : urls)
+            CacheValidators.delete(DownloadUtils.getKeyFile(url));
+
+        MediaIndexer.getInstance(mContext).remove(file);
+        Log.d(TAG,
+              "evicted " + file.getName());
+    }
+}
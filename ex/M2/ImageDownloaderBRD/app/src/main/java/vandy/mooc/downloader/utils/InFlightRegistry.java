@@ -0,0 +1,416 @@
+package vandy.mooc.downloader.utils;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * Keeps track of the downloads that are in progress, keyed by
+ * normalized URL and by the variant of the image requested (e.g., its
+ * re-encoding), so concurrent requests for the same image share a
+ * single fetch instead of downloading it (and writing its file) more
+ * than once.  The first caller for a URL runs the fetch and the
+ * others attach to it and receive its result.
+ *
+ * Each caller can cancel its own request, which ends its wait right
+ * away, but the shared fetch is only cancelled once every caller
+ * attached to it has cancelled.  A caller that attaches with a more
+ * urgent priority (a lower value, as with DownloadOptions.priority)
+ * raises the priority of the fetch.
+ */
+public class InFlightRegistry<V> {
+    /**
+     * Lets a caller cancel its request, e.g., by adapting a
+     * CancellationSignal, which this class doesn't depend on.
+     */
+    public interface Cancellation {
+        /**
+         * Run @a onCancel once the request is cancelled, or right
+         * away if it already has been, or stop running anything if
+         * @a onCancel is null.
+         */
+        void setOnCancel(Runnable onCancel);
+    }
+
+    /**
+     * Runs the fetch of a download, which is shared by the callers
+     * attached to @a flight.
+     */
+    public interface Fetch<V> {
+        V run(Flight<V> flight) throws Exception;
+    }
+
+    /**
+     * A download in progress and the callers attached to it.  The
+     * fetch is told through it when every caller has cancelled and
+     * when its priority is raised.
+     */
+    public static class Flight<V>
+           implements Cancellation {
+        /**
+         * Completes with the result of the fetch.
+         */
+        private final CompletableFuture<V> mFuture =
+            new CompletableFuture<>();
+
+        /**
+         * The most urgent priority of the callers.
+         */
+        private int mPriority;
+
+        /**
+         * Number of callers attached, and how many of them have
+         * cancelled.
+         */
+        private int mCallers;
+        private int mCancelled;
+
+        /**
+         * True once every caller has cancelled, after which no caller
+         * can attach.
+         */
+        private boolean mCancelledByAll;
+
+        /**
+         * Run once every caller has cancelled, or null.
+         */
+        private Runnable mOnCancel;
+
+        /**
+         * Told the new priority when it's raised, or null.
+         */
+        private IntConsumer mOnPriorityRaised;
+
+        /**
+         * Removes the flight from the registry.
+         */
+        private Runnable mOnDone;
+
+        /**
+         * Constructor starts at the given @a priority.
+         */
+        Flight(int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * @return The most urgent priority of the callers.
+         */
+        public synchronized int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Tell @a listener the priority now and whenever a more urgent
+         * caller raises it, or stop telling anyone if it's null.
+         */
+        public synchronized void setOnPriorityRaised(IntConsumer listener) {
+            mOnPriorityRaised = listener;
+            if (listener != null)
+                listener.accept(mPriority);
+        }
+
+        /**
+         * Run @a onCancel once every caller has cancelled, or right
+         * away if they already have.
+         */
+        @Override
+        public void setOnCancel(Runnable onCancel) {
+            boolean cancelled;
+            synchronized (this) {
+                mOnCancel = onCancel;
+                cancelled = mCancelledByAll;
+            }
+            if (cancelled && onCancel != null)
+                onCancel.run();
+        }
+
+        /**
+         * @return True once every caller has cancelled.
+         */
+        public synchronized boolean isCancelled() {
+            return mCancelledByAll;
+        }
+
+        /**
+         * Attach a caller that asked for @a priority and may cancel
+         * through @a cancellation (if it's not null).
+         *
+         * @return A future that completes with the result of the fetch
+         *         or with a CancellationException once the caller
+         *         cancels, or null if every caller has cancelled, so
+         *         the flight can't be joined.
+         */
+        CompletableFuture<V> attach(int priority,
+                                    Cancellation cancellation) {
+            synchronized (this) {
+                if (mCancelledByAll)
+                    return null;
+                mCallers++;
+                if (priority < mPriority) {
+                    mPriority = priority;
+                    if (mOnPriorityRaised != null)
+                        mOnPriorityRaised.accept(priority);
+                }
+            }
+
+            CompletableFuture<V> result = new CompletableFuture<>();
+            mFuture.whenComplete((value, throwable) -> {
+                    if (throwable != null)
+                        result.completeExceptionally(throwable);
+                    else
+                        result.complete(value);
+                });
+
+            if (cancellation != null) {
+                cancellation.setOnCancel(() -> cancel(result));
+                // Stop listening once the result is in, unless the
+                // caller cancelled, since a CancellationSignal can't
+                // be changed from its own listener.
+                result.whenComplete((value, throwable) -> {
+                        if (!(throwable instanceof CancellationException))
+                            cancellation.setOnCancel(null);
+                    });
+            }
+            return result;
+        }
+
+        /**
+         * End the wait of the caller that receives @a result, and
+         * cancel the fetch if every caller has now cancelled.
+         */
+        private void cancel(CompletableFuture<V> result) {
+            Runnable onCancel = null;
+            Runnable onDone = null;
+            synchronized (this) {
+                if (result.isDone())
+                    return;
+                if (++mCancelled == mCallers) {
+                    mCancelledByAll = true;
+                    onCancel = mOnCancel;
+                    onDone = mOnDone;
+                }
+            }
+
+            result.completeExceptionally(new CancellationException("download cancelled"));
+            // Let new callers start a fresh download.
+            if (onDone != null)
+                onDone.run();
+            if (onCancel != null)
+                onCancel.run();
+        }
+
+        /**
+         * Remove the flight from the registry and complete it with
+         * @a value, or with @a throwable if it's not null.
+         */
+        void finish(V value,
+                    Throwable throwable) {
+            // Remove the key before completing the future so a
+            // caller that's woken up starts a fresh download.
+            mOnDone.run();
+            if (throwable != null)
+                mFuture.completeExceptionally(throwable);
+            else
+                mFuture.complete(value);
+        }
+    }
+
+    /**
+     * A caller attached to a flight.
+     */
+    private static class Call<V> {
+        final Flight<V> mFlight;
+        final CompletableFuture<V> mResult;
+        final boolean mRunsFetch;
+
+        Call(Flight<V> flight,
+             CompletableFuture<V> result,
+             boolean runsFetch) {
+            mFlight = flight;
+            mResult = result;
+            mRunsFetch = runsFetch;
+        }
+    }
+
+    /**
+     * Maps the key of each download in progress to its flight.
+     */
+    private final ConcurrentHashMap<String, Flight<V>> mInFlight =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Number of requests that attached to a download already in
+     * progress.
+     */
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    /**
+     * Run @a fetch to download the @a variant of @a url unless a
+     * download of the same image is already in progress, in which
+     * case wait for that one.  The fetch runs in the calling thread,
+     * which keeps running it for the other callers even if this
+     * caller cancels, but the fetch is told through its flight once
+     * every caller has cancelled.
+     *
+     * @param url          the web url.
+     * @param variant      tells apart the different images requested
+     *                     from the same URL, or "" if there's one.
+     * @param priority     the priority of the request.
+     * @param cancellation cancels the request, or null.
+     * @param fetch        runs the download for every caller.
+     *
+     * @return The result of the fetch, which is shared by all the
+     *         callers that requested the image while it ran.
+     * @throws CancellationException if the caller cancelled.
+     * @throws Exception if the fetch failed or the wait was
+     *         interrupted.
+     */
+    public V execute(String url,
+                     String variant,
+                     int priority,
+                     Cancellation cancellation,
+                     Fetch<V> fetch) throws Exception {
+        Call<V> call = join(url, variant, priority, cancellation);
+
+        if (call.mRunsFetch) {
+            V result = null;
+            Throwable failure = null;
+            try {
+                result = fetch.run(call.mFlight);
+            } catch (Throwable t) {
+                failure = t;
+            }
+            // Make sure the waiting callers don't block forever.
+            call.mFlight.finish(result, failure);
+        }
+
+        try {
+            return call.mResult.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw (Error) e.getCause();
+        }
+    }
+
+    /**
+     * Start @a fetch to download the @a variant of @a url unless a
+     * download of the same image is already in progress, in which
+     * case attach to that one.  Unlike execute(), the calling thread
+     * doesn't wait, so a fetch that runs in stages on other threads
+     * can still be shared with synchronous callers.  The parameters
+     * are the same as those of execute().
+     *
+     * @return A future that completes with the result of the fetch,
+     *         or with a CancellationException once the caller
+     *         cancels.
+     */
+    public CompletableFuture<V> executeAsync(String url,
+                                             String variant,
+                                             int priority,
+                                             Cancellation cancellation,
+                                             Function<Flight<V>, CompletableFuture<V>> fetch) {
+        Call<V> call = join(url, variant, priority, cancellation);
+        if (!call.mRunsFetch)
+            return call.mResult;
+
+        CompletableFuture<V> result;
+        try {
+            result = fetch.apply(call.mFlight);
+        } catch (Throwable t) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(t);
+        }
+        result.whenComplete((value, throwable) ->
+                            call.mFlight.finish(value, throwable));
+        return call.mResult;
+    }
+
+    /**
+     * Attach the caller to the download of the @a variant of @a url
+     * that's in progress, or to a new one if there's none or every
+     * caller of the one in progress has cancelled.
+     */
+    private Call<V> join(String url,
+                         String variant,
+                         int priority,
+                         Cancellation cancellation) {
+        String key = normalize(url) + variant;
+
+        for (;;) {
+            Flight<V> flight = new Flight<>(priority);
+            flight.mOnDone = () -> mInFlight.remove(key, flight);
+
+            Flight<V> inFlight = mInFlight.putIfAbsent(key, flight);
+            Flight<V> joined = inFlight != null ? inFlight : flight;
+            CompletableFuture<V> result = joined.attach(priority, cancellation);
+            if (result != null) {
+                if (inFlight != null)
+                    // Attach to the download that's already in
+                    // progress.
+                    mCoalesced.incrementAndGet();
+                return new Call<>(joined, result, inFlight == null);
+            }
+
+            // Every caller of the download cancelled it before this
+            // one could attach, so start afresh.
+            mInFlight.remove(key, joined);
+        }
+    }
+
+    /**
+     * @return The number of downloads in progress.
+     */
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * @return The number of requests that attached to a download
+     * already in progress rather than starting their own.
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * Normalize @a url so that equivalent spellings of it map to the
+     * same key: the scheme and host are lowercased, the default port
+     * and the fragment are dropped, "." and ".." path segments are
+     * resolved, and an empty path becomes "/".
+     */
+    static String normalize(String url) {
+        try {
+            URI uri = new URI(url).normalize();
+            if (uri.getScheme() == null || uri.getHost() == null)
+                return url;
+
+            String scheme = uri.getScheme().toLowerCase(Locale.US);
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80)
+                || ("https".equals(scheme) && port == 443))
+                port = -1;
+            String path = uri.getRawPath() == null
+                || uri.getRawPath().isEmpty()
+                ? "/"
+                : uri.getRawPath();
+
+            return scheme
+                + "://"
+                + uri.getHost().toLowerCase(Locale.US)
+                + (port != -1 ? ":" + port : "")
+                + path
+                + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+}
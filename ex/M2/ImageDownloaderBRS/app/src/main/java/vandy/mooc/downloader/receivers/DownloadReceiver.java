@@ -10,6 +10,7 @@ import android.util.Log;
 
 import java.io.File;
 
+import vandy.mooc.downloader.utils.ImageCache;
 import vandy.mooc.downloader.utils.UriUtils;
 
 /**
@@ -41,6 +42,12 @@ public class DownloadReceiver
     public void onReceive(Context context,
                           Intent uriData) {
         Log.d(TAG, "onReceive() called.");
+
+        // Log how effective the image cache has been so far.
+        Log.d(TAG,
+              "image cache "
+              + ImageCache.getInstance(context).getStats());
+
         // Start an activity to view the image.
         viewImage(context, uriData);
     }
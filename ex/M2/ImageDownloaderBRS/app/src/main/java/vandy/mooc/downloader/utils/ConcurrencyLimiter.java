@@ -0,0 +1,415 @@
+package vandy.mooc.downloader.utils;
+
+import java.util.Locale;
+
+/**
+ * Limits how many downloads run at once, adjusting the limit from
+ * the downloads it observes in the manner of TCP congestion control.
+ * Each completed download yields a cost, the time it took per
+ * kilobyte.  While the link has spare capacity, adding downloads
+ * raises throughput without slowing each one down, so the cost stays
+ * flat and the limit grows.  Once the link is saturated, extra
+ * downloads just share the same bandwidth, so the cost inflates and
+ * the limit shrinks in proportion (the "gradient" of a short-term
+ * average of the cost against a baseline, which is the lowest cost
+ * seen, as in TCP Vegas).  A failed download cuts the limit
+ * multiplicatively, like a lost packet does in AIMD.
+ *
+ * A caller that mustn't block, e.g., a dispatcher that should only
+ * take work off a priority queue once it can run, calls tryAcquire()
+ * and is told via the callback passed to setOnAvailable() when it's
+ * worth trying again.
+ */
+public class ConcurrencyLimiter {
+    /**
+     * Receives the limiter's decisions, e.g., for logging.
+     */
+    public interface Listener {
+        /**
+         * Hook method called when the limit changes from
+         * @a oldLimit to @a newLimit for the given @a reason.
+         */
+        void onLimitChanged(int oldLimit,
+                            int newLimit,
+                            String reason);
+    }
+
+    /**
+     * Returned by tryAcquire() when no permit is available.
+     */
+    public static final long NO_PERMIT = -1;
+
+    /**
+     * Downloads smaller than this many bytes are costed as if they
+     * were this size, since their time is dominated by latency.
+     */
+    private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+
+    /**
+     * Weight of a new cost in the short-term average.
+     */
+    private static final double SHORT_WEIGHT = 0.2;
+
+    /**
+     * Weight of an uncontended cost in the baseline, which lets the
+     * baseline rise if the link gets slower.
+     */
+    private static final double BASELINE_WEIGHT = 0.1;
+
+    /**
+     * How much the short-term cost may exceed the baseline
+     * before the limit starts to shrink, which keeps the limit from
+     * reacting to ordinary jitter.
+     */
+    private static final double TOLERANCE = 1.5;
+
+    /**
+     * The gradient never shrinks the limit by more than half at once.
+     */
+    private static final double MIN_GRADIENT = 0.5;
+
+    /**
+     * Weight of a newly computed limit, which smooths the changes.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Fraction of the limit kept when a download fails.
+     */
+    private static final double BACKOFF_RATIO = 0.5;
+
+    /**
+     * Bounds of the limit.
+     */
+    private final int mMinLimit;
+    private final int mMaxLimit;
+
+    /**
+     * The current limit, which is kept fractional so small changes
+     * accumulate.
+     */
+    private double mLimit;
+
+    /**
+     * Number of downloads that have acquired a permit but not yet
+     * released it.
+     */
+    private int mInFlight;
+
+    /**
+     * Short-term average of the cost and its baseline in nanoseconds
+     * per kilobyte, or 0 before the first sample.
+     */
+    private double mShortCost;
+    private double mBaselineCost;
+
+    /**
+     * Counters that describe the limiter's decisions.
+     */
+    private long mSamples;
+    private long mDrops;
+    private long mIncreases;
+    private long mDecreases;
+    private long mBytes;
+
+    /**
+     * Time (in nanoseconds) of the first permit, used to compute
+     * the aggregate throughput.
+     */
+    private long mStartNanos;
+
+    /**
+     * Receives the limiter's decisions, or null.
+     */
+    private volatile Listener mListener;
+
+    /**
+     * Run when a permit becomes available, or null.
+     */
+    private volatile Runnable mOnAvailable;
+
+    /**
+     * Constructor starts with @a initialLimit concurrent downloads and
+     * keeps the limit between @a minLimit and @a maxLimit.
+     */
+    public ConcurrencyLimiter(int initialLimit,
+                              int minLimit,
+                              int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("invalid bounds "
+                                               + minLimit + "-" + maxLimit);
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Set the @a listener that receives the limiter's decisions.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the @a onAvailable callback that's run, outside the
+     * limiter's lock, when a permit is released or the limit grows
+     * while fewer downloads than the limit are running.
+     */
+    public void setOnAvailable(Runnable onAvailable) {
+        mOnAvailable = onAvailable;
+    }
+
+    /**
+     * Block until fewer downloads than the limit are running, then
+     * count the caller as running.
+     *
+     * @return The start time to pass to onSuccess(), onDropped(), or
+     *         onIgnored() once the download finishes.
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (mInFlight >= (int) mLimit)
+            wait();
+
+        return start();
+    }
+
+    /**
+     * Count the caller as running if fewer downloads than the limit
+     * are running, without blocking.
+     *
+     * @return The start time to pass to onSuccess(), onDropped(),
+     *         onIgnored(), or cancel(), or NO_PERMIT if the limit has
+     *         been reached.
+     */
+    public synchronized long tryAcquire() {
+        return mInFlight < (int) mLimit
+            ? start()
+            : NO_PERMIT;
+    }
+
+    /**
+     * Give back the permit that tryAcquire() returned at
+     * @a startNanos without running a download, e.g., because no
+     * work could start after all.  Unlike onIgnored(), this doesn't
+     * run the callback passed to setOnAvailable(), so a caller that
+     * found nothing to do isn't called again right away.
+     */
+    public synchronized void cancel(long startNanos) {
+        release();
+    }
+
+    /**
+     * Record that the download started at @a startNanos transferred
+     * @a bytes successfully, adjusting the limit from its cost.
+     */
+    public void onSuccess(long startNanos,
+                          long bytes) {
+        int oldLimit;
+        int newLimit;
+        String reason;
+
+        try {
+            synchronized (this) {
+                oldLimit = (int) mLimit;
+                boolean saturated = mInFlight >= oldLimit / 2.0;
+                boolean contended = mInFlight > mMinLimit;
+                release();
+
+                double cost = (System.nanoTime() - startNanos) * 1024.0
+                    / Math.max(bytes, MIN_SAMPLE_BYTES);
+                mSamples++;
+                mBytes += bytes;
+
+                if (mShortCost == 0) {
+                    mShortCost = cost;
+                    mBaselineCost = cost;
+                } else {
+                    mShortCost += SHORT_WEIGHT * (cost - mShortCost);
+
+                    // Only a download that ran with no more company than
+                    // the lowest limit allows shows what the link can do
+                    // on its own, so only it may raise the baseline.
+                    if (!contended)
+                        mBaselineCost += BASELINE_WEIGHT
+                            * (cost - mBaselineCost);
+                }
+
+                // Follow a link that got faster right away.
+                if (mShortCost < mBaselineCost)
+                    mBaselineCost = mShortCost;
+
+                // Don't grow a limit that isn't being used, since its
+                // cost says nothing about more concurrency.
+                double gradient =
+                    Math.max(MIN_GRADIENT,
+                             Math.min(1.0, TOLERANCE * mBaselineCost / mShortCost));
+                if (gradient >= 1.0 && !saturated)
+                    return;
+
+                double target = mLimit * gradient
+                    + (gradient >= 1.0 ? Math.sqrt(mLimit) : 0);
+                setLimit(mLimit + SMOOTHING * (target - mLimit));
+
+                newLimit = (int) mLimit;
+                if (newLimit == oldLimit)
+                    return;
+                if (newLimit > oldLimit) {
+                    mIncreases++;
+                    reason = "cost steady";
+                } else {
+                    mDecreases++;
+                    reason = String.format(Locale.US,
+                                           "cost inflated %.2fx",
+                                           mShortCost / mBaselineCost);
+                }
+            }
+        } finally {
+            notifyAvailable();
+        }
+
+        notifyListener(oldLimit, newLimit, reason);
+    }
+
+    /**
+     * Record that the download started at @a startNanos failed,
+     * backing off the limit.
+     */
+    public void onDropped(long startNanos) {
+        int oldLimit;
+        int newLimit;
+
+        try {
+            synchronized (this) {
+                release();
+                mDrops++;
+                oldLimit = (int) mLimit;
+                setLimit(mLimit * BACKOFF_RATIO);
+                newLimit = (int) mLimit;
+                if (newLimit == oldLimit)
+                    return;
+                mDecreases++;
+            }
+        } finally {
+            notifyAvailable();
+        }
+
+        notifyListener(oldLimit, newLimit, "download failed");
+    }
+
+    /**
+     * Record that the download started at @a startNanos finished
+     * without telling anything about the link, e.g., because it was
+     * cancelled or served from the cache.
+     */
+    public void onIgnored(long startNanos) {
+        synchronized (this) {
+            release();
+        }
+        notifyAvailable();
+    }
+
+    /**
+     * @return The number of downloads allowed to run at once.
+     */
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    /**
+     * @return The largest limit the limiter may choose.
+     */
+    public int getMaxLimit() {
+        return mMaxLimit;
+    }
+
+    /**
+     * @return The number of downloads that are running.
+     */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return A summary of the limit, the costs it's based on, the
+     * decisions made, and the aggregate throughput.
+     */
+    public synchronized String getStats() {
+        double seconds = mStartNanos == 0
+            ? 0
+            : (System.nanoTime() - mStartNanos) / 1e9;
+        return String.format(Locale.US,
+                             "limit %d (%d-%d), %d in flight, "
+                             + "cost %.1f/%.1f us/KB short/baseline, "
+                             + "%d samples, %d drops, %d increases, "
+                             + "%d decreases, %.1f KB/s",
+                             (int) mLimit,
+                             mMinLimit,
+                             mMaxLimit,
+                             mInFlight,
+                             mShortCost / 1000,
+                             mBaselineCost / 1000,
+                             mSamples,
+                             mDrops,
+                             mIncreases,
+                             mDecreases,
+                             seconds > 0 ? mBytes / 1024.0 / seconds : 0);
+    }
+
+    /**
+     * Count the caller as running.
+     *
+     * @return The time it started.
+     */
+    private long start() {
+        mInFlight++;
+        long now = System.nanoTime();
+        if (mStartNanos == 0)
+            mStartNanos = now;
+        return now;
+    }
+
+    /**
+     * Stop counting a finished download as running and wake up the
+     * callers waiting in acquire().
+     */
+    private void release() {
+        mInFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Set the limit to @a limit, clamped to the bounds, waking up the
+     * callers waiting in acquire() in case it grew.
+     */
+    private void setLimit(double limit) {
+        mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, limit));
+        notifyAll();
+    }
+
+    /**
+     * Run the callback passed to setOnAvailable(), if any, if another
+     * download may start.  It's called outside the lock, since the
+     * callback may call tryAcquire() from another thread.
+     */
+    private void notifyAvailable() {
+        Runnable onAvailable = mOnAvailable;
+        if (onAvailable == null)
+            return;
+        synchronized (this) {
+            if (mInFlight >= (int) mLimit)
+                return;
+        }
+        onAvailable.run();
+    }
+
+    /**
+     * Pass a change of the limit to the listener, if any.
+     */
+    private void notifyListener(int oldLimit,
+                                int newLimit,
+                                String reason) {
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onLimitChanged(oldLimit, newLimit, reason);
+    }
+}
@@ -0,0 +1,642 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores downloaded images by content rather than by URL.  Each image
+ * is kept once in a file named after the SHA-256 digest of its bytes,
+ * and a small index maps the URLs it was downloaded from to the
+ * digest, so the same image served under different URLs (e.g., with
+ * different query strings or from a CDN mirror) takes up disk space
+ * only once.
+ *
+ * The index is an append-only log of "digest url" lines (and "- url"
+ * lines for removed URLs) in a hidden subdirectory, which is replayed
+ * when the store is first used and rewritten once it holds mostly
+ * superseded lines.
+ *
+ * Files are sharded into two levels of subdirectories named after
+ * the first hex digits of their names (e.g., "ab/c/abc123..."), so
+ * no directory grows large enough to slow down creating, finding,
+ * and deleting files in it.  Files that are named after a URL, such
+ * as the journals of partial downloads, get fixed-length names from
+ * the digest of the URL, which long URLs can't push past the limits
+ * of file names.
+ */
+public class ImageStore {
+    /**
+     * Name of the hidden subdirectory that holds the index.
+     */
+    private static final String INDEX_DIRECTORY = ".index";
+
+    /**
+     * Name of the index file.
+     */
+    private static final String INDEX_FILE = "urls";
+
+    /**
+     * Marks a removed URL in the index.
+     */
+    private static final String REMOVED = "-";
+
+    /**
+     * Name of the file that records that the directory uses the
+     * sharded layout.
+     */
+    private static final String LAYOUT_FILE = "layout";
+
+    /**
+     * Version of the layout written to the layout file.
+     */
+    private static final String LAYOUT_VERSION = "2";
+
+    /**
+     * Number of hex digits that name the subdirectories of each
+     * level.
+     */
+    private static final int[] SHARD_WIDTHS = { 2, 1 };
+
+    /**
+     * Number of hex digits in the name of a SHA-256 digest.
+     */
+    private static final int DIGEST_LENGTH = 64;
+
+    /**
+     * Number of superseded lines the index may hold beyond the
+     * number of URLs before it's rewritten.
+     */
+    private static final int COMPACTION_SLACK = 256;
+
+    /**
+     * Digits used to name files after digests.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The directory that holds the images.
+     */
+    private final File mDirectory;
+
+    /**
+     * The index file.
+     */
+    private final File mIndexFile;
+
+    /**
+     * The file that records the layout of the directory.
+     */
+    private final File mLayoutFile;
+
+    /**
+     * Maps each URL to the digest of its image, or null if the index
+     * hasn't been loaded yet.
+     */
+    private Map<String, String> mUrls;
+
+    /**
+     * Number of URLs that map to each digest.
+     */
+    private final Map<String, Integer> mReferences = new HashMap<>();
+
+    /**
+     * Number of lines in the index file.
+     */
+    private int mIndexLines;
+
+    /**
+     * Digests of the images stored since beginEviction() was called,
+     * or null if no eviction is in progress.
+     */
+    private Set<String> mStoredDuringEviction;
+
+    /**
+     * Counters that measure the effectiveness of deduplication.
+     */
+    private long mStored;
+    private long mDuplicates;
+    private long mBytesSaved;
+
+    /**
+     * Constructor stores the images in @a directory.
+     */
+    public ImageStore(File directory) {
+        mDirectory = directory;
+        mIndexFile = new File(new File(directory, INDEX_DIRECTORY),
+                              INDEX_FILE);
+        mLayoutFile = new File(mIndexFile.getParentFile(), LAYOUT_FILE);
+    }
+
+    /**
+     * Receives the images found by migrate() that earlier versions
+     * stored in a file named after their URL.
+     */
+    public interface LegacyImages {
+        /**
+         * @return The URL of the image in @a file, or null if the
+         * file doesn't hold an image.
+         */
+        String getUrl(File file);
+
+        /**
+         * Hook method called after the image in @a file has been moved
+         * into the store as @a object, e.g., to move other files named
+         * after @a file or to update the paths other indexes hold.
+         * @a url is the URL the image was downloaded from, or null if
+         * the file was named after its digest.
+         */
+        void onMigrated(File file,
+                        File object,
+                        String url);
+    }
+
+    /**
+     * @return A new SHA-256 digest, which is updated with the bytes
+     * of an image as they're downloaded.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The name of the file holding the image whose bytes
+     * produced @a digest.
+     */
+    public static String toName(byte[] digest) {
+        char[] name = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            name[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            name[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(name);
+    }
+
+    /**
+     * @return The digest of the bytes in @a file, which are read once.
+     */
+    public static String digestOf(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            for (int count; (count = inputStream.read(buffer)) >= 0; )
+                digest.update(buffer, 0, count);
+        }
+        return toName(digest.digest());
+    }
+
+    /**
+     * @return The file that holds (or would hold) the image named
+     * @a digest.
+     */
+    public File getObjectFile(String digest) {
+        return getShardedFile(digest);
+    }
+
+    /**
+     * @return A file with a short, fixed-length name derived from
+     * @a url, which names the other files kept for the URL.  The file
+     * itself isn't created.
+     */
+    public File getKeyFile(String url) {
+        return getShardedFile(toName(newDigest().digest
+                                     (url.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * @return The stored image files, which excludes the index and
+     * other hidden files.
+     */
+    public List<File> listFiles() {
+        List<File> files = new ArrayList<>();
+        listFiles(mDirectory, 0, files);
+        return files;
+    }
+
+    /**
+     * Move the images in the top level of the directory, which
+     * earlier versions stored there, into the sharded layout unless
+     * that's already been done.  Images named after their digest are
+     * just moved, whereas images named after their URL are hashed and
+     * put into the store for the URL returned by @a legacy.
+     *
+     * The store's lock is only held while each image is moved, and
+     * the images are hashed without it, so the migration can run in a
+     * background thread while the store is used.  An image that
+     * hasn't been migrated yet just isn't found until it is.
+     *
+     * @return The number of images migrated.
+     */
+    public int migrate(LegacyImages legacy) {
+        if (mLayoutFile.exists())
+            return 0;
+
+        int migrated = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null)
+            for (File file : files) {
+                String name = file.getName();
+                if (!file.isFile() || name.startsWith("."))
+                    continue;
+
+                try {
+                    File object;
+                    String url = null;
+                    if (isDigest(name)) {
+                        object = getObjectFile(name);
+                        if (!moveObject(file, object))
+                            continue;
+                    } else {
+                        url = legacy.getUrl(file);
+                        if (url == null)
+                            continue;
+                        String digest = digestOf(file);
+                        put(url, file, digest);
+                        object = getObjectFile(digest);
+                    }
+                    legacy.onMigrated(file, object, url);
+                    migrated++;
+                } catch (IOException e) {
+                    // Leave the file where it is, which is harmless.
+                }
+            }
+
+        try {
+            mLayoutFile.getParentFile().mkdirs();
+            try (Writer writer =
+                 new OutputStreamWriter(new FileOutputStream(mLayoutFile),
+                                        StandardCharsets.UTF_8)) {
+                writer.write(LAYOUT_VERSION + "\n");
+            }
+        } catch (IOException e) {
+            // Look for images to migrate again next time.
+        }
+        return migrated;
+    }
+
+    /**
+     * @return The hidden directory that holds the store's index,
+     * where other indexes of the images can be kept too.
+     */
+    public File getIndexDirectory() {
+        return mIndexFile.getParentFile();
+    }
+
+    /**
+     * @return The name of the image downloaded from @a url, or null
+     * if none was stored, without checking that its file still
+     * exists.
+     */
+    public synchronized String getName(String url) {
+        return getUrls().get(url);
+    }
+
+    /**
+     * @return The file holding the image downloaded from @a url, or
+     * null if none is stored.
+     */
+    public synchronized File getFile(String url) {
+        String digest = getUrls().get(url);
+        if (digest == null)
+            return null;
+        File file = getObjectFile(digest);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Store the image downloaded from @a url in @a file, whose bytes
+     * produced @a digest, moving the file into the store unless the
+     * same image is already stored, in which case the file is
+     * deleted.  An image previously stored for @a url that no other
+     * URL refers to is deleted.
+     *
+     * @return True if the image was newly stored, false if it was a
+     *         duplicate.
+     * @throws IOException if the file couldn't be moved or the index
+     *         couldn't be updated, in which case the URL still refers
+     *         to its previous image, if any.
+     */
+    public synchronized boolean put(String url,
+                                    File file,
+                                    String digest) throws IOException {
+        Map<String, String> urls = getUrls();
+        File object = getObjectFile(digest);
+        long length = file.length();
+        boolean stored = !object.exists();
+
+        if (stored) {
+            object.getParentFile().mkdirs();
+            if (!file.renameTo(object))
+                throw new IOException("unable to move " + file
+                                      + " to " + object);
+        } else {
+            // Keep the one copy, counting it as recently stored.
+            file.delete();
+            object.setLastModified(System.currentTimeMillis());
+        }
+        if (mStoredDuringEviction != null)
+            mStoredDuringEviction.add(digest);
+
+        String oldDigest = urls.put(url, digest);
+        if (!digest.equals(oldDigest)) {
+            addReference(digest);
+            try {
+                append(digest + " " + url);
+            } catch (IOException e) {
+                // Undo the put, so the image the caller is told
+                // wasn't stored isn't returned by getFile() now or
+                // left without a URL after a restart.
+                removeReference(digest);
+                if (oldDigest != null)
+                    urls.put(url, oldDigest);
+                else
+                    urls.remove(url);
+                if (stored)
+                    object.delete();
+                throw e;
+            }
+
+            if (oldDigest != null
+                && removeReference(oldDigest))
+                // The URL's image changed and nothing else refers to
+                // the old one.
+                getObjectFile(oldDigest).delete();
+        }
+
+        if (stored)
+            mStored++;
+        else {
+            mDuplicates++;
+            mBytesSaved += length;
+        }
+        return stored;
+    }
+
+    /**
+     * Forget the URLs that refer to the image named @a digest, e.g.,
+     * because its file was evicted.  The file itself isn't deleted.
+     *
+     * @return The URLs that referred to the image.
+     */
+    public synchronized List<String> removeObject(String digest) {
+        Map<String, String> urls = getUrls();
+        List<String> removed = new ArrayList<>();
+        if (!mReferences.containsKey(digest))
+            return removed;
+
+        for (Iterator<Map.Entry<String, String>> iterator =
+                 urls.entrySet().iterator();
+             iterator.hasNext(); ) {
+            Map.Entry<String, String> entry = iterator.next();
+            if (entry.getValue().equals(digest)) {
+                iterator.remove();
+                removed.add(entry.getKey());
+            }
+        }
+        mReferences.remove(digest);
+
+        try {
+            for (String url : removed)
+                append(REMOVED + " " + url);
+        } catch (IOException e) {
+            // A URL left in the index is harmless, since getFile()
+            // ignores it once the image's file is gone.
+        }
+        return removed;
+    }
+
+    /**
+     * Start recording the images that are stored, so evictObject()
+     * can tell which of the images chosen for eviction were stored
+     * again after they were chosen.
+     */
+    public synchronized void beginEviction() {
+        mStoredDuringEviction = new HashSet<>();
+    }
+
+    /**
+     * Delete the image named @a digest and forget the URLs that refer
+     * to it, unless it was stored again since beginEviction() was
+     * called, in which case the download that found it in the store
+     * relies on it.  Both happen while holding the store's lock, so a
+     * concurrent put() either finds the image gone and keeps its own
+     * copy or stores it again before it's chosen for deletion.
+     *
+     * @return The URLs that referred to the image, or null if it was
+     *         kept.
+     */
+    public synchronized List<String> evictObject(String digest) {
+        if (mStoredDuringEviction != null
+            && mStoredDuringEviction.contains(digest))
+            return null;
+        getObjectFile(digest).delete();
+        return removeObject(digest);
+    }
+
+    /**
+     * Stop recording the images that are stored.
+     */
+    public synchronized void endEviction() {
+        mStoredDuringEviction = null;
+    }
+
+    /**
+     * @return A summary of the images and URLs stored and the space
+     * saved by deduplication.
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.US,
+                             "store: %d images for %d URLs, "
+                             + "%d stored, %d duplicates, %d bytes saved",
+                             mReferences.size(),
+                             getUrls().size(),
+                             mStored,
+                             mDuplicates,
+                             mBytesSaved);
+    }
+
+    /**
+     * Move @a file, which is named after its digest, to @a object
+     * unless the same image is already stored there, in which case
+     * the file is deleted.
+     *
+     * @return True unless the file couldn't be moved.
+     */
+    private synchronized boolean moveObject(File file,
+                                            File object) {
+        object.getParentFile().mkdirs();
+        if (object.exists()) {
+            file.delete();
+            return true;
+        }
+        return file.renameTo(object);
+    }
+
+    /**
+     * @return The file named @a name in its shard of the directory.
+     */
+    private File getShardedFile(String name) {
+        File directory = mDirectory;
+        int start = 0;
+        for (int width : SHARD_WIDTHS) {
+            directory = new File(directory,
+                                 name.substring(start, start + width));
+            start += width;
+        }
+        return new File(directory, name);
+    }
+
+    /**
+     * Add the files in @a directory, which is at shard @a level, and
+     * in its subdirectories to @a files.
+     */
+    private static void listFiles(File directory,
+                                  int level,
+                                  List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null)
+            return;
+
+        for (File child : children)
+            if (child.getName().startsWith("."))
+                continue;
+            else if (level < SHARD_WIDTHS.length) {
+                if (child.isDirectory())
+                    listFiles(child, level + 1, files);
+            } else if (child.isFile())
+                files.add(child);
+    }
+
+    /**
+     * @return True if @a name is the name of a digest.
+     */
+    private static boolean isDigest(String name) {
+        if (name.length() != DIGEST_LENGTH)
+            return false;
+        for (int i = 0; i < name.length(); i++)
+            if (Character.digit(name.charAt(i), 16) < 0
+                || Character.isUpperCase(name.charAt(i)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Return the map from URLs to digests, loading it from the index
+     * if necessary.
+     */
+    private Map<String, String> getUrls() {
+        if (mUrls != null)
+            return mUrls;
+
+        mUrls = new HashMap<>();
+        mReferences.clear();
+        mIndexLines = 0;
+
+        try (BufferedReader reader =
+             new BufferedReader(new InputStreamReader
+                                (new FileInputStream(mIndexFile),
+                                 StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                mIndexLines++;
+                int space = line.indexOf(' ');
+                if (space <= 0)
+                    // Skip a line that was cut short by a crash.
+                    continue;
+                String digest = line.substring(0, space);
+                String url = line.substring(space + 1);
+                if (digest.equals(REMOVED))
+                    mUrls.remove(url);
+                else
+                    mUrls.put(url, digest);
+            }
+        } catch (IOException e) {
+            // Start with an empty index if there's none.
+        }
+
+        for (String digest : mUrls.values())
+            addReference(digest);
+        return mUrls;
+    }
+
+    /**
+     * Count another URL referring to the image named @a digest.
+     */
+    private void addReference(String digest) {
+        Integer count = mReferences.get(digest);
+        mReferences.put(digest, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Count one URL fewer referring to the image named @a digest.
+     *
+     * @return True if no URL refers to it anymore.
+     */
+    private boolean removeReference(String digest) {
+        Integer count = mReferences.get(digest);
+        if (count == null || count <= 1) {
+            mReferences.remove(digest);
+            return true;
+        }
+        mReferences.put(digest, count - 1);
+        return false;
+    }
+
+    /**
+     * Append @a line to the index, rewriting the index instead if it
+     * holds too many superseded lines.
+     */
+    private void append(String line) throws IOException {
+        if (mIndexLines + 1 > 2 * mUrls.size() + COMPACTION_SLACK) {
+            compact();
+            return;
+        }
+
+        mIndexFile.getParentFile().mkdirs();
+        try (Writer writer =
+             new OutputStreamWriter(new FileOutputStream(mIndexFile, true),
+                                    StandardCharsets.UTF_8)) {
+            writer.write(line + "\n");
+        }
+        mIndexLines++;
+    }
+
+    /**
+     * Rewrite the index with one line per URL, replacing the old
+     * index only once the new one is complete.
+     */
+    private void compact() throws IOException {
+        File temporary = new File(mIndexFile.getPath() + ".tmp");
+        mIndexFile.getParentFile().mkdirs();
+        try (Writer writer =
+             new OutputStreamWriter(new FileOutputStream(temporary),
+                                    StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : mUrls.entrySet())
+                writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+        }
+        if (!temporary.renameTo(mIndexFile))
+            throw new IOException("unable to replace " + mIndexFile);
+        mIndexLines = mUrls.size();
+    }
+}
@@ -0,0 +1,400 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Downloads a large image over several concurrent connections, each
+ * of which fetches a different byte range with an HTTP Range request
+ * and writes it directly to its position in a preallocated file, so
+ * the segments never need to be stitched together.
+ */
+public class SegmentedDownload {
+    /**
+     * Smallest number of bytes worth fetching over its own
+     * connection.  Images smaller than twice this size are downloaded
+     * over a single connection.
+     */
+    public static final long MIN_SEGMENT_SIZE = 512 * 1024;
+
+    /**
+     * Runs the segments other than the first, which runs in the
+     * calling thread.  Idle threads are reclaimed after a minute.
+     */
+    private static final ExecutorService sSegmentExecutor =
+        Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "SegmentedDownload");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * The response to a HEAD request, which describes the image.
+     */
+    public static class Probe {
+        /**
+         * The connection used for the HEAD request, whose response
+         * headers are still available.
+         */
+        public final HttpURLConnection connection;
+
+        /**
+         * Length of the image in bytes, or -1 if unknown.
+         */
+        public final long contentLength;
+
+        /**
+         * Strong ETag or Last-Modified header, or null.
+         */
+        public final String validator;
+
+        /**
+         * True if the server advertises support for byte ranges.
+         */
+        public final boolean acceptsRanges;
+
+        /**
+         * Constructor extracts the fields from the @a connection.
+         */
+        Probe(HttpURLConnection connection) {
+            this.connection = connection;
+            contentLength = connection.getContentLengthLong();
+            String eTag = connection.getHeaderField("ETag");
+            validator = eTag != null && !eTag.startsWith("W/")
+                ? eTag
+                : connection.getHeaderField("Last-Modified");
+            acceptsRanges =
+                "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+        }
+
+        /**
+         * Release the connection once its headers aren't needed
+         * anymore, by closing its (empty) body so the connection can
+         * be reused, or by disconnecting it if that fails.
+         */
+        public void close() {
+            try {
+                connection.getInputStream().close();
+            } catch (IOException e) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Told how many bytes at the start of the file have been written
+     * without a gap, which a later download can resume after if the
+     * segmented download fails.
+     */
+    public interface PrefixListener {
+        void onPrefix(long length) throws IOException;
+    }
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private SegmentedDownload() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Send a HEAD request for the image at @a url using @a transport.
+     * The caller should close() the Probe once it's done with it.
+     *
+     * @return The Probe, or null if the server didn't reply "200 OK"
+     *         or the request failed, e.g., because the server rejects
+     *         HEAD requests, in which case the image should be
+     *         downloaded over a single connection.
+     */
+    public static Probe probe(HttpTransport transport,
+                              String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = transport.open(url);
+            connection.setRequestMethod("HEAD");
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK)
+                return new Probe(connection);
+        } catch (IOException e) {
+            // Fall back to a single connection.
+        }
+        if (connection != null)
+            connection.disconnect();
+        return null;
+    }
+
+    /**
+     * Choose how many segments to split an image described by
+     * @a probe into, using at most @a maxSegments.
+     *
+     * @return The number of segments, which is 1 if the image should
+     *         be downloaded over a single connection.
+     */
+    public static int chooseSegmentCount(Probe probe,
+                                         int maxSegments) {
+        if (probe == null
+            || !probe.acceptsRanges
+            || probe.validator == null
+            || probe.contentLength < 2 * MIN_SEGMENT_SIZE)
+            return 1;
+
+        return (int) Math.max(1,
+                              Math.min(maxSegments,
+                                       probe.contentLength / MIN_SEGMENT_SIZE));
+    }
+
+    /**
+     * Download the image at @a url into @a file using @a segments
+     * concurrent Range requests opened by @a transport.  The number of
+     * bytes written by all the segments is reported to @a listener,
+     * if it's not null, from the threads that run the segments.
+     *
+     * @throws IOException if any segment fails, in which case the
+     *         other segments are cancelled.
+     */
+    public static void download(HttpTransport transport,
+                                String url,
+                                Probe probe,
+                                int segments,
+                                File file,
+                                ProgressListener listener)
+        throws IOException {
+        download(transport, url, probe, segments, file, listener,
+                 DownloadOptions.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Download the image like the method above, shaping the
+     * bandwidth of the segments by the limits of the given
+     * @a priority class.
+     */
+    public static void download(HttpTransport transport,
+                                String url,
+                                Probe probe,
+                                int segments,
+                                File file,
+                                ProgressListener listener,
+                                int priority)
+        throws IOException {
+        download(transport, url, probe, segments, file, listener,
+                 () -> priority);
+    }
+
+    /**
+     * Download the image like the method above, shaping the
+     * bandwidth of the segments by the limits of the priority class
+     * @a priority returns, which may change while they run.
+     */
+    public static void download(HttpTransport transport,
+                                String url,
+                                Probe probe,
+                                int segments,
+                                File file,
+                                ProgressListener listener,
+                                IntSupplier priority)
+        throws IOException {
+        download(transport, url, probe, segments, file, listener,
+                 priority, null);
+    }
+
+    /**
+     * Download the image like the method above, telling
+     * @a prefixListener, if it's not null, how long the gapless
+     * prefix of the file is as it grows and once the download
+     * succeeds or fails.  It's only called from the calling thread.
+     */
+    public static void download(HttpTransport transport,
+                                String url,
+                                Probe probe,
+                                int segments,
+                                File file,
+                                ProgressListener listener,
+                                IntSupplier priority,
+                                PrefixListener prefixListener)
+        throws IOException {
+        file.getParentFile().mkdirs();
+
+        try (RandomAccessFile randomAccessFile =
+             new RandomAccessFile(file, "rw")) {
+            // Preallocate the file so each segment can write at its
+            // own position.
+            randomAccessFile.setLength(probe.contentLength);
+            FileChannel channel = randomAccessFile.getChannel();
+
+            long segmentSize = probe.contentLength / segments;
+            AtomicLong bytesWritten = new AtomicLong();
+            AtomicLong[] segmentWritten = new AtomicLong[segments];
+            for (int i = 0; i < segments; i++)
+                segmentWritten[i] = new AtomicLong();
+            List<Future<?>> futures = new ArrayList<>();
+            boolean completed = false;
+
+            try {
+                // Start all but the first segment in the background.
+                for (int i = 1; i < segments; i++) {
+                    long start = i * segmentSize;
+                    long end = i == segments - 1
+                        ? probe.contentLength - 1
+                        : start + segmentSize - 1;
+                    AtomicLong written = segmentWritten[i];
+                    futures.add(sSegmentExecutor.submit
+                                (() -> {
+                                    downloadSegment(transport, url, probe,
+                                                    start, end, channel,
+                                                    bytesWritten, written,
+                                                    listener, priority,
+                                                    null);
+                                    return null;
+                                }));
+                }
+
+                // Download the first segment in this thread, where
+                // its progress is the gapless prefix of the file.
+                downloadSegment(transport, url, probe,
+                                0, segmentSize - 1, channel,
+                                bytesWritten, segmentWritten[0],
+                                listener, priority, prefixListener);
+
+                // The prefix grows by a whole segment as each one
+                // completes in turn.
+                for (Future<?> future : futures) {
+                    future.get();
+                    if (prefixListener != null)
+                        prefixListener.onPrefix(prefixLength(probe,
+                                                             segmentSize,
+                                                             segmentWritten));
+                }
+                completed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("download cancelled");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException(e.getCause());
+            } finally {
+                // Stop any segments that are still running.
+                for (Future<?> future : futures)
+                    future.cancel(true);
+
+                // Report the bytes a later download can keep, which
+                // mustn't hide the reason this one failed.
+                if (!completed && prefixListener != null) {
+                    try {
+                        prefixListener.onPrefix(prefixLength(probe,
+                                                             segmentSize,
+                                                             segmentWritten));
+                    } catch (IOException e) {
+                        // Ignore, since the download failed anyway.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes at the start of the file that the
+     * segments of @a segmentSize bytes have written without a gap,
+     * given the bytes each one has written in @a segmentWritten.
+     */
+    private static long prefixLength(Probe probe,
+                                     long segmentSize,
+                                     AtomicLong[] segmentWritten) {
+        long prefix = 0;
+        for (int i = 0; i < segmentWritten.length; i++) {
+            long length = i == segmentWritten.length - 1
+                ? probe.contentLength - i * segmentSize
+                : segmentSize;
+            long written = segmentWritten[i].get();
+            prefix += written;
+            if (written < length)
+                break;
+        }
+        return prefix;
+    }
+
+    /**
+     * Download bytes @a start through @a end (inclusive) of the image
+     * at @a url and write them at the same position of @a channel,
+     * adding the number of bytes written to @a bytesWritten and
+     * @a segmentWritten, and telling @a prefixListener, if it's not
+     * null, the position reached after each write.
+     */
+    private static void downloadSegment(HttpTransport transport,
+                                        String url,
+                                        Probe probe,
+                                        long start,
+                                        long end,
+                                        FileChannel channel,
+                                        AtomicLong bytesWritten,
+                                        AtomicLong segmentWritten,
+                                        ProgressListener listener,
+                                        IntSupplier priority,
+                                        PrefixListener prefixListener)
+        throws IOException {
+        HttpURLConnection connection = transport.open(url);
+        connection.setRequestProperty("Range",
+                                      "bytes=" + start + "-" + end);
+        // Fail rather than mix bytes of two versions of the image.
+        connection.setRequestProperty("If-Range", probe.validator);
+
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+            || contentRange == null
+            || !contentRange.startsWith("bytes " + start + "-")) {
+            connection.disconnect();
+            throw new IOException("server didn't return bytes "
+                                  + start + "-" + end);
+        }
+
+        ByteBuffer buffer = BufferPool.acquire();
+        byte[] array = buffer.array();
+        long position = start;
+
+        try (InputStream inputStream =
+             BandwidthLimiter.wrap(connection.getInputStream(),
+                                   priority)) {
+            while (position <= end) {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("download cancelled");
+
+                int count = inputStream.read(array,
+                                             0,
+                                             (int) Math.min(array.length,
+                                                            end - position + 1));
+                if (count < 0)
+                    throw new IOException("segment ended at byte "
+                                          + position);
+
+                // Write the chunk at its position in the file.
+                buffer.clear();
+                buffer.limit(count);
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+
+                segmentWritten.addAndGet(count);
+                if (prefixListener != null)
+                    prefixListener.onPrefix(position);
+
+                long total = bytesWritten.addAndGet(count);
+                if (listener != null)
+                    listener.onProgress(total, probe.contentLength);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the images in an ImageStore within a byte budget by deleting
+ * the least recently requested ones.  An image counts as requested
+ * when it's stored and each time DownloadUtils.downloadImage() returns
+ * it from the ImageCache (or after revalidating it) instead of
+ * downloading it, since the app doesn't learn when the Gallery
+ * actually shows an image.  The size and last request of each image
+ * are kept in a compact binary index next to the store's own index,
+ * 48 bytes per image in least-recently-requested order, so the
+ * directory only needs to be scanned if the index is missing or
+ * damaged.
+ *
+ * Loading (or rebuilding) the index, eviction, and saving the index
+ * all run in a background thread, so the callers, which include the
+ * main thread, never wait for the disk.  Changes recorded before the
+ * index has been loaded are applied there once it is.  Eviction runs
+ * a few images at a time, so it never adds latency to the download
+ * that pushed the store over its budget.  The images are deleted through
+ * the store while holding its lock, and one that's stored again
+ * after it was chosen is kept, so a download that finds its image
+ * already in the store never loses it to a concurrent eviction.
+ */
+public class StorageManager {
+    /**
+     * Receives the images that are evicted.
+     */
+    public interface Listener {
+        /**
+         * Hook method called in the background thread after @a file
+         * has been deleted to stay within the budget and the @a urls
+         * that referred to it have been forgotten by the store.
+         */
+        void onEvicted(File file,
+                       List<String> urls);
+    }
+
+    /**
+     * Name of the index file.
+     */
+    private static final String INDEX_FILE = "access";
+
+    /**
+     * Identifies a valid index file ("IMG1").
+     */
+    private static final int INDEX_MAGIC = 0x494d4731;
+
+    /**
+     * Number of bytes of the digest that names each image.
+     */
+    private static final int NAME_BYTES = 32;
+
+    /**
+     * Largest number of images evicted by one background task, after
+     * which the task yields to the others.
+     */
+    private static final int EVICTION_BATCH = 8;
+
+    /**
+     * Time (in milliseconds) the index may be out of date before it's
+     * saved, so a burst of changes is saved once.
+     */
+    private static final long SAVE_DELAY = 2000;
+
+    /**
+     * The size and last request of an image.
+     */
+    private static class Entry {
+        long mSize;
+        long mLastAccess;
+
+        Entry(long size,
+              long lastAccess) {
+            mSize = size;
+            mLastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * The store whose images are managed.
+     */
+    private final ImageStore mStore;
+
+    /**
+     * The index file.
+     */
+    private final File mIndexFile;
+
+    /**
+     * Receives the images that are evicted, or null.
+     */
+    private final Listener mListener;
+
+    /**
+     * Runs the eviction and save tasks.
+     */
+    private final ScheduledExecutorService mExecutor =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "StorageManager");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Maps the names of the images to their entries in least recently
+     * requested order, or null if the index hasn't been loaded.
+     */
+    private LinkedHashMap<String, Entry> mEntries;
+
+    /**
+     * Total number of bytes of the images and the budget they're
+     * kept within.
+     */
+    private long mSize;
+    private long mBudget;
+
+    /**
+     * True while an eviction or save task is pending, and while the
+     * entries have changed since they were saved.
+     */
+    private boolean mTrimScheduled;
+    private boolean mSaveScheduled;
+    private boolean mDirty;
+
+    /**
+     * Number of changes waiting for the background thread to load the
+     * index before they're applied.
+     */
+    private int mDeferred;
+
+    /**
+     * Counters that describe the manager's work.
+     */
+    private long mEvictions;
+    private long mBytesEvicted;
+    private long mIndexLoads;
+    private long mIndexRebuilds;
+    private long mIndexSaves;
+
+    /**
+     * Constructor keeps the images in @a store within @a budget bytes,
+     * reporting the ones it evicts to @a listener, if it's not null.
+     */
+    public StorageManager(ImageStore store,
+                          long budget,
+                          Listener listener) {
+        mStore = store;
+        mIndexFile = new File(store.getIndexDirectory(), INDEX_FILE);
+        mBudget = budget;
+        mListener = listener;
+    }
+
+    /**
+     * Set the number of bytes the images are kept within to
+     * @a budget, evicting images in the background if necessary.
+     * This only records the budget, so it's cheap enough to call in
+     * the main thread.
+     */
+    public synchronized void setBudget(long budget) {
+        mBudget = budget;
+        whenLoaded(this::scheduleTrim);
+    }
+
+    /**
+     * @return The number of bytes the images are kept within.
+     */
+    public synchronized long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * @return The total number of bytes of the images, which is 0
+     * until the index has been loaded in the background.
+     */
+    public synchronized long getSize() {
+        if (mEntries == null && mDeferred == 0)
+            whenLoaded(() -> { });
+        return mSize;
+    }
+
+    /**
+     * @return The number of bytes of the image named @a name, or -1 if
+     * it isn't managed.  Until the index has been loaded in the
+     * background, every image in the store counts as managed.
+     */
+    public synchronized long getSize(String name) {
+        if (mEntries == null || mDeferred > 0) {
+            if (mDeferred == 0)
+                whenLoaded(() -> { });
+            File file = mStore.getObjectFile(name);
+            return file.exists() ? file.length() : -1;
+        }
+
+        Entry entry = mEntries.get(name);
+        return entry != null ? entry.mSize : -1;
+    }
+
+    /**
+     * Record that the image in @a file was stored or replaced, which
+     * counts as requesting it, and evict older images in the background
+     * if the budget is exceeded.
+     */
+    public synchronized void onStored(File file) {
+        long size = file.length();
+        long now = System.currentTimeMillis();
+        whenLoaded(() -> {
+                Entry entry = mEntries.remove(file.getName());
+                if (entry != null)
+                    mSize -= entry.mSize;
+
+                mEntries.put(file.getName(), new Entry(size, now));
+                mSize += size;
+                markDirty();
+                scheduleTrim();
+            });
+    }
+
+    /**
+     * Record that the image named @a name was requested again, e.g.,
+     * served from the cache, which makes it the last to be evicted.
+     */
+    public synchronized void onRequested(String name) {
+        long now = System.currentTimeMillis();
+        whenLoaded(() -> {
+                // Looking the entry up moves it to the end of the
+                // access order.
+                Entry entry = mEntries.get(name);
+                if (entry != null) {
+                    entry.mLastAccess = now;
+                    markDirty();
+                }
+            });
+    }
+
+    /**
+     * Record that the image named @a name was deleted by someone
+     * else.
+     */
+    public synchronized void onRemoved(String name) {
+        whenLoaded(() -> {
+                Entry entry = mEntries.remove(name);
+                if (entry != null) {
+                    mSize -= entry.mSize;
+                    markDirty();
+                }
+            });
+    }
+
+    /**
+     * Save the index if it has changed and release its memory, e.g.,
+     * because the app is likely to be killed.  It's loaded again when
+     * it's needed.
+     */
+    public void release() {
+        mExecutor.execute(() -> {
+                save();
+                synchronized (this) {
+                    if (!mDirty)
+                        mEntries = null;
+                }
+            });
+    }
+
+    /**
+     * Block until the tasks scheduled so far have run and the index
+     * has been saved.
+     */
+    public void flush() throws InterruptedException {
+        try {
+            mExecutor.submit(this::save).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return A summary of the space used, the evictions, and the
+     * work done to maintain the index.
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.US,
+                             "%d/%d bytes in %d images, %d evictions "
+                             + "(%d bytes), index %d loads/%d rebuilds/%d saves",
+                             mSize,
+                             mBudget,
+                             mEntries != null ? mEntries.size() : 0,
+                             mEvictions,
+                             mBytesEvicted,
+                             mIndexLoads,
+                             mIndexRebuilds,
+                             mIndexSaves);
+    }
+
+    /**
+     * Apply @a change, which expects the entries to be loaded, right
+     * away if they are and no earlier change is still waiting for
+     * them, or else in the background thread once it has loaded them,
+     * so the changes are applied in the order they were made.  The
+     * caller holds the lock, and so does the background thread while
+     * it applies the change.
+     */
+    private void whenLoaded(Runnable change) {
+        if (mEntries != null && mDeferred == 0) {
+            change.run();
+            return;
+        }
+
+        mDeferred++;
+        mExecutor.execute(() -> {
+                synchronized (this) {
+                    mDeferred--;
+                    getEntries();
+                    change.run();
+                }
+            });
+    }
+
+    /**
+     * Return the entries, loading them from the index if necessary,
+     * or rebuilding them by scanning the store if it's missing or
+     * damaged.  This is only called in the background thread, or
+     * once the entries are loaded.
+     */
+    private LinkedHashMap<String, Entry> getEntries() {
+        if (mEntries != null)
+            return mEntries;
+
+        // Use access order so iteration visits the least recently
+        // requested image first.
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mSize = 0;
+
+        try {
+            load();
+            mIndexLoads++;
+        } catch (IOException e) {
+            mEntries.clear();
+            mSize = 0;
+            rebuild();
+            mIndexRebuilds++;
+            markDirty();
+        }
+        return mEntries;
+    }
+
+    /**
+     * Load the entries from the index file.
+     */
+    private void load() throws IOException {
+        try (DataInputStream inputStream =
+             new DataInputStream(new BufferedInputStream
+                                 (new FileInputStream(mIndexFile)))) {
+            if (inputStream.readInt() != INDEX_MAGIC)
+                throw new IOException("not an index");
+
+            int count = inputStream.readInt();
+            byte[] name = new byte[NAME_BYTES];
+            for (int i = 0; i < count; i++) {
+                inputStream.readFully(name);
+                long size = inputStream.readLong();
+                long lastAccess = inputStream.readLong();
+                mEntries.put(ImageStore.toName(name),
+                             new Entry(size, lastAccess));
+                mSize += size;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the entries by scanning the store, treating the oldest
+     * files as least recently requested.
+     */
+    private void rebuild() {
+        List<File> files = mStore.listFiles();
+        Collections.sort(files,
+                         (a, b) -> Long.compare(a.lastModified(),
+                                                b.lastModified()));
+        for (File file : files) {
+            mEntries.put(file.getName(),
+                         new Entry(file.length(), file.lastModified()));
+            mSize += file.length();
+        }
+    }
+
+    /**
+     * Write the entries to the index file if they've changed since
+     * they were last saved.  The entries are copied while holding the
+     * lock and written to disk after releasing it.
+     */
+    private void save() {
+        byte[] snapshot;
+        synchronized (this) {
+            mSaveScheduled = false;
+            if (!mDirty || mEntries == null)
+                return;
+
+            ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(8 + mEntries.size()
+                                          * (NAME_BYTES + 16));
+            try (DataOutputStream outputStream = new DataOutputStream(bytes)) {
+                List<Map.Entry<String, Entry>> entries = new ArrayList<>();
+                for (Map.Entry<String, Entry> entry : mEntries.entrySet())
+                    if (entry.getKey().length() == 2 * NAME_BYTES)
+                        entries.add(entry);
+
+                outputStream.writeInt(INDEX_MAGIC);
+                outputStream.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries) {
+                    outputStream.write(toBytes(entry.getKey()));
+                    outputStream.writeLong(entry.getValue().mSize);
+                    outputStream.writeLong(entry.getValue().mLastAccess);
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            snapshot = bytes.toByteArray();
+            mDirty = false;
+        }
+
+        // Replace the old index only once the new one is complete.
+        File temporary = new File(mIndexFile.getPath() + ".tmp");
+        try {
+            mIndexFile.getParentFile().mkdirs();
+            try (FileOutputStream outputStream =
+                 new FileOutputStream(temporary)) {
+                outputStream.write(snapshot);
+            }
+            if (!temporary.renameTo(mIndexFile))
+                throw new IOException("unable to replace " + mIndexFile);
+            synchronized (this) {
+                mIndexSaves++;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                markDirty();
+            }
+        }
+    }
+
+    /**
+     * Evict up to EVICTION_BATCH of the least recently requested
+     * images if the budget is exceeded, scheduling another task if it
+     * still is afterwards.  An image that's stored again while it's being
+     * evicted is kept, and its entry comes back when onStored() is
+     * called for it.
+     */
+    private void trim() {
+        Map<String, Long> victims = new LinkedHashMap<>();
+
+        // Record the images stored from now on, before choosing the
+        // victims, so none stored after it was chosen is deleted.
+        mStore.beginEviction();
+        try {
+            synchronized (this) {
+                Iterator<Map.Entry<String, Entry>> iterator =
+                    getEntries().entrySet().iterator();
+
+                while (mSize > mBudget
+                       && victims.size() < EVICTION_BATCH
+                       && iterator.hasNext()) {
+                    Map.Entry<String, Entry> entry = iterator.next();
+                    iterator.remove();
+                    mSize -= entry.getValue().mSize;
+                    victims.put(entry.getKey(), entry.getValue().mSize);
+                }
+
+                if (!victims.isEmpty())
+                    markDirty();
+                mTrimScheduled = false;
+            }
+
+            // Delete the files without holding this lock.
+            for (Map.Entry<String, Long> victim : victims.entrySet()) {
+                List<String> urls = mStore.evictObject(victim.getKey());
+                if (urls == null)
+                    continue;
+
+                synchronized (this) {
+                    mEvictions++;
+                    mBytesEvicted += victim.getValue();
+                }
+                if (mListener != null)
+                    mListener.onEvicted(mStore.getObjectFile(victim.getKey()),
+                                        urls);
+            }
+        } finally {
+            mStore.endEviction();
+        }
+
+        synchronized (this) {
+            scheduleTrim();
+        }
+    }
+
+    /**
+     * Schedule a task to evict images if the budget is exceeded and
+     * none is pending.
+     */
+    private void scheduleTrim() {
+        if (!mTrimScheduled
+            && mSize > mBudget
+            && !mEntries.isEmpty()) {
+            mTrimScheduled = true;
+            mExecutor.execute(this::trim);
+        }
+    }
+
+    /**
+     * Record that the entries have changed, scheduling a task to save
+     * them if none is pending.
+     */
+    private void markDirty() {
+        mDirty = true;
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            mExecutor.schedule(this::save,
+                               SAVE_DELAY,
+                               TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The bytes of the digest whose hex name is @a name.
+     */
+    private static byte[] toBytes(String name) {
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) (Character.digit(name.charAt(2 * i), 16) << 4
+                               | Character.digit(name.charAt(2 * i + 1), 16));
+        return bytes;
+    }
+}
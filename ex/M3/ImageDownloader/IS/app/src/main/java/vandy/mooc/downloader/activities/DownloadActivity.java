@@ -8,6 +8,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.support.design.widget.FloatingActionButton;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.animation.AnimationUtils;
@@ -17,9 +18,11 @@ import android.widget.EditText;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
 import vandy.mooc.downloader.R;
 import vandy.mooc.downloader.service.DownloadService;
+import vandy.mooc.downloader.utils.ImageCache;
 import vandy.mooc.downloader.utils.UiUtils;
 import vandy.mooc.downloader.utils.UriUtils;
 
@@ -69,6 +72,13 @@ public class DownloadActivity
      */
     private ProgressDialog mProgressDialog;
 
+    /**
+     * Number of images in the batch being downloaded, and how many
+     * of them have completed so far.
+     */
+    private int mBatchSize;
+    private int mBatchCompleted;
+
     /**
      * Stores an instance of DownloadHandler that inherits from
      * Handler and uses its handleMessage() hook method to process
@@ -198,8 +208,13 @@ public class DownloadActivity
                                  mUrlEditText.getWindowToken());
 
             // Start the DownloadService to downloads an image from
-            // the URL given by the user.
-            startDownloadService(getUrl());
+            // the URL given by the user, or all the images if the
+            // user gave several URLs.
+            ArrayList<Uri> urls = getUrls();
+            if (urls.size() > 1)
+                startBatchDownloadService(urls);
+            else
+                startDownloadService(getUrl());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -219,6 +234,56 @@ public class DownloadActivity
         return Uri.parse(userInput);
     }
 
+    /**
+     * Get the URLs to download based on user input, which may list
+     * several URLs separated by whitespace.
+     */
+    protected ArrayList<Uri> getUrls() {
+        ArrayList<Uri> urls = new ArrayList<>();
+        for (String userInput
+                 : mUrlEditText.getText().toString().trim().split("\\s+"))
+            if (!"".equals(userInput))
+                urls.add(Uri.parse(userInput));
+        return urls;
+    }
+
+    /**
+     * This method is used to create a batch Intent and then start
+     * the DownloadService with it.
+     *
+     * @param urls The URLs for the images to download.
+     */
+    private void startBatchDownloadService(ArrayList<Uri> urls) {
+        // Make sure that there's not already a download in progress.
+        if (!mProcessButtonClick) {
+            UiUtils.showToast(this,
+                              "Already downloading images");
+            return;
+        }
+
+        // Do a sanity check to ensure the URLs are valid.
+        for (Uri url : urls)
+            if (!URLUtil.isValidUrl(url.toString())) {
+                UiUtils.showToast(this,
+                                  "Invalid URL "
+                                  + url.toString());
+                return;
+            }
+
+        // Disable processing of a button click.
+        mProcessButtonClick = false;
+        mBatchSize = urls.size();
+        mBatchCompleted = 0;
+
+        // Inform the user that the download is starting.
+        showDialog("downloading " + mBatchSize + " images via startService()");
+
+        // Start the DownloadService with all the URLs in one Intent.
+        startService(DownloadService.makeBatchIntent(this,
+                                                     urls,
+                                                     mDownloadHandler));
+    }
+
     /**
      * This method is used to create an Intent and then start the
      * DownloadService with it.
@@ -291,8 +356,38 @@ public class DownloadActivity
             if (mActivity.get() == null)
                 return;
 
+            // Update the progress dialog until the result arrives.
+            if (DownloadService.isProgress(message)) {
+                mActivity.get().showProgress
+                    (DownloadService.getBytesRead(message),
+                     DownloadService.getTotalBytes(message));
+                return;
+            } else if (DownloadService.isItemResult(message)) {
+                // Count another image of the batch.
+                mActivity.get().showBatchProgress();
+                return;
+            } else if (DownloadService.isBatchSummary(message)) {
+                // Report the outcome of the batch.
+                mActivity.get().dismissDialog();
+                UiUtils.showToast(mActivity.get(),
+                                  "downloaded "
+                                  + DownloadService.getSucceededCount(message)
+                                  + " images, "
+                                  + DownloadService.getFailedCount(message)
+                                  + " failed");
+
+                // Allow user to click the download button again.
+                mActivity.get().mProcessButtonClick = true;
+                return;
+            }
+
             // Try to extract the pathname from the message.
             String pathname = DownloadService.getPathname(message);
+
+            // Log how effective the image cache has been so far.
+            Log.d(mActivity.get().TAG,
+                  "image cache "
+                  + ImageCache.getInstance(mActivity.get()).getStats());
                 
             // See if the download worked or not.
             if (pathname == null)
@@ -336,11 +431,49 @@ public class DownloadActivity
      *          The String to display what download method was used.
      */
     public void showDialog(String message) {
-        mProgressDialog =
-            ProgressDialog.show(this,
-                                "Download",
-                                message,
-                                true);
+        mProgressDialog = new ProgressDialog(this);
+        mProgressDialog.setTitle("Download");
+        mProgressDialog.setMessage(message);
+        // Use a progress bar that becomes determinate once the
+        // DownloadService reports the length of the image.
+        mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mProgressDialog.setIndeterminate(true);
+        mProgressDialog.setProgressNumberFormat(null);
+        mProgressDialog.show();
+    }
+
+    /**
+     * Update the Dialog with the progress of the download.
+     *
+     * @param bytesRead
+     *          The number of bytes downloaded so far.
+     * @param totalBytes
+     *          The length of the image, or -1 if it's unknown.
+     */
+    public void showProgress(long bytesRead,
+                             long totalBytes) {
+        if (mProgressDialog == null)
+            return;
+
+        if (totalBytes > 0) {
+            mProgressDialog.setIndeterminate(false);
+            mProgressDialog.setMax(100);
+            mProgressDialog.setProgress((int) (bytesRead * 100 / totalBytes));
+        } else
+            mProgressDialog.setMessage(bytesRead / 1024 + " KB downloaded");
+    }
+
+    /**
+     * Update the Dialog after another image of the batch completes.
+     */
+    public void showBatchProgress() {
+        if (mProgressDialog == null)
+            return;
+
+        mBatchCompleted++;
+        mProgressDialog.setIndeterminate(false);
+        mProgressDialog.setMax(mBatchSize);
+        mProgressDialog.setProgress(mBatchCompleted);
     }
 
     /**
@@ -12,6 +12,12 @@ import android.os.Messenger;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vandy.mooc.downloader.utils.DownloadOptions;
+import vandy.mooc.downloader.utils.DownloadPipeline;
 import vandy.mooc.downloader.utils.DownloadUtils;
 
 /**
@@ -23,6 +29,14 @@ import vandy.mooc.downloader.utils.DownloadUtils;
  * 
  * The DownloadService class implements the CommandProcessor pattern
  * and the Messenger is used as part of the Active Object pattern.
+ *
+ * A batch Intent made by makeBatchIntent() carries a list of URLs
+ * that a single call to onHandleIntent() hands to the
+ * DownloadPipeline, which downloads them concurrently, overlapping
+ * the fetching of some images with the decoding and storing of
+ * others.  A result is sent back for each URL as soon as it
+ * completes, in whatever order that is, followed by a summary once
+ * the whole batch is done.
  */
 public class DownloadService
        extends IntentService {
@@ -38,6 +52,28 @@ public class DownloadService
      */
     private static final String PATHNAME = "PATHNAME";
 
+    /**
+     * String constant used to extract the list of URLs "extra" from
+     * a batch intent.
+     */
+    private static final String URLS = "URLS";
+
+    /**
+     * Values of Message.what for the two kinds of reply sent to the
+     * DownloadActivity: the final result of a download, and an update
+     * on its progress that holds the number of bytes downloaded so
+     * far and the length of the image (or -1), which getBytesRead()
+     * and getTotalBytes() return.
+     * A batch request instead gets a result for each of its URLs,
+     * whose arg2 holds the index of the URL, followed by a summary
+     * whose arg1 and arg2 hold the number of URLs that succeeded and
+     * failed.
+     */
+    public static final int DOWNLOAD_RESULT = 0;
+    public static final int DOWNLOAD_PROGRESS = 1;
+    public static final int DOWNLOAD_ITEM_RESULT = 2;
+    public static final int DOWNLOAD_BATCH_SUMMARY = 3;
+
     public DownloadService() {
         super("DownloadService");
     }
@@ -59,6 +95,24 @@ public class DownloadService
                       new Messenger(downloadHandler));
     }
 
+    /**
+     * Factory method to make an Intent that downloads all the
+     * @a urls with a single start request.
+     */
+    public static Intent makeBatchIntent(Context context,
+                                         ArrayList<Uri> urls,
+                                         Handler downloadHandler) {
+        return new Intent(context,
+                          DownloadService.class)
+            // Pass the list of URIs as an "extra".
+            .putParcelableArrayListExtra(URLS,
+                                         urls)
+            // Create and pass a Messenger as an "extra" so the
+            // DownloadService can send back the results.
+            .putExtra(MESSENGER,
+                      new Messenger(downloadHandler));
+    }
+
     /**
      * Hook method called each time the DownloadService is sent an
      * Intent via startService() to retrieve the designated image and
@@ -66,15 +120,82 @@ public class DownloadService
      * Intent.
      */
     public void onHandleIntent(Intent intent) {
+        if (intent.hasExtra(URLS)) {
+            processBatch(intent);
+            return;
+        }
+
+        // Forward the progress of the download to the
+        // DownloadActivity.
+        DownloadOptions options = new DownloadOptions();
+        options.progressListener =
+            new ProgressReporter(getMessenger(intent));
+
         // Download the image at the given url
         Uri uri = DownloadUtils.downloadImage
             (this,
-             intent.getData());
+             intent.getData(),
+             options);
 
         // Send the pathname back to DownloadActivity.
         sendPath(intent, uri);
     }
 
+    /**
+     * Retrieve each image in the batch designated by the @a intent,
+     * replying to the DownloadActivity as each one completes and
+     * then sending a summary of the batch.  The images are handed to
+     * the DownloadPipeline, so the fetching, decoding, and storing of
+     * different images overlap, and this method returns after the last
+     * one finishes so the IntentService doesn't stop too early.
+     */
+    private void processBatch(Intent intent) {
+        ArrayList<Uri> urls = intent.getParcelableArrayListExtra(URLS);
+        Messenger messenger = getMessenger(intent);
+        AtomicInteger succeeded = new AtomicInteger();
+        CompletableFuture<?>[] futures =
+            new CompletableFuture<?>[urls.size()];
+
+        for (int i = 0; i < urls.size(); i++) {
+            final int index = i;
+            // Download the image at the next url, counting a
+            // download that failed with an exception as failed.
+            futures[i] = DownloadPipeline.getInstance()
+                .submit(this, urls.get(i), null)
+                .handle((pathname, failure) -> failure == null
+                        ? pathname
+                        : null)
+                .thenAccept(pathname -> {
+                        if (pathname != null)
+                            succeeded.incrementAndGet();
+
+                        // Send its result back right away.
+                        Message message = makeReplyMessage(pathname);
+                        message.what = DOWNLOAD_ITEM_RESULT;
+                        message.arg2 = index;
+                        send(messenger, message);
+                    });
+        }
+
+        // Wait for the last image before sending the summary, which
+        // is sent even if replying for some image threw.
+        CompletableFuture.allOf(futures)
+            .handle((ignored, failure) -> {
+                    if (failure != null)
+                        Log.e(getClass().getName(),
+                              "Exception while replying.",
+                              failure);
+                    return null;
+                })
+            .join();
+
+        send(messenger,
+             Message.obtain(null,
+                            DOWNLOAD_BATCH_SUMMARY,
+                            succeeded.get(),
+                            urls.size() - succeeded.get()));
+    }
+
     /**
      * Send the @a pathname back to the DownloadActivity via the
      * messenger that's stored in the @a intent.
@@ -82,14 +203,22 @@ public class DownloadService
     private void sendPath(Intent intent,
                           Uri pathname) {
         // Extract the Messenger.
-        Messenger messenger = (Messenger)
-            intent.getExtras().get(MESSENGER);
+        Messenger messenger = getMessenger(intent);
 
         // Call factory method to create Message.
         Message message = makeReplyMessage(pathname);
-        
+
+        // Send pathname to back to the DownloadActivity.
+        send(messenger, message);
+    }
+
+    /**
+     * Send the @a message back to the DownloadActivity via the
+     * @a messenger.
+     */
+    private void send(Messenger messenger,
+                      Message message) {
         try {
-            // Send pathname to back to the DownloadActivity.
             messenger.send(message);
         } catch (RemoteException e) {
             Log.e(getClass().getName(),
@@ -103,7 +232,7 @@ public class DownloadService
      * DownloadActivity with the pathname of the downloaded image.
      */
     private Message makeReplyMessage(Uri pathname){
-        Message message = Message.obtain();
+        Message message = Message.obtain(null, DOWNLOAD_RESULT);
         // Return the result to indicate whether the download
         // succeeded or failed.
         if (pathname != null) {
@@ -120,6 +249,79 @@ public class DownloadService
         return message;
     }
 
+    /**
+     * Helper method that returns the Messenger sent with the
+     * @a intent.
+     */
+    private static Messenger getMessenger(Intent intent) {
+        return (Messenger) intent.getExtras().get(MESSENGER);
+    }
+
+    /**
+     * Helper method that returns true if the @a message reports the
+     * progress of a download rather than its result.
+     */
+    public static boolean isProgress(Message message) {
+        return message.what == DOWNLOAD_PROGRESS;
+    }
+
+    /**
+     * Helper method that returns true if the @a message holds the
+     * result of one image of a batch, whose index in the batch is
+     * returned by getItemIndex().
+     */
+    public static boolean isItemResult(Message message) {
+        return message.what == DOWNLOAD_ITEM_RESULT;
+    }
+
+    /**
+     * Helper method that returns the index in the batch of the image
+     * whose result is in the @a message.
+     */
+    public static int getItemIndex(Message message) {
+        return message.arg2;
+    }
+
+    /**
+     * Helper method that returns true if the @a message holds the
+     * summary of a batch, which is sent after all its results.
+     */
+    public static boolean isBatchSummary(Message message) {
+        return message.what == DOWNLOAD_BATCH_SUMMARY;
+    }
+
+    /**
+     * Helper method that returns the number of images of a batch
+     * downloaded successfully from a summary @a message.
+     */
+    public static int getSucceededCount(Message message) {
+        return message.arg1;
+    }
+
+    /**
+     * Helper method that returns the number of images of a batch
+     * that failed to download from a summary @a message.
+     */
+    public static int getFailedCount(Message message) {
+        return message.arg2;
+    }
+
+    /**
+     * Helper method that returns the number of bytes downloaded so
+     * far from a progress @a message.
+     */
+    public static long getBytesRead(Message message) {
+        return ProgressReporter.getBytesRead(message);
+    }
+
+    /**
+     * Helper method that returns the length of the image from a
+     * progress @a message, or -1 if it's unknown.
+     */
+    public static long getTotalBytes(Message message) {
+        return ProgressReporter.getTotalBytes(message);
+    }
+
     /**
      * Helper method that returns pathname if download succeeded.
      */
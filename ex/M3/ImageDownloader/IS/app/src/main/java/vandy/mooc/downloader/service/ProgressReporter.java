@@ -0,0 +1,165 @@
+package vandy.mooc.downloader.service;
+
+import android.os.Bundle;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import vandy.mooc.downloader.utils.ProgressListener;
+
+/**
+ * Forwards the progress of a download to the DownloadActivity via
+ * the Messenger sent with the request.  DownloadUtils reports
+ * progress for every chunk it writes, so updates are only sent when
+ * both enough time has passed and enough of the image has arrived
+ * since the last one, which keeps the reply Messenger (and the UI
+ * thread) from being flooded.  The Messages come from the global
+ * pool via Message.obtain() and carry the byte counts in their
+ * arguments, so no Bundle is allocated per update unless a count
+ * doesn't fit in an int.  Completion is always reported, since
+ * DownloadUtils reports it separately from the progress updates.
+ */
+class ProgressReporter
+      implements ProgressListener {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Minimum time (in milliseconds) between updates.
+     */
+    private static final long MIN_INTERVAL = 250;
+
+    /**
+     * Minimum change (in percent of the image) between updates when
+     * the length of the image is known.
+     */
+    private static final int MIN_PERCENT = 1;
+
+    /**
+     * Keys of the byte counts of an update whose counts don't fit in
+     * the arguments of a Message.
+     */
+    private static final String BYTES_READ = "BYTES_READ";
+    private static final String TOTAL_BYTES = "TOTAL_BYTES";
+
+    /**
+     * The Messenger that receives the updates.
+     */
+    private final Messenger mMessenger;
+
+    /**
+     * Time (in milliseconds since boot) of the last update.
+     */
+    private long mLastTime;
+
+    /**
+     * Percent of the image reported in the last update.
+     */
+    private int mLastPercent = -1;
+
+    /**
+     * Constructor initializes the field.
+     */
+    ProgressReporter(Messenger messenger) {
+        mMessenger = messenger;
+    }
+
+    /**
+     * Hook method called by DownloadUtils after more of the image has
+     * been written.  It's synchronized since a segmented download
+     * reports progress from several threads.
+     */
+    @Override
+    public synchronized void onProgress(long bytesRead,
+                                        long totalBytes) {
+        long now = SystemClock.elapsedRealtime();
+        int percent = totalBytes > 0
+            ? (int) (bytesRead * 100 / totalBytes)
+            : -1;
+
+        // Start over if the download did, e.g., because a retry or
+        // a rejected range restarted it from the first byte, so its
+        // updates aren't skipped until it passes the old percentage.
+        if (percent < mLastPercent) {
+            mLastTime = 0;
+            mLastPercent = -1;
+        }
+
+        // Skip updates that arrive too soon or that would barely move
+        // the progress bar.
+        if (now - mLastTime < MIN_INTERVAL
+            || (percent >= 0
+                && percent - mLastPercent < MIN_PERCENT))
+            return;
+
+        mLastTime = now;
+        mLastPercent = percent;
+        send(bytesRead, totalBytes);
+    }
+
+    /**
+     * Hook method called by DownloadUtils once the whole image has
+     * been written, which is always reported.
+     */
+    @Override
+    public synchronized void onCompleted(long totalBytes) {
+        mLastTime = SystemClock.elapsedRealtime();
+        mLastPercent = 100;
+        send(totalBytes, totalBytes);
+    }
+
+    /**
+     * @return The number of bytes downloaded so far from a progress
+     * @a message.
+     */
+    static long getBytesRead(Message message) {
+        Bundle data = message.peekData();
+        return data != null ? data.getLong(BYTES_READ) : message.arg1;
+    }
+
+    /**
+     * @return The length of the image from a progress @a message, or
+     * -1 if it's unknown.
+     */
+    static long getTotalBytes(Message message) {
+        Bundle data = message.peekData();
+        return data != null ? data.getLong(TOTAL_BYTES) : message.arg2;
+    }
+
+    /**
+     * Send an update of @a bytesRead of @a totalBytes, which go in
+     * the arguments of the Message if they fit and in its data
+     * otherwise.
+     */
+    private void send(long bytesRead,
+                      long totalBytes) {
+        Message message;
+        if (bytesRead <= Integer.MAX_VALUE && totalBytes <= Integer.MAX_VALUE)
+            message = Message.obtain(null,
+                                     DownloadService.DOWNLOAD_PROGRESS,
+                                     (int) bytesRead,
+                                     (int) totalBytes);
+        else {
+            message = Message.obtain(null,
+                                     DownloadService.DOWNLOAD_PROGRESS);
+            Bundle data = new Bundle();
+            data.putLong(BYTES_READ, bytesRead);
+            data.putLong(TOTAL_BYTES, totalBytes);
+            message.setData(data);
+        }
+
+        try {
+            mMessenger.send(message);
+        } catch (RemoteException e) {
+            // DeadObjectException is thrown if target handler no
+            // longer exists, in which case the download continues.
+            Log.e(TAG,
+                  "Exception while sending progress.",
+                  e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package vandy.mooc.downloader.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * A pool of mutable Bitmaps, keyed by the size of their pixel
+ * allocations, whose memory is reused to decode other images via
+ * BitmapFactory.Options.inBitmap.  Decoding a batch of images
+ * back-to-back then reuses a handful of allocations instead of
+ * allocating (and garbage collecting) a large Bitmap per image.
+ * The pool holds at most a given number of bytes, dropping the least
+ * recently added Bitmaps first.  The bookkeeping is done by an
+ * AllocationPool.
+ *
+ * A Bitmap must not be used after it's returned to the pool since
+ * its pixels may be overwritten by the next decode.
+ */
+public class BitmapPool {
+    /**
+     * The pooled Bitmaps.
+     */
+    private final AllocationPool<Bitmap> mPool;
+
+    /**
+     * Constructor initializes the byte cap.
+     */
+    public BitmapPool(long maxBytes) {
+        mPool = new AllocationPool<>(maxBytes,
+                                     new AllocationPool.Allocations<Bitmap>() {
+                @Override
+                public int sizeOf(Bitmap bitmap) {
+                    return bitmap.getAllocationByteCount();
+                }
+
+                @Override
+                public boolean isReusable(Bitmap bitmap) {
+                    return bitmap.isMutable() && !bitmap.isRecycled();
+                }
+
+                @Override
+                public void free(Bitmap bitmap) {
+                    bitmap.recycle();
+                }
+            });
+    }
+
+    /**
+     * Take a Bitmap whose allocation can hold @a byteCount bytes of
+     * pixels out of the pool.
+     *
+     * @return The Bitmap, or null if none is suitable, in which case
+     *         the caller should allocate a new one.
+     */
+    public Bitmap get(long byteCount) {
+        return mPool.get(byteCount);
+    }
+
+    /**
+     * Return a @a bitmap the caller no longer uses to the pool.
+     * Bitmaps that can't be reused are recycled instead.
+     */
+    public void put(Bitmap bitmap) {
+        mPool.put(bitmap);
+    }
+
+    /**
+     * Record that a Bitmap from get() couldn't be reused after all,
+     * e.g., because the decoder rejected it, and recycle it.
+     */
+    public void unget(Bitmap bitmap,
+                      long byteCount) {
+        mPool.unget(bitmap, byteCount);
+    }
+
+    /**
+     * Drop the least recently added Bitmaps until the pool holds no
+     * more than @a maxBytes bytes.
+     */
+    public void trimToSize(long maxBytes) {
+        mPool.trimToSize(maxBytes);
+    }
+
+    /**
+     * Drop all the Bitmaps in the pool.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return A summary of how many decodes reused a pooled Bitmap
+     * and how many bytes of Bitmaps were allocated versus reused.
+     */
+    public String getStats() {
+        return "bitmap pool: " + mPool.getStats();
+    }
+}
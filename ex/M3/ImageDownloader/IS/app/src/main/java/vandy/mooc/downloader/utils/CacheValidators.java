@@ -0,0 +1,222 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * The HTTP validators (ETag and Last-Modified) and freshness lifetime
+ * (Cache-Control max-age) of a downloaded image.  They are stored in
+ * a small properties file next to the image file so a later download
+ * of the same URL can send a conditional request and reuse the file
+ * when the server replies "304 Not Modified".
+ */
+public class CacheValidators {
+    /**
+     * Name of the hidden subdirectory of the image directory that
+     * holds the validators files.
+     */
+    private static final String META_DIRECTORY = ".meta";
+
+    /**
+     * Keys used in the validators file.
+     */
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String MAX_AGE = "max-age";
+    private static final String STORED_AT = "stored-at";
+
+    /**
+     * Value of mMaxAge when the server didn't specify one.
+     */
+    public static final long UNKNOWN_MAX_AGE = -1;
+
+    /**
+     * The ETag response header, or null.
+     */
+    private final String mETag;
+
+    /**
+     * The Last-Modified response header, or null.
+     */
+    private final String mLastModified;
+
+    /**
+     * Freshness lifetime in milliseconds from the Cache-Control
+     * header, or UNKNOWN_MAX_AGE.
+     */
+    private final long mMaxAge;
+
+    /**
+     * Time (in milliseconds since the epoch) the response was received.
+     */
+    private final long mStoredAt;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public CacheValidators(String eTag,
+                           String lastModified,
+                           long maxAge,
+                           long storedAt) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mMaxAge = maxAge;
+        mStoredAt = storedAt;
+    }
+
+    /**
+     * Factory method that extracts the validators from the response
+     * headers of a @a connection, which was received at time @a now.
+     */
+    public static CacheValidators fromResponse(URLConnection connection,
+                                               long now) {
+        return new CacheValidators
+            (connection.getHeaderField(ETAG),
+             connection.getHeaderField(LAST_MODIFIED),
+             parseMaxAge(connection.getHeaderField("Cache-Control")),
+             now);
+    }
+
+    /**
+     * Factory method that merges the headers of a "304 Not Modified"
+     * response on @a connection with these validators, since such a
+     * response may omit headers that haven't changed.
+     */
+    public CacheValidators refresh(URLConnection connection,
+                                   long now) {
+        CacheValidators update = fromResponse(connection, now);
+        return new CacheValidators
+            (update.mETag != null ? update.mETag : mETag,
+             update.mLastModified != null
+                 ? update.mLastModified
+                 : mLastModified,
+             connection.getHeaderField("Cache-Control") != null
+                 ? update.mMaxAge
+                 : mMaxAge,
+             now);
+    }
+
+    /**
+     * @return True if a conditional request can be made.
+     */
+    public boolean hasValidators() {
+        return mETag != null || mLastModified != null;
+    }
+
+    /**
+     * @return True if the image can be used at time @a now without
+     * asking the server.  When the server didn't specify a lifetime,
+     * images with validators are always revalidated (which is cheap)
+     * and images without them stay fresh for @a defaultMaxAge.
+     */
+    public boolean isFresh(long now,
+                           long defaultMaxAge) {
+        long maxAge = mMaxAge != UNKNOWN_MAX_AGE
+            ? mMaxAge
+            : (hasValidators() ? 0 : defaultMaxAge);
+        return now - mStoredAt < maxAge;
+    }
+
+    /**
+     * Add the headers that make the request on @a connection
+     * conditional.
+     */
+    public void addTo(URLConnection connection) {
+        if (mETag != null)
+            connection.setRequestProperty("If-None-Match", mETag);
+        if (mLastModified != null)
+            connection.setRequestProperty("If-Modified-Since",
+                                          mLastModified);
+    }
+
+    /**
+     * Load the validators stored for @a imageFile.
+     *
+     * @return The validators, or null if none are stored.
+     */
+    public static CacheValidators load(File imageFile) {
+        File file = getFile(imageFile);
+        if (!file.exists())
+            return null;
+
+        Properties properties = new Properties();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            properties.load(inputStream);
+            return new CacheValidators
+                (properties.getProperty(ETAG),
+                 properties.getProperty(LAST_MODIFIED),
+                 Long.parseLong(properties.getProperty
+                                (MAX_AGE,
+                                 String.valueOf(UNKNOWN_MAX_AGE))),
+                 Long.parseLong(properties.getProperty(STORED_AT, "0")));
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Store these validators for @a imageFile.
+     */
+    public void save(File imageFile) throws IOException {
+        Properties properties = new Properties();
+        if (mETag != null)
+            properties.setProperty(ETAG, mETag);
+        if (mLastModified != null)
+            properties.setProperty(LAST_MODIFIED, mLastModified);
+        properties.setProperty(MAX_AGE, String.valueOf(mMaxAge));
+        properties.setProperty(STORED_AT, String.valueOf(mStoredAt));
+
+        File file = getFile(imageFile);
+        file.getParentFile().mkdirs();
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            properties.store(outputStream, null);
+        }
+    }
+
+    /**
+     * Delete the validators stored for @a imageFile, if any.
+     */
+    public static void delete(File imageFile) {
+        getFile(imageFile).delete();
+    }
+
+    /**
+     * @return The file that holds the validators for @a imageFile.
+     */
+    private static File getFile(File imageFile) {
+        return new File(new File(imageFile.getParentFile(),
+                                 META_DIRECTORY),
+                        imageFile.getName() + ".properties");
+    }
+
+    /**
+     * Parse the freshness lifetime from a Cache-Control header.
+     *
+     * @return The lifetime in milliseconds, or UNKNOWN_MAX_AGE.
+     */
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null)
+            return UNKNOWN_MAX_AGE;
+
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase(Locale.US);
+            if (directive.equals("no-cache")
+                || directive.equals("no-store"))
+                return 0;
+            else if (directive.startsWith("max-age="))
+                try {
+                    return Long.parseLong(directive.substring(8)) * 1000;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+        }
+        return UNKNOWN_MAX_AGE;
+    }
+}
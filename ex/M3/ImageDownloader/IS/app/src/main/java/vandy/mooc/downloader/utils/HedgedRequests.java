@@ -0,0 +1,303 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends HTTP requests and waits for the start of their responses,
+ * optionally "hedging" a request that's slower than usual: if no
+ * response has arrived within a percentile of the recent response
+ * times, an identical request is sent and whichever responds first is
+ * used, while the other is disconnected.  This cuts the tail latency
+ * caused by a stalled connection or server at the cost of a few extra
+ * requests, which are capped at a fraction of all requests.
+ *
+ * The time to the start of the response is recorded whether or not
+ * hedging is enabled, so the tail latencies can be compared.
+ */
+public class HedgedRequests {
+    /**
+     * Opens an unconnected, fully configured connection for one
+     * attempt at a request.
+     */
+    public interface ConnectionFactory {
+        HttpURLConnection open() throws IOException;
+    }
+
+    /**
+     * Default percentile of the recent response times after which a
+     * request is hedged.
+     */
+    public static final double DEFAULT_PERCENTILE = 95;
+
+    /**
+     * Default fraction of requests that may be hedged.
+     */
+    public static final double DEFAULT_BUDGET = 0.05;
+
+    /**
+     * Number of response times needed before requests are hedged.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * Number of recent response times that are kept.
+     */
+    private static final int HISTORY_SIZE = 2000;
+
+    /**
+     * Runs the attempts whose responses are awaited.
+     */
+    private static final ExecutorService sExecutor =
+        Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "HedgedRequests");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Percentile of the recent response times after which a request
+     * is hedged.
+     */
+    private final double mPercentile;
+
+    /**
+     * Fraction of requests that may be hedged.
+     */
+    private final double mBudget;
+
+    /**
+     * True if slow requests are hedged.
+     */
+    private volatile boolean mEnabled;
+
+    /**
+     * Response times of the attempts that got a response, from which
+     * the hedging threshold is learned.
+     */
+    private final LatencyTracker mAttempts =
+        new LatencyTracker(HISTORY_SIZE);
+
+    /**
+     * Response times seen by the callers of execute().
+     */
+    private final LatencyTracker mObserved =
+        new LatencyTracker(HISTORY_SIZE);
+
+    /**
+     * Counters that describe the hedging.
+     */
+    private long mRequests;
+    private long mHedges;
+    private long mHedgeWins;
+    private long mDenied;
+
+    /**
+     * Constructor uses the default percentile and budget.
+     */
+    public HedgedRequests() {
+        this(DEFAULT_PERCENTILE, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Constructor hedges requests slower than the @a percentile of
+     * recent response times, up to a @a budget fraction of requests.
+     */
+    public HedgedRequests(double percentile,
+                          double budget) {
+        mPercentile = percentile;
+        mBudget = budget;
+    }
+
+    /**
+     * Enable or disable hedging.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return True if slow requests are hedged.
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Send the request made by @a factory and wait for the start of
+     * its response, hedging it if it's slow.
+     *
+     * @return The connection whose response arrived first.
+     * @throws IOException if no attempt got a response.
+     */
+    public HttpURLConnection execute(ConnectionFactory factory)
+        throws IOException {
+        long start = System.nanoTime();
+        long delay = getHedgeDelay();
+        synchronized (this) {
+            mRequests++;
+        }
+
+        if (delay < 0) {
+            // Just wait for the response in the calling thread.
+            HttpURLConnection connection = factory.open();
+            connection.getResponseCode();
+            long nanos = System.nanoTime() - start;
+            mAttempts.record(nanos);
+            mObserved.record(nanos);
+            return connection;
+        }
+
+        Attempt primary = new Attempt(factory.open());
+        Attempt winner = primary;
+        Attempt hedge = null;
+        try {
+            try {
+                primary.mFuture.get(delay, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (tryHedge())
+                    hedge = new Attempt(factory.open());
+            }
+
+            winner = hedge == null ? primary : first(primary, hedge);
+            winner.mFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            primary.mConnection.disconnect();
+            if (hedge != null)
+                hedge.mConnection.disconnect();
+            throw new InterruptedIOException("download cancelled");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof UncheckedIOException
+                ? ((UncheckedIOException) e.getCause()).getCause()
+                : new IOException(e.getCause());
+        } finally {
+            // Abandon the attempt that lost.
+            if (hedge != null) {
+                Attempt loser = winner == hedge ? primary : hedge;
+                loser.mConnection.disconnect();
+            }
+        }
+
+        synchronized (this) {
+            if (winner == hedge)
+                mHedgeWins++;
+        }
+        mObserved.record(System.nanoTime() - start);
+        return winner.mConnection;
+    }
+
+    /**
+     * @return The response times seen by the callers of execute().
+     */
+    public LatencyTracker getObservedLatency() {
+        return mObserved;
+    }
+
+    /**
+     * @return The number of hedged requests.
+     */
+    public synchronized long getHedgeCount() {
+        return mHedges;
+    }
+
+    /**
+     * @return The number of requests sent.
+     */
+    public synchronized long getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * @return A summary of the hedging and the response times seen
+     * by callers.
+     */
+    public String getStats() {
+        synchronized (this) {
+            return String.format(Locale.US,
+                                 "hedging %s: %d requests, %d hedged "
+                                 + "(%d won, %d denied by budget), ",
+                                 mEnabled ? "on" : "off",
+                                 mRequests,
+                                 mHedges,
+                                 mHedgeWins,
+                                 mDenied)
+                + mObserved.getStats();
+        }
+    }
+
+    /**
+     * @return How long (in nanoseconds) to wait for a response before
+     * hedging, or -1 if requests aren't hedged.
+     */
+    private long getHedgeDelay() {
+        if (!mEnabled || mAttempts.size() < MIN_SAMPLES)
+            return -1;
+        return mAttempts.getPercentile(mPercentile);
+    }
+
+    /**
+     * @return True if the budget allows another hedged request, which
+     * is then counted.
+     */
+    private synchronized boolean tryHedge() {
+        if (mHedges + 1 > mBudget * mRequests) {
+            mDenied++;
+            return false;
+        }
+        mHedges++;
+        return true;
+    }
+
+    /**
+     * @return The first of @a a and @a b to get a response, or the
+     * last to fail if neither does.
+     */
+    private static Attempt first(Attempt a,
+                                 Attempt b)
+        throws InterruptedException, ExecutionException {
+        CompletableFuture<Attempt> first = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (Attempt attempt : new Attempt[] { a, b })
+            attempt.mFuture.whenComplete((connection, throwable) -> {
+                    if (throwable == null)
+                        first.complete(attempt);
+                    else if (failures.incrementAndGet() == 2)
+                        first.complete(attempt);
+                });
+        return first.get();
+    }
+
+    /**
+     * One attempt at a request, which waits for the start of its
+     * response in a background thread.
+     */
+    private class Attempt {
+        final HttpURLConnection mConnection;
+        final CompletableFuture<HttpURLConnection> mFuture;
+
+        Attempt(HttpURLConnection connection) {
+            mConnection = connection;
+            long start = System.nanoTime();
+            mFuture = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        connection.getResponseCode();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    mAttempts.record(System.nanoTime() - start);
+                    return connection;
+                }, sExecutor);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package vandy.mooc.downloader.utils;
+
+/**
+ * Identifies the format and dimensions of an image by examining only
+ * the first few bytes of its encoded contents, which allows a
+ * download to be validated without decoding it.  JPEG, PNG, GIF,
+ * WebP, and BMP images are supported.
+ */
+public class ImageHeader {
+    /**
+     * Number of bytes needed to recognize the signature of every
+     * supported format.
+     */
+    public static final int SIGNATURE_LENGTH = 16;
+
+    /**
+     * Value of a dimension that hasn't been found (yet).
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * MIME type of the image, or null if the format isn't recognized.
+     */
+    private final String mMimeType;
+
+    /**
+     * Width of the image in pixels, or UNKNOWN.
+     */
+    private final int mWidth;
+
+    /**
+     * Height of the image in pixels, or UNKNOWN.
+     */
+    private final int mHeight;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    private ImageHeader(String mimeType,
+                        int width,
+                        int height) {
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * @return The MIME type of the image, or null if the format isn't
+     * recognized.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return The width of the image in pixels, or UNKNOWN.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return The height of the image in pixels, or UNKNOWN.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return True if the image is in a supported format.
+     */
+    public boolean isSupported() {
+        return mMimeType != null;
+    }
+
+    /**
+     * @return True if the dimensions of the image have been found.
+     */
+    public boolean hasDimensions() {
+        return mWidth != UNKNOWN && mHeight != UNKNOWN;
+    }
+
+    /**
+     * @return True if examining more bytes of the image could add
+     * information to this header.
+     */
+    public boolean needsMoreData(int length) {
+        return isSupported()
+            ? !hasDimensions()
+            : length < SIGNATURE_LENGTH;
+    }
+
+    /**
+     * Parse the first @a length bytes of @a data, which contain the
+     * beginning of an encoded image.
+     *
+     * @return An ImageHeader, which is never null.
+     */
+    public static ImageHeader parse(byte[] data,
+                                    int length) {
+        if (startsWith(data, length, 0xFF, 0xD8, 0xFF))
+            return parseJpeg(data, length);
+        else if (startsWith(data, length,
+                            0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A))
+            return length >= 24
+                ? new ImageHeader("image/png",
+                                  readIntBE(data, 16),
+                                  readIntBE(data, 20))
+                : new ImageHeader("image/png", UNKNOWN, UNKNOWN);
+        else if (startsWith(data, length, 'G', 'I', 'F', '8'))
+            return length >= 10
+                ? new ImageHeader("image/gif",
+                                  readShortLE(data, 6),
+                                  readShortLE(data, 8))
+                : new ImageHeader("image/gif", UNKNOWN, UNKNOWN);
+        else if (startsWith(data, length, 'R', 'I', 'F', 'F')
+                 && length >= 12
+                 && data[8] == 'W' && data[9] == 'E'
+                 && data[10] == 'B' && data[11] == 'P')
+            return parseWebp(data, length);
+        else if (startsWith(data, length, 'B', 'M'))
+            return parseBmp(data, length);
+        else
+            return new ImageHeader(null, UNKNOWN, UNKNOWN);
+    }
+
+    /**
+     * Find the dimensions in the start-of-frame segment of a JPEG.
+     */
+    private static ImageHeader parseJpeg(byte[] data,
+                                         int length) {
+        int i = 2;
+        while (i + 3 < length) {
+            if ((data[i] & 0xFF) != 0xFF)
+                // The segment structure is corrupt.
+                return new ImageHeader(null, UNKNOWN, UNKNOWN);
+
+            int marker = data[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Skip fill bytes.
+                i++;
+                continue;
+            }
+
+            // Standalone markers don't have a length field.
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                i += 2;
+                continue;
+            }
+
+            boolean startOfFrame = marker >= 0xC0 && marker <= 0xCF
+                && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (startOfFrame) {
+                if (i + 9 > length)
+                    break;
+                return new ImageHeader("image/jpeg",
+                                       readShortBE(data, i + 7),
+                                       readShortBE(data, i + 5));
+            }
+
+            // Skip over the segment.
+            i += 2 + readShortBE(data, i + 2);
+        }
+        return new ImageHeader("image/jpeg", UNKNOWN, UNKNOWN);
+    }
+
+    /**
+     * Find the dimensions in the first chunk of a WebP.
+     */
+    private static ImageHeader parseWebp(byte[] data,
+                                         int length) {
+        if (length < 30)
+            return new ImageHeader("image/webp", UNKNOWN, UNKNOWN);
+
+        if (data[12] == 'V' && data[13] == 'P'
+            && data[14] == '8' && data[15] == ' ')
+            // Lossy format.
+            return new ImageHeader("image/webp",
+                                   readShortLE(data, 26) & 0x3FFF,
+                                   readShortLE(data, 28) & 0x3FFF);
+        else if (data[12] == 'V' && data[13] == 'P'
+                 && data[14] == '8' && data[15] == 'L') {
+            // Lossless format.
+            int b1 = data[21] & 0xFF, b2 = data[22] & 0xFF;
+            int b3 = data[23] & 0xFF, b4 = data[24] & 0xFF;
+            return new ImageHeader("image/webp",
+                                   1 + (b1 | (b2 & 0x3F) << 8),
+                                   1 + ((b2 >> 6) | b3 << 2
+                                        | (b4 & 0x0F) << 10));
+        } else if (data[12] == 'V' && data[13] == 'P'
+                   && data[14] == '8' && data[15] == 'X')
+            // Extended format.
+            return new ImageHeader("image/webp",
+                                   1 + readInt24LE(data, 24),
+                                   1 + readInt24LE(data, 27));
+        else
+            return new ImageHeader("image/webp", UNKNOWN, UNKNOWN);
+    }
+
+    /**
+     * Find the dimensions in the DIB header of a BMP.
+     */
+    private static ImageHeader parseBmp(byte[] data,
+                                        int length) {
+        if (length < 26)
+            return new ImageHeader("image/bmp", UNKNOWN, UNKNOWN);
+
+        int dibSize = readIntLE(data, 14);
+        if (dibSize == 12)
+            return new ImageHeader("image/bmp",
+                                   readShortLE(data, 18),
+                                   readShortLE(data, 20));
+        else if (dibSize >= 40)
+            return new ImageHeader("image/bmp",
+                                   readIntLE(data, 18),
+                                   Math.abs(readIntLE(data, 22)));
+        else
+            return new ImageHeader(null, UNKNOWN, UNKNOWN);
+    }
+
+    /**
+     * @return True if the first @a length bytes of @a data begin with
+     * the given @a signature.
+     */
+    private static boolean startsWith(byte[] data,
+                                      int length,
+                                      int... signature) {
+        if (length < signature.length)
+            return false;
+        for (int i = 0; i < signature.length; i++)
+            if ((data[i] & 0xFF) != signature[i])
+                return false;
+        return true;
+    }
+
+    private static int readShortBE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readShortLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt24LE(byte[] data, int offset) {
+        return readShortLE(data, offset) | (data[offset + 2] & 0xFF) << 16;
+    }
+
+    private static int readIntBE(byte[] data, int offset) {
+        return readShortBE(data, offset) << 16 | readShortBE(data, offset + 2);
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return readShortLE(data, offset) | readShortLE(data, offset + 2) << 16;
+    }
+}
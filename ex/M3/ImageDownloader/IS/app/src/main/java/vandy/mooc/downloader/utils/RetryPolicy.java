@@ -0,0 +1,188 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.UnknownServiceException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a failed download is worth trying again and how
+ * long to wait before each retry.  The wait grows exponentially with
+ * the number of retries, up to a cap, and is drawn uniformly between
+ * zero and that bound ("full jitter"), so downloads that failed
+ * together don't all retry together and hit a recovering server with
+ * another burst.  Only transient failures are retried: network
+ * errors and the HTTP statuses a server returns when it's overloaded
+ * or briefly unavailable.
+ */
+public class RetryPolicy {
+    /**
+     * Default number of attempts, including the first one.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Default bound (in milliseconds) of the wait before the first
+     * retry, which doubles for each further retry.
+     */
+    public static final long DEFAULT_BASE_DELAY = 250;
+
+    /**
+     * Default cap (in milliseconds) of the wait before a retry.
+     */
+    public static final long DEFAULT_MAX_DELAY = 8 * 1000;
+
+    /**
+     * HTTP status code returned by a server that's rate limiting the
+     * client, which HttpURLConnection doesn't define.
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Maximum number of attempts, including the first one.
+     */
+    private volatile int mMaxAttempts;
+
+    /**
+     * Bound of the wait before the first retry and cap of the wait
+     * before any retry, in milliseconds.
+     */
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+
+    /**
+     * Counters that describe the retries.
+     */
+    private final AtomicLong mAttempts = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mRecoveries = new AtomicLong();
+    private final AtomicLong mGiveUps = new AtomicLong();
+
+    /**
+     * Constructor uses the default attempts and delays.
+     */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Constructor makes up to @a maxAttempts attempts, waiting up to
+     * @a baseDelay milliseconds before the first retry and doubling
+     * that bound for each further retry, up to @a maxDelay.
+     */
+    public RetryPolicy(int maxAttempts,
+                       long baseDelay,
+                       long maxDelay) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        mMaxAttempts = maxAttempts;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+    }
+
+    /**
+     * Set the maximum number of attempts, including the first one, to
+     * @a maxAttempts, where 1 disables retries.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return The maximum number of attempts, including the first one.
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @return The number of milliseconds to wait before retry number
+     * @a retry (starting at 1), drawn at random up to the exponential
+     * bound.
+     */
+    public long getDelay(int retry) {
+        long bound = mBaseDelay << Math.min(retry - 1, 30);
+        if (bound <= 0 || bound > mMaxDelay)
+            bound = mMaxDelay;
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * @return True if a response with the HTTP @a responseCode may
+     * succeed if the request is sent again later.
+     */
+    public static boolean isTransient(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+            || responseCode == HTTP_TOO_MANY_REQUESTS
+            || responseCode == HttpURLConnection.HTTP_INTERNAL_ERROR
+            || responseCode == HttpURLConnection.HTTP_BAD_GATEWAY
+            || responseCode == HttpURLConnection.HTTP_UNAVAILABLE
+            || responseCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * @return True if a request that failed with @a e may succeed if
+     * it's sent again later, i.e., it's a network error rather than a
+     * bad URL or a missing resource.
+     */
+    public static boolean isTransient(Throwable e) {
+        return e instanceof IOException
+            && !(e instanceof FileNotFoundException)
+            && !(e instanceof MalformedURLException)
+            && !(e instanceof ProtocolException)
+            && !(e instanceof UnknownServiceException);
+    }
+
+    /**
+     * Record that an attempt is being made, which is retry number
+     * @a retry (0 for the first attempt).
+     */
+    public void onAttempt(int retry) {
+        mAttempts.incrementAndGet();
+        if (retry > 0)
+            mRetries.incrementAndGet();
+    }
+
+    /**
+     * Record that a download succeeded after @a retries retries.
+     */
+    public void onSucceeded(int retries) {
+        if (retries > 0)
+            mRecoveries.incrementAndGet();
+    }
+
+    /**
+     * Record that a download failed transiently on its last attempt.
+     */
+    public void onGaveUp() {
+        mGiveUps.incrementAndGet();
+    }
+
+    /**
+     * @return The number of retries made so far.
+     */
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    /**
+     * @return A summary of the attempts, retries, and their outcomes.
+     */
+    public String getStats() {
+        return String.format(Locale.US,
+                             "retries (max %d attempts): %d attempts, "
+                             + "%d retries, %d recovered, %d gave up",
+                             mMaxAttempts,
+                             mAttempts.get(),
+                             mRetries.get(),
+                             mRecoveries.get(),
+                             mGiveUps.get());
+    }
+}
@@ -0,0 +1,84 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.Supplier;
+
+/**
+ * An InputStream that passes the bytes read from another stream
+ * through one or more TokenBuckets, which slows down the reads to
+ * the most restrictive bucket's rate.
+ */
+public class ThrottledInputStream
+       extends FilterInputStream {
+    /**
+     * Largest number of bytes read at once, which keeps the bursts
+     * small at slow rates.
+     */
+    private static final int MAX_READ = 16 * 1024;
+
+    /**
+     * Returns the buckets the bytes pass through.
+     */
+    private final Supplier<TokenBucket[]> mBuckets;
+
+    /**
+     * Constructor wraps @a in, passing its bytes through @a buckets.
+     */
+    public ThrottledInputStream(InputStream in,
+                                TokenBucket... buckets) {
+        this(in, () -> buckets);
+    }
+
+    /**
+     * Constructor wraps @a in, passing the bytes of each read through
+     * the buckets @a buckets returns at the time, e.g., because the
+     * priority of the download may change while it runs.
+     */
+    public ThrottledInputStream(InputStream in,
+                                Supplier<TokenBucket[]> buckets) {
+        super(in);
+        mBuckets = buckets;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+            throttle(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer,
+                    int offset,
+                    int length) throws IOException {
+        int count = super.read(buffer, offset, Math.min(length, MAX_READ));
+        if (count > 0)
+            throttle(count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = super.skip(Math.min(count, MAX_READ));
+        if (skipped > 0)
+            throttle((int) skipped);
+        return skipped;
+    }
+
+    /**
+     * Take @a count tokens from each bucket.
+     */
+    private void throttle(int count) throws IOException {
+        try {
+            for (TokenBucket bucket : mBuckets.get())
+                bucket.take(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("download cancelled");
+        }
+    }
+}
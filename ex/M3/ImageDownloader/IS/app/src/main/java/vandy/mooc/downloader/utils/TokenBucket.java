@@ -0,0 +1,125 @@
+package vandy.mooc.downloader.utils;
+
+/**
+ * A token bucket that limits how many bytes per second pass through
+ * it.  Tokens accrue at the rate up to a small burst, and a caller
+ * that finds the bucket overdrawn waits until the tokens it took
+ * have been paid back, so the long-run rate matches the limit while
+ * reads of any size are allowed.  The rate can be changed at any
+ * time, which wakes up the callers that are waiting.
+ */
+public class TokenBucket {
+    /**
+     * Rate that means "no limit".
+     */
+    public static final long UNLIMITED = 0;
+
+    /**
+     * How many seconds' worth of tokens can accrue, which bounds the
+     * burst sent after the bucket has been idle.
+     */
+    private static final double BURST_SECONDS = 0.05;
+
+    /**
+     * Smallest burst, so slow rates can still pass a reasonable read.
+     */
+    private static final double MIN_BURST = 4 * 1024;
+
+    /**
+     * The limit in bytes per second, or UNLIMITED.
+     */
+    private long mRate;
+
+    /**
+     * Tokens (bytes) available, which is negative if the bucket is
+     * overdrawn.
+     */
+    private double mTokens;
+
+    /**
+     * Time (in nanoseconds) tokens were last added.
+     */
+    private long mLastRefill = System.nanoTime();
+
+    /**
+     * Total number of bytes that have passed through the bucket.
+     */
+    private long mBytes;
+
+    /**
+     * Constructor limits the bucket to @a bytesPerSecond, or doesn't
+     * limit it if that's UNLIMITED.
+     */
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+        mTokens = getBurst();
+    }
+
+    /**
+     * Limit the bucket to @a bytesPerSecond, or don't limit it if
+     * that's UNLIMITED.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("negative rate");
+        refill();
+        mRate = bytesPerSecond;
+        mTokens = Math.min(mTokens, getBurst());
+        notifyAll();
+    }
+
+    /**
+     * @return The limit in bytes per second, or UNLIMITED.
+     */
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * @return The total number of bytes that have passed through.
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * Take @a count tokens, first waiting until the bucket is no
+     * longer overdrawn.
+     */
+    public synchronized void take(int count) throws InterruptedException {
+        mBytes += count;
+        for (;;) {
+            if (mRate == UNLIMITED)
+                return;
+
+            refill();
+            if (mTokens >= 0) {
+                mTokens -= count;
+                return;
+            }
+
+            // Wait until the debt has been paid back, or the rate
+            // changes.
+            long nanos = (long) (-mTokens * 1e9 / mRate);
+            wait(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    }
+
+    /**
+     * Add the tokens that accrued since the last refill.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        if (mRate != UNLIMITED)
+            mTokens = Math.min(getBurst(),
+                               mTokens + (now - mLastRefill) * mRate / 1e9);
+        mLastRefill = now;
+    }
+
+    /**
+     * @return The most tokens that can accrue.
+     */
+    private double getBurst() {
+        return Math.max(MIN_BURST, mRate * BURST_SECONDS);
+    }
+}
@@ -0,0 +1,74 @@
+package vandy.mooc.downloader.service;
+
+import android.content.Intent;
+import android.os.CancellationSignal;
+
+/**
+ * A download request waiting in (or taken from) the DownloadService's
+ * HostScheduler, which hands requests out by priority, taking turns
+ * among their hosts, and keeps those of equal priority for the same
+ * host first-in, first-out.
+ */
+class DownloadRequest {
+    /**
+     * The Intent sent to the DownloadService.
+     */
+    final Intent mIntent;
+
+    /**
+     * Identifies the request so it can be cancelled.
+     */
+    final long mId;
+
+    /**
+     * The host the image is downloaded from, or null for a batch,
+     * whose images may come from several hosts.
+     */
+    final String mHost;
+
+    /**
+     * The priority, where lower values are processed first.
+     */
+    final int mPriority;
+
+    /**
+     * Time (in milliseconds since boot) after which the request is
+     * dropped rather than started, or 0 if it never expires.
+     */
+    final long mDeadline;
+
+    /**
+     * Time (in milliseconds since boot) the request was queued.
+     */
+    final long mEnqueueTime;
+
+    /**
+     * Cancels the download once it has started.
+     */
+    final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+    /**
+     * Constructor initializes the fields.
+     */
+    DownloadRequest(Intent intent,
+                    long id,
+                    String host,
+                    int priority,
+                    long deadline,
+                    long enqueueTime) {
+        mIntent = intent;
+        mId = id;
+        mHost = host;
+        mPriority = priority;
+        mDeadline = deadline;
+        mEnqueueTime = enqueueTime;
+    }
+
+    /**
+     * @return True if the request's deadline passed before time
+     * @a now.
+     */
+    boolean isExpired(long now) {
+        return mDeadline != 0 && now > mDeadline;
+    }
+}
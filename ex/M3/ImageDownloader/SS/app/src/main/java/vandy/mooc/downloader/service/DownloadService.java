@@ -6,6 +6,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -13,9 +14,31 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vandy.mooc.downloader.R;
+import vandy.mooc.downloader.utils.BandwidthLimiter;
+import vandy.mooc.downloader.utils.BufferPool;
+import vandy.mooc.downloader.utils.ConcurrencyLimiter;
+import vandy.mooc.downloader.utils.DownloadOptions;
+import vandy.mooc.downloader.utils.DownloadPipeline;
 import vandy.mooc.downloader.utils.DownloadUtils;
+import vandy.mooc.downloader.utils.GroupCommit;
+import vandy.mooc.downloader.utils.HostScheduler;
+import vandy.mooc.downloader.utils.ImageCache;
+import vandy.mooc.downloader.utils.MediaIndexer;
+import vandy.mooc.downloader.utils.TokenBucket;
 
 /**
  * Uses a started service to download and store a bitmap image on
@@ -26,9 +49,37 @@ import vandy.mooc.downloader.utils.DownloadUtils;
  * 
  * The DownloadService class implements the CommandProcessor pattern
  * and the Messenger is used as part of the Active Object pattern.
+ *
+ * By default requests are processed one at a time in a HandlerThread.
+ * If the "download_worker_count" resource is greater than one, the
+ * requests are instead processed concurrently by a fixed-size pool
+ * of worker threads.  If the "download_adaptive_concurrency" resource
+ * is true, a ConcurrencyLimiter starts with that many concurrent
+ * downloads and adjusts the number, up to "download_max_workers",
+ * to the latency and throughput it observes.  A request is then only
+ * taken off the queue once the limiter has room for it.
+ *
+ * A batch Intent made by makeBatchIntent() carries a list of URLs
+ * that are downloaded as a single start request.  A result is sent
+ * back for each URL as soon as it completes, followed by a summary
+ * once the whole batch is done.
+ *
+ * Requests wait in a priority queue rather than in the order they
+ * arrive, so an interactive request isn't stuck behind a backlog of
+ * background prefetches.  A request can be given a deadline after
+ * which it's dropped instead of started, and it can be cancelled by
+ * its ID via makeCancelIntent(), which aborts the transfer if it has
+ * already begun.  While an interactive request is in progress,
+ * background downloads are held to the "download_background_rate"
+ * resource by the BandwidthLimiter.
  */
 public class DownloadService 
        extends Service {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
     /**
      * String constant used to extract the Messenger "extra" from an
      * intent.
@@ -41,6 +92,57 @@ public class DownloadService
      */
     private static final String PATHNAME = "PATHNAME";
 
+    /**
+     * String constant used to extract the list of URLs "extra" from
+     * a batch intent.
+     */
+    private static final String URLS = "URLS";
+
+    /**
+     * String constants used to extract the ID, priority, and
+     * deadline "extras" from an intent.
+     */
+    private static final String REQUEST_ID = "REQUEST_ID";
+    private static final String PRIORITY = "PRIORITY";
+    private static final String DEADLINE = "DEADLINE";
+
+    /**
+     * Action of an intent that cancels a request.
+     */
+    private static final String ACTION_CANCEL =
+        "vandy.mooc.downloader.action.CANCEL";
+
+    /**
+     * Request priorities.  Interactive requests, e.g., for the image
+     * the user is waiting to see, are processed before background
+     * requests, e.g., prefetches.
+     */
+    public static final int PRIORITY_INTERACTIVE =
+        DownloadOptions.PRIORITY_INTERACTIVE;
+    public static final int PRIORITY_BACKGROUND =
+        DownloadOptions.PRIORITY_BACKGROUND;
+
+    /**
+     * Source of the IDs of requests made in this process.
+     */
+    private static final AtomicLong sNextRequestId = new AtomicLong();
+
+    /**
+     * Values of Message.what for the two kinds of reply sent to the
+     * DownloadActivity: the final result of a download, and an update
+     * on its progress that holds the number of bytes downloaded so
+     * far and the length of the image (or -1), which getBytesRead()
+     * and getTotalBytes() return.
+     * A batch request instead gets a result for each of its URLs,
+     * whose arg2 holds the index of the URL, followed by a summary
+     * whose arg1 and arg2 hold the number of URLs that succeeded and
+     * failed.
+     */
+    public static final int DOWNLOAD_RESULT = 0;
+    public static final int DOWNLOAD_PROGRESS = 1;
+    public static final int DOWNLOAD_ITEM_RESULT = 2;
+    public static final int DOWNLOAD_BATCH_SUMMARY = 3;
+
     /**
      * Looper associated with the HandlerThread.
      */
@@ -52,21 +154,200 @@ public class DownloadService
      */
     private volatile ServiceHandler mServiceHandler;
 
+    /**
+     * Pool of worker threads that process download requests
+     * concurrently, or null if requests are processed sequentially
+     * by the ServiceHandler.
+     */
+    private ExecutorService mExecutor;
+
+    /**
+     * Lock that protects the fields below, which keep track of the
+     * outstanding download requests.
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * Number of requests received by onStartCommand() that haven't
+     * yet finished.
+     */
+    private int mOutstandingRequests;
+
+    /**
+     * The startId of the most recent request received by
+     * onStartCommand().
+     */
+    private int mLastStartId;
+
+    /**
+     * Number of interactive requests in progress, while which
+     * background downloads are limited to "download_background_rate".
+     */
+    private int mInteractiveCount;
+
+    /**
+     * Bytes per second left to background downloads while an
+     * interactive request is in progress, or TokenBucket.UNLIMITED.
+     */
+    private long mBackgroundRate;
+
+    /**
+     * Options given to every download, which come from the
+     * configuration: the largest number of connections a large image
+     * is downloaded over, and whether images are re-encoded as JPEGs
+     * of the given quality, no larger than the given size, before
+     * they're stored.
+     */
+    private int mMaxSegments;
+    private boolean mReencode;
+    private int mReencodeQuality;
+    private int mMaxImageWidth;
+    private int mMaxImageHeight;
+
+    /**
+     * Number of requests received since the service last became
+     * idle, which is used to log the throughput of each burst.
+     */
+    private int mBurstCount;
+
+    /**
+     * Time (in milliseconds since boot) the current burst began.
+     */
+    private long mBurstStartTime;
+
+    /**
+     * Statistics about the time requests wait in mQueue, which
+     * reveal head-of-line blocking.
+     */
+    private long mDequeuedCount;
+    private long mTotalWaitTime;
+    private long mMaxWaitTime;
+    private int mMaxQueueDepth;
+    private int mDroppedCount;
+    private int mCancelledCount;
+
+    /**
+     * Requests that haven't started yet, which are started highest
+     * priority first, taking turns among hosts and keeping no more
+     * than "download_max_per_host" requests per host in progress.
+     */
+    private HostScheduler<DownloadRequest> mQueue;
+
+    /**
+     * Requests that are queued or in progress, keyed by ID, so they
+     * can be cancelled.
+     */
+    private final ConcurrentHashMap<Long, DownloadRequest> mRequests =
+        new ConcurrentHashMap<>();
+
     /**
      * Factory method to make the desired Intent.
      */
     public static Intent makeIntent(Context context,
                                     Uri url,
                                     Handler downloadHandler) {
+        return makeIntent(context,
+                          url,
+                          downloadHandler,
+                          PRIORITY_INTERACTIVE,
+                          0);
+    }
+
+    /**
+     * Factory method to make an Intent with the given @a priority
+     * that's dropped if it hasn't started within @a timeout
+     * milliseconds (or never if @a timeout is 0).
+     */
+    public static Intent makeIntent(Context context,
+                                    Uri url,
+                                    Handler downloadHandler,
+                                    int priority,
+                                    long timeout) {
         // Create an intent associated with the DownloadService class.
+        return makeRequestIntent(context,
+                                 downloadHandler,
+                                 priority,
+                                 timeout)
+            // Set the URI as data in the Intent.
+            .setData(url);
+    }
+
+    /**
+     * Factory method to make an Intent that downloads all the
+     * @a urls with a single start request.
+     */
+    public static Intent makeBatchIntent(Context context,
+                                         ArrayList<Uri> urls,
+                                         Handler downloadHandler) {
+        return makeBatchIntent(context,
+                               urls,
+                               downloadHandler,
+                               PRIORITY_INTERACTIVE,
+                               0);
+    }
+
+    /**
+     * Factory method to make a batch Intent with the given
+     * @a priority that's dropped if it hasn't started within
+     * @a timeout milliseconds (or never if @a timeout is 0).
+     */
+    public static Intent makeBatchIntent(Context context,
+                                         ArrayList<Uri> urls,
+                                         Handler downloadHandler,
+                                         int priority,
+                                         long timeout) {
+        return makeRequestIntent(context,
+                                 downloadHandler,
+                                 priority,
+                                 timeout)
+            // Pass the list of URIs as an "extra".
+            .putParcelableArrayListExtra(URLS,
+                                         urls);
+    }
+
+    /**
+     * Factory method to make an Intent that cancels the request made
+     * by the Intent with the given @a requestId.
+     */
+    public static Intent makeCancelIntent(Context context,
+                                          long requestId) {
+        return new Intent(context,
+                          DownloadService.class)
+            .setAction(ACTION_CANCEL)
+            .putExtra(REQUEST_ID,
+                      requestId);
+    }
+
+    /**
+     * Helper method that returns the ID of the request made by the
+     * @a intent, which can be passed to makeCancelIntent().
+     */
+    public static long getRequestId(Intent intent) {
+        return intent.getLongExtra(REQUEST_ID, -1);
+    }
+
+    /**
+     * Factory method that makes an Intent with the extras shared by
+     * all download requests.
+     */
+    private static Intent makeRequestIntent(Context context,
+                                            Handler downloadHandler,
+                                            int priority,
+                                            long timeout) {
         return new Intent(context,
                           DownloadService.class)
-            // Set the URI as data in the Intent.
-            .setData(url)
             // Create and pass a Messenger as an "extra" so the
-            // DownloadService can send back the pathname.
+            // DownloadService can send back the results.
             .putExtra(MESSENGER,
-                      new Messenger(downloadHandler));
+                      new Messenger(downloadHandler))
+            .putExtra(REQUEST_ID,
+                      sNextRequestId.incrementAndGet())
+            .putExtra(PRIORITY,
+                      priority)
+            .putExtra(DEADLINE,
+                      timeout > 0
+                      ? SystemClock.elapsedRealtime() + timeout
+                      : 0);
     }
 
     /**
@@ -82,7 +363,107 @@ public class DownloadService
      */
     public void onCreate() {
         super.onCreate();
-        
+
+        // Size the buffers used to copy downloaded bytes for the
+        // expected link speed.
+        BufferPool.setBufferSize
+            (getResources().getInteger(R.integer.download_buffer_size));
+
+        // Leave most of the bandwidth to interactive requests.
+        mBackgroundRate =
+            getResources().getInteger(R.integer.download_background_rate);
+
+        // Download large images over several connections, and
+        // shrink images before storing them, if so configured.
+        mMaxSegments =
+            getResources().getInteger(R.integer.download_max_segments);
+        mReencode = getResources().getBoolean(R.bool.download_reencode);
+        mReencodeQuality =
+            getResources().getInteger(R.integer.download_reencode_quality);
+        mMaxImageWidth =
+            getResources().getInteger(R.integer.download_max_image_width);
+        mMaxImageHeight =
+            getResources().getInteger(R.integer.download_max_image_height);
+
+        // Resend requests whose responses are unusually slow.
+        DownloadUtils.getHedging()
+            .setEnabled(getResources().getBoolean(R.bool.download_hedging));
+
+        // Bound the disk space used by downloaded images.
+        ImageCache.getInstance(this)
+            .setDiskBudget(getResources().getInteger(R.integer.download_disk_budget_mb)
+                           * 1024L * 1024);
+
+        // Sync downloaded images to the disk before publishing them.
+        DownloadUtils.getGroupCommit()
+            .setDurability(GroupCommit.Durability.valueOf
+                           (getResources().getString(R.string.download_durability)
+                            .toUpperCase(Locale.US)),
+                           getResources().getInteger(R.integer.download_sync_batch_size),
+                           getResources().getInteger(R.integer.download_sync_interval_ms));
+
+        // Retry downloads that fail transiently.
+        DownloadUtils.getRetryPolicy()
+            .setMaxAttempts(getResources().getInteger(R.integer.download_max_attempts));
+
+        // Keep a slow host from occupying every worker.
+        int maxPerHost =
+            getResources().getInteger(R.integer.download_max_per_host);
+        mQueue =
+            new HostScheduler<>(maxPerHost,
+                                Integer.MAX_VALUE,
+                                Comparator.comparingInt(request ->
+                                                        request.mPriority));
+
+        // Determine how many downloads can run concurrently.
+        int workerCount =
+            getResources().getInteger(R.integer.download_worker_count);
+
+        if (getResources().getBoolean(R.bool.download_adaptive_concurrency)) {
+            // Start with the configured number of concurrent
+            // downloads and let the limiter adjust it to the link,
+            // with enough worker threads for its largest limit.
+            int maxWorkers =
+                getResources().getInteger(R.integer.download_max_workers);
+            ConcurrencyLimiter limiter =
+                new ConcurrencyLimiter(workerCount, 1, maxWorkers);
+            limiter.setListener((oldLimit, newLimit, reason) ->
+                                Log.d(TAG,
+                                      "concurrency limit "
+                                      + oldLimit
+                                      + " -> "
+                                      + newLimit
+                                      + " ("
+                                      + reason
+                                      + ")"));
+            // Start a queued request whenever the limiter has room
+            // for another download.
+            limiter.setOnAvailable(() -> {
+                    if (mQueue.size() > 0)
+                        scheduleNextRequest(0);
+                });
+            DownloadUtils.setConcurrencyLimiter(limiter);
+            workerCount = maxWorkers;
+        }
+
+        // Hold the images of batch requests, which reach the queue
+        // without a host, to the same per-host cap.  The pipeline is
+        // created after the limiter, which sizes its fetch stage.
+        DownloadPipeline.getInstance().setMaxPerHost(maxPerHost);
+
+        if (workerCount > 1) {
+            // Create a fixed-size pool of worker threads that run
+            // multiple downloads in parallel.
+            mExecutor =
+                Executors.newFixedThreadPool(workerCount,
+                                             makeThreadFactory());
+            Log.d(TAG,
+                  "processing downloads with "
+                  + workerCount
+                  + " worker threads");
+            return;
+        }
+
         // Create and start a background HandlerThread since by
         // default a Service runs in the UI Thread, which we don't
         // want to block.
@@ -105,15 +486,20 @@ public class DownloadService
     public int onStartCommand(Intent intent, 
                               int flags,
                               int startId) {
-        // Create a Message that will be sent to ServiceHandler to
-        // retrieve an image-based on the URI in the Intent.
-        Message message =
-            mServiceHandler.makeDownloadMessage(intent,
-                                                startId);
-        
-        // Send the Message to ServiceHandler to retrieve an image
-        // based on contents of the Intent.
-        mServiceHandler.sendMessage(message);
+        // Record the new request before it can possibly complete.
+        onRequestStarted(startId);
+
+        if (ACTION_CANCEL.equals(intent.getAction())) {
+            cancelRequest(getRequestId(intent));
+            onRequestCompleted();
+            return Service.START_NOT_STICKY;
+        }
+
+        // Queue the request by priority.
+        enqueueRequest(intent);
+
+        // Process the best queued request.
+        scheduleNextRequest(startId);
         
         // Don't restart the DownloadService automatically if its
         // process is killed while it's running.
@@ -138,20 +524,13 @@ public class DownloadService
     	}
 
         /**
-         * A factory method that creates a Message that contains
-         * information on the image to download and how to stop the
-         * Service.
+         * A factory method that creates a Message that tells the
+         * ServiceHandler to process the best queued request.
          */
-        private Message makeDownloadMessage(Intent intent,
-                                            int startId){
+        private Message makeDownloadMessage(int startId){
             Message message = Message.obtain();
-            // Include Intent and startId in Message to indicate which
-            // URI to retrieve and which request is being stopped when
-            // download completes.
-            message.obj = intent;
-
-            // The Service is only stopped when startId matches the
-            // last start request.
+            // Include the startId of the start request that queued a
+            // request, which helps with debugging.
             message.arg1 = startId;
 
             return message;
@@ -163,76 +542,663 @@ public class DownloadService
          * with the Intent.
          */
         public void handleMessage(Message message) {
-            // Get the intent from the message.
-            Intent intent = (Intent) message.obj;
+            // Download the image(s) and reply to the DownloadActivity.
+            processNextRequest();
+        }
+    }
+
+    /**
+     * Process the best queued request in the next available worker
+     * thread or the HandlerThread.  The @a startId of the start
+     * request that caused this helps with debugging.
+     */
+    private void scheduleNextRequest(int startId) {
+        if (mExecutor != null)
+            // Run the best queued request in the next available
+            // worker thread.
+            mExecutor.execute(this::processNextRequest);
+        else {
+            // Create a Message that will be sent to ServiceHandler to
+            // process the best queued request.
+            Message message =
+                mServiceHandler.makeDownloadMessage(startId);
+        
+            // Send the Message to ServiceHandler to retrieve an image
+            // based on contents of the queued Intent.
+            mServiceHandler.sendMessage(message);
+        }
+    }
+
+    /**
+     * Add the request made by the @a intent to the queue.
+     */
+    private void enqueueRequest(Intent intent) {
+        DownloadRequest request =
+            new DownloadRequest(intent,
+                                getRequestId(intent),
+                                intent.hasExtra(URLS)
+                                ? null
+                                : HostScheduler.hostOf(intent.getData().toString()),
+                                intent.getIntExtra(PRIORITY,
+                                                   PRIORITY_INTERACTIVE),
+                                intent.getLongExtra(DEADLINE, 0),
+                                SystemClock.elapsedRealtime());
+        mRequests.put(request.mId, request);
+        mQueue.offer(request.mHost, request);
+
+        synchronized (mLock) {
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+        }
+    }
+
+    /**
+     * Take the highest priority request whose host isn't busy off
+     * the queue and process it, dropping it instead if its deadline
+     * has passed.  If there's a ConcurrencyLimiter, a request is only
+     * taken once the limiter has a permit for it, so requests that
+     * can't run yet stay in the queue, where a more urgent request
+     * that arrives later still goes ahead of them.  This method runs
+     * in either the HandlerThread or a worker thread.
+     */
+    private void processNextRequest() {
+        ConcurrencyLimiter limiter = DownloadUtils.getConcurrencyLimiter();
+        long permit = ConcurrencyLimiter.NO_PERMIT;
+        if (limiter != null) {
+            permit = limiter.tryAcquire();
+            if (permit == ConcurrencyLimiter.NO_PERMIT)
+                // Every permit is in use, so the request is started
+                // when the limiter has room for it.
+                return;
+        }
+
+        DownloadRequest request = mQueue.poll();
+        if (request == null) {
+            // The request was cancelled while it was queued, or its
+            // host is busy, in which case it's started when one of
+            // that host's requests finishes.
+            if (limiter != null)
+                limiter.cancel(permit);
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long waitTime = now - request.mEnqueueTime;
+        synchronized (mLock) {
+            if (request.mPriority == PRIORITY_INTERACTIVE
+                && mInteractiveCount++ == 0)
+                // Hold background downloads to the spare capacity.
+                BandwidthLimiter.setRate(PRIORITY_BACKGROUND,
+                                         mBackgroundRate);
+            mDequeuedCount++;
+            mTotalWaitTime += waitTime;
+            mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+        }
+        Log.d(TAG,
+              "starting request "
+              + request.mId
+              + " (priority "
+              + request.mPriority
+              + ") after waiting "
+              + waitTime
+              + " ms, "
+              + mQueue.size()
+              + " still queued");
+
+        if (request.isExpired(now)) {
+            Log.d(TAG,
+                  "dropping request "
+                  + request.mId
+                  + " whose deadline passed");
+            synchronized (mLock) {
+                mDroppedCount++;
+            }
+            releasePermit(limiter, permit);
+            rejectRequest(request, true);
+        } else if (request.mIntent.hasExtra(URLS)) {
+            // The DownloadPipeline limits the fetches of the batch's
+            // images itself.
+            releasePermit(limiter, permit);
+            processBatch(request);
+        } else
+            processDownload(request, permit);
+    }
+
+    /**
+     * Release the @a permit taken from the @a limiter (if any) for a
+     * request that won't download anything itself.
+     */
+    private static void releasePermit(ConcurrencyLimiter limiter,
+                                      long permit) {
+        if (limiter != null)
+            limiter.onIgnored(permit);
+    }
+
+    /**
+     * Cancel the request with the given @a requestId, removing it
+     * from the queue if it hasn't started and otherwise aborting its
+     * transfer.
+     */
+    private void cancelRequest(long requestId) {
+        DownloadRequest request = mRequests.get(requestId);
+        if (request == null)
+            // The request has already finished.
+            return;
+
+        synchronized (mLock) {
+            mCancelledCount++;
+        }
+
+        if (mQueue.remove(request)) {
+            Log.d(TAG,
+                  "cancelled queued request " + requestId);
+            rejectRequest(request, false);
+        } else {
+            Log.d(TAG,
+                  "cancelling request " + requestId + " in progress");
+            request.mCancellationSignal.cancel();
+        }
+    }
+
+    /**
+     * Reply to a @a request that won't be processed as if all its
+     * downloads failed, and complete it.  If it was @a started, it
+     * was taken from the queue.
+     */
+    private void rejectRequest(DownloadRequest request,
+                               boolean started) {
+        try {
+            if (request.mIntent.hasExtra(URLS)) {
+                ArrayList<Uri> urls =
+                    request.mIntent.getParcelableArrayListExtra(URLS);
+                send(getMessenger(request.mIntent),
+                     Message.obtain(null,
+                                    DOWNLOAD_BATCH_SUMMARY,
+                                    0,
+                                    urls.size()));
+            } else
+                sendPath(request.mIntent, null);
+        } finally {
+            finishRequest(request, started);
+        }
+    }
+
+    /**
+     * @return New DownloadOptions holding the configured options that
+     * apply to every download.
+     */
+    private DownloadOptions newOptions() {
+        DownloadOptions options = new DownloadOptions();
+        options.maxSegments = mMaxSegments;
+        options.reencode = mReencode;
+        options.reencodeQuality = mReencodeQuality;
+        options.maxWidth = mMaxImageWidth;
+        options.maxHeight = mMaxImageHeight;
+        return options;
+    }
+
+    /**
+     * Retrieve the image designated by the @a request from a remote
+     * server, reply to the DownloadActivity via the Messenger sent
+     * with its intent, and then stop the service if no other
+     * requests are outstanding.  The download runs under the
+     * @a permit of the ConcurrencyLimiter taken for it, if any.  This
+     * method runs in either the HandlerThread or a worker thread.
+     */
+    private void processDownload(DownloadRequest request,
+                                 long permit) {
+        Intent intent = request.mIntent;
+        try {
+            // Forward the progress of the download to the
+            // DownloadActivity.
+            DownloadOptions options = newOptions();
+            options.progressListener =
+                new ProgressReporter(getMessenger(intent));
+
+            // Allow the download to be cancelled.
+            options.cancellationSignal = request.mCancellationSignal;
+
+            // Shape its bandwidth by its priority class.
+            options.priority = request.mPriority;
+
+            // Start fetching under the permit taken for the request.
+            options.limiterPermit = permit;
 
             // Download the image at the given url.
             Uri uri =
-		        DownloadUtils.downloadImage(DownloadService.this,
-                                            intent.getData());
+                DownloadUtils.downloadImage(DownloadService.this,
+                                            intent.getData(),
+                                            options);
 
             // Send the pathname via the messenger in the intent.
             sendPath(intent, uri);
-            
-            // stopSelf() implements Android's "Concurrent Service Stopping
-            // idiom" and only stops the service when startId matches
-            // the last start request (received by onStartCommand())
-            // to avoid destroying the service in the middle of
-            // handling another download request.
-            stopSelf(message.arg1);
-
-            // More complex mechanisms are needed to stop
-            // multi-threaded services.
+        } finally {
+            finishRequest(request, true);
         }
+    }
+
+    /**
+     * Retrieve each image in the batch designated by the @a request,
+     * replying to the DownloadActivity as each one completes.  The
+     * images are handed to the DownloadPipeline, so the fetching,
+     * decoding, and storing of different images overlap, and this
+     * thread blocks only while the pipeline is full.
+     */
+    private void processBatch(DownloadRequest request) {
+        ArrayList<Uri> urls =
+            request.mIntent.getParcelableArrayListExtra(URLS);
+        Batch batch = new Batch(request, urls);
+
+        // Cancelling the request cancels the images that haven't
+        // finished.
+        request.mCancellationSignal.setOnCancelListener(batch::cancel);
+
+        // Count each image of the batch in the throughput log.
+        synchronized (mLock) {
+            mBurstCount += urls.size() - 1;
+        }
+
+        if (urls.isEmpty())
+            batch.finish();
+        else
+            for (int i = 0; i < urls.size(); i++)
+                batch.downloadItem(i);
+    }
 
+    /**
+     * Keeps track of the images of a batch request that are still
+     * being downloaded, so the summary is sent and the request
+     * completes after the last one finishes.
+     */
+    private final class Batch {
         /**
-         * Send the @a pathname back to the DownloadActivity via the
-         * messenger in the @a intent.
+         * The request that made the batch.
          */
-        private void sendPath(Intent intent,
-                              Uri pathname) {
-            // Extract the Messenger.
-            Messenger messenger = (Messenger)
-                    intent.getExtras().get(MESSENGER);
-
-            // Call factory method to create Message.
-            Message message = makeReplyMessage(pathname);
-        
+        private final DownloadRequest mRequest;
+
+        /**
+         * The Messenger that receives the results.
+         */
+        private final Messenger mMessenger;
+
+        /**
+         * The URLs of the images.
+         */
+        private final ArrayList<Uri> mUrls;
+
+        /**
+         * Number of images that haven't finished downloading.
+         */
+        private final AtomicInteger mRemaining;
+
+        /**
+         * Number of images downloaded successfully.
+         */
+        private final AtomicInteger mSucceeded = new AtomicInteger();
+
+        /**
+         * Signals that cancel the download of each image, since a
+         * CancellationSignal can only cancel one download at a time.
+         */
+        private final CancellationSignal[] mSignals;
+
+        /**
+         * True once the batch has been cancelled.
+         */
+        private volatile boolean mCancelled;
+
+        /**
+         * Constructor initializes the fields.
+         */
+        Batch(DownloadRequest request,
+              ArrayList<Uri> urls) {
+            mRequest = request;
+            mMessenger = getMessenger(request.mIntent);
+            mUrls = urls;
+            mRemaining = new AtomicInteger(urls.size());
+            mSignals = new CancellationSignal[urls.size()];
+            for (int i = 0; i < mSignals.length; i++)
+                mSignals[i] = new CancellationSignal();
+        }
+
+        /**
+         * Cancel the images that haven't finished downloading.
+         */
+        void cancel() {
+            mCancelled = true;
+            for (CancellationSignal signal : mSignals)
+                signal.cancel();
+        }
+
+        /**
+         * Submit the image at position @a index of the batch to the
+         * DownloadPipeline, sending its result back once it's done.
+         */
+        void downloadItem(int index) {
+            if (mCancelled) {
+                onItemDone(index, null);
+                return;
+            }
+
+            DownloadOptions options = newOptions();
+            options.cancellationSignal = mSignals[index];
+            options.priority = mRequest.mPriority;
+            DownloadPipeline.getInstance()
+                .submit(DownloadService.this,
+                        mUrls.get(index),
+                        options)
+                .thenAccept(pathname -> onItemDone(index, pathname));
+        }
+
+        /**
+         * Send back the @a pathname of the image at position
+         * @a index of the batch, or null if it failed.
+         */
+        void onItemDone(int index,
+                        Uri pathname) {
             try {
-                // Send pathname to back to the DownloadActivity.
-                messenger.send(message);
-            } catch (RemoteException e) {
-                // DeadObjectException is thrown if target handler no
-                // longer exists.
-                Log.e(getClass().getName(),
-                      "Exception while sending.",
-                      e);
+                if (pathname != null)
+                    mSucceeded.incrementAndGet();
+
+                Message message = makeReplyMessage(pathname);
+                message.what = DOWNLOAD_ITEM_RESULT;
+                message.arg2 = index;
+                send(mMessenger, message);
+            } finally {
+                if (mRemaining.decrementAndGet() == 0)
+                    finish();
             }
         }
 
         /**
-         * A factory method that creates a Message to return to the
-         * DownloadActivity with the pathname of the downloaded image.
+         * Send the summary of the batch and complete its request.
          */
-        private Message makeReplyMessage(Uri pathname){
-            Message message = Message.obtain();
-            // Return the result to indicate whether the download
-            // succeeded or failed.
-            if (pathname != null) {
-                message.arg1 = Activity.RESULT_OK;
-                Bundle data = new Bundle();
-
-                // Pathname for the downloaded image.
-                data.putString(PATHNAME,
-			       pathname.toString());
-                message.setData(data);
-            } else
-                message.arg1 = Activity.RESULT_CANCELED;
+        void finish() {
+            try {
+                send(mMessenger,
+                     Message.obtain(null,
+                                    DOWNLOAD_BATCH_SUMMARY,
+                                    mSucceeded.get(),
+                                    mUrls.size() - mSucceeded.get()));
+            } finally {
+                finishRequest(mRequest, true);
+            }
+        }
+    }
 
-            return message;
+    /**
+     * Forget the @a request once it's done.  If it was @a started,
+     * its host has room for another request, so process a queued
+     * request that may have been held back.
+     */
+    private void finishRequest(DownloadRequest request,
+                               boolean started) {
+        mRequests.remove(request.mId);
+        if (started) {
+            synchronized (mLock) {
+                if (request.mPriority == PRIORITY_INTERACTIVE
+                    && --mInteractiveCount == 0)
+                    // Give background downloads the whole link again.
+                    BandwidthLimiter.setRate(PRIORITY_BACKGROUND,
+                                             TokenBucket.UNLIMITED);
+            }
+            mQueue.onFinished(request.mHost);
+            if (mQueue.size() > 0)
+                scheduleNextRequest(0);
         }
+        onRequestCompleted();
+    }
+
+    /**
+     * Keep track of a request received by onStartCommand().
+     */
+    private void onRequestStarted(int startId) {
+        synchronized (mLock) {
+            if (mOutstandingRequests++ == 0) {
+                // The service was idle, so a new burst begins.
+                mBurstCount = 0;
+                mBurstStartTime = SystemClock.elapsedRealtime();
+            }
+            mBurstCount++;
+            mLastStartId = startId;
+        }
+    }
+
+    /**
+     * Keep track of a request that has finished and stop the service
+     * after the last outstanding request finishes.
+     */
+    private void onRequestCompleted() {
+        String summary;
+        synchronized (mLock) {
+            if (--mOutstandingRequests > 0)
+                return;
+
+            long elapsed =
+                SystemClock.elapsedRealtime() - mBurstStartTime;
+            summary = "downloaded "
+                + mBurstCount
+                + " image(s) in "
+                + elapsed
+                + " ms ("
+                + (mBurstCount * 1000.0 / Math.max(elapsed, 1))
+                + " images/sec) using "
+                + (mExecutor != null ? "worker pool" : "HandlerThread");
+
+            // Requests may complete in a different order than they
+            // were started when multiple workers are used, so
+            // stopSelf(startId) is only called once no requests are
+            // outstanding.  It's passed the startId of the last start
+            // request so the service is not stopped if a new request
+            // has been delivered but not yet processed by
+            // onStartCommand().
+            stopSelf(mLastStartId);
+        }
+
+        Log.d(TAG,
+              summary);
+
+        // Gathering the stats takes the locks of the downloader's
+        // components and may create some of them, so it's done
+        // outside mLock, only when debug logging is enabled, and never
+        // in the main thread, where a cancel request may finish the
+        // last outstanding request.
+        if (Log.isLoggable(TAG, Log.DEBUG)
+            && Looper.myLooper() != Looper.getMainLooper())
+            logStats();
+    }
+
+    /**
+     * Log the stats of the queue and of the downloader's components.
+     * This method runs in a worker thread or the HandlerThread.
+     */
+    private void logStats() {
+        Log.d(TAG,
+              getQueueStats());
+        Log.d(TAG,
+              "pipeline: " + DownloadPipeline.getInstance().getStats());
+        Log.d(TAG,
+              BandwidthLimiter.getStats());
+        Log.d(TAG,
+              DownloadUtils.getHedging().getStats());
+        Log.d(TAG,
+              DownloadUtils.getRetryPolicy().getStats());
+        Log.d(TAG,
+              DownloadUtils.getCircuitBreaker().getStats());
+        Log.d(TAG,
+              DownloadUtils.getImageStore().getStats());
+        Log.d(TAG,
+              ImageCache.getInstance(this).getStats());
+        Log.d(TAG,
+              DownloadUtils.getGroupCommit().getStats());
+        Log.d(TAG,
+              MediaIndexer.getInstance(this).getStats());
+        if (DownloadUtils.getConcurrencyLimiter() != null)
+            Log.d(TAG,
+                  "concurrency: "
+                  + DownloadUtils.getConcurrencyLimiter().getStats());
+    }
+
+    /**
+     * @return A summary of how long requests have waited in the
+     * queue, how deep it has grown, and how many requests were
+     * dropped or cancelled.
+     */
+    private String getQueueStats() {
+        synchronized (mLock) {
+            return String.format(Locale.US,
+                                 "queue: %d dequeued, %.1f ms average wait, "
+                                 + "%d ms max wait, depth %d (max %d), "
+                                 + "%d dropped, %d cancelled",
+                                 mDequeuedCount,
+                                 mTotalWaitTime / (double) Math.max(mDequeuedCount, 1),
+                                 mMaxWaitTime,
+                                 mQueue.size(),
+                                 mMaxQueueDepth,
+                                 mDroppedCount,
+                                 mCancelledCount)
+                + "; " + mQueue.getStats();
+        }
+    }
+
+    /**
+     * Send the @a pathname back to the DownloadActivity via the
+     * messenger in the @a intent.
+     */
+    private void sendPath(Intent intent,
+                          Uri pathname) {
+        // Extract the Messenger.
+        Messenger messenger = getMessenger(intent);
+
+        // Call factory method to create Message.
+        Message message = makeReplyMessage(pathname);
+
+        // Send pathname to back to the DownloadActivity.
+        send(messenger, message);
+    }
+
+    /**
+     * Send the @a message back to the DownloadActivity via the
+     * @a messenger.
+     */
+    private void send(Messenger messenger,
+                      Message message) {
+        try {
+            messenger.send(message);
+        } catch (RemoteException e) {
+            // DeadObjectException is thrown if target handler no
+            // longer exists.
+            Log.e(getClass().getName(),
+                  "Exception while sending.",
+                  e);
+        }
+    }
+
+    /**
+     * A factory method that creates a Message to return to the
+     * DownloadActivity with the pathname of the downloaded image.
+     */
+    private Message makeReplyMessage(Uri pathname){
+        Message message = Message.obtain(null, DOWNLOAD_RESULT);
+        // Return the result to indicate whether the download
+        // succeeded or failed.
+        if (pathname != null) {
+            message.arg1 = Activity.RESULT_OK;
+            Bundle data = new Bundle();
+
+            // Pathname for the downloaded image.
+            data.putString(PATHNAME,
+                           pathname.toString());
+            message.setData(data);
+        } else
+            message.arg1 = Activity.RESULT_CANCELED;
+
+        return message;
+    }
+
+    /**
+     * Factory method that makes a ThreadFactory whose threads are
+     * named after the service to simplify debugging.
+     */
+    private static ThreadFactory makeThreadFactory() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return runnable ->
+            new Thread(runnable,
+                       "DownloadService-" + threadCount.incrementAndGet());
     }
     
+    /**
+     * Helper method that returns the Messenger sent with the
+     * @a intent.
+     */
+    private static Messenger getMessenger(Intent intent) {
+        return (Messenger) intent.getExtras().get(MESSENGER);
+    }
+
+    /**
+     * Helper method that returns true if the @a message reports the
+     * progress of a download rather than its result.
+     */
+    public static boolean isProgress(Message message) {
+        return message.what == DOWNLOAD_PROGRESS;
+    }
+
+    /**
+     * Helper method that returns true if the @a message holds the
+     * result of one image of a batch, whose index in the batch is
+     * returned by getItemIndex().
+     */
+    public static boolean isItemResult(Message message) {
+        return message.what == DOWNLOAD_ITEM_RESULT;
+    }
+
+    /**
+     * Helper method that returns the index in the batch of the image
+     * whose result is in the @a message.
+     */
+    public static int getItemIndex(Message message) {
+        return message.arg2;
+    }
+
+    /**
+     * Helper method that returns true if the @a message holds the
+     * summary of a batch, which is sent after all its results.
+     */
+    public static boolean isBatchSummary(Message message) {
+        return message.what == DOWNLOAD_BATCH_SUMMARY;
+    }
+
+    /**
+     * Helper method that returns the number of images of a batch
+     * downloaded successfully from a summary @a message.
+     */
+    public static int getSucceededCount(Message message) {
+        return message.arg1;
+    }
+
+    /**
+     * Helper method that returns the number of images of a batch
+     * that failed to download from a summary @a message.
+     */
+    public static int getFailedCount(Message message) {
+        return message.arg2;
+    }
+
+    /**
+     * Helper method that returns the number of bytes downloaded so
+     * far from a progress @a message.
+     */
+    public static long getBytesRead(Message message) {
+        return ProgressReporter.getBytesRead(message);
+    }
+
+    /**
+     * Helper method that returns the length of the image from a
+     * progress @a message, or -1 if it's unknown.
+     */
+    public static long getTotalBytes(Message message) {
+        return ProgressReporter.getTotalBytes(message);
+    }
+
     /**
      * Helper method that returns pathname if download succeeded.
      */
@@ -253,9 +1219,22 @@ public class DownloadService
     }
 
     /**
-     * Hook method called back to shutdown the Looper.
+     * Hook method called back to shutdown the Looper or the pool of
+     * worker threads.
      */
     public void onDestroy() {
-        mServiceLooper.quit();
+        // Stop starting requests when the limiter has room.
+        if (DownloadUtils.getConcurrencyLimiter() != null)
+            DownloadUtils.getConcurrencyLimiter().setOnAvailable(null);
+
+        if (mExecutor != null)
+            mExecutor.shutdown();
+        else
+            mServiceLooper.quit();
+
+        // Add the last downloaded images to the Gallery now rather
+        // than after the indexer's delay, while the process is still
+        // likely to be running.
+        MediaIndexer.getInstance(this).flush();
     }
 }
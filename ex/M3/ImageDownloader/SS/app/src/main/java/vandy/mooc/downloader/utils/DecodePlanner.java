@@ -0,0 +1,127 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.File;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Decodes image files in two passes: the first reads just the bounds
+ * of the image, which are used to make a DecodePlan that fits a
+ * target size and the device's memory budget, and the second decodes
+ * the pixels according to the plan.  This keeps a large image (e.g.,
+ * a 12-megapixel photo, which needs ~48 MB at full size) from
+ * exhausting the heap.
+ */
+public class DecodePlanner {
+    /**
+     * Used for debugging.
+     */
+    private final static String TAG =
+        DecodePlanner.class.getCanonicalName();
+
+    /**
+     * Fraction of the app's memory class a single decode may use.
+     */
+    private static final int MEMORY_FRACTION = 4;
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private DecodePlanner() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @return The number of bytes a single decoded Bitmap may use,
+     * based on the memory class of the device.
+     */
+    public static long getMemoryBudget(Context context) {
+        ActivityManager activityManager = (ActivityManager)
+            context.getSystemService(Context.ACTIVITY_SERVICE);
+        return (long) activityManager.getMemoryClass() * 1024 * 1024
+            / MEMORY_FRACTION;
+    }
+
+    /**
+     * Plan how to decode the image in @a file for display at
+     * @a targetWidth by @a targetHeight (either of which may be
+     * DecodePlan.ANY_SIZE) within @a byteBudget bytes.
+     *
+     * @return The plan, or null if the file isn't a decodable image.
+     */
+    public static DecodePlan plan(File file,
+                                  int targetWidth,
+                                  int targetHeight,
+                                  long byteBudget) {
+        // Read just the dimensions and format of the image.
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+            return null;
+
+        return DecodePlan.plan(bounds.outWidth,
+                               bounds.outHeight,
+                               "image/jpeg".equals(bounds.outMimeType),
+                               targetWidth,
+                               targetHeight,
+                               byteBudget);
+    }
+
+    /**
+     * @return The BitmapFactory.Options that carry out the @a plan.
+     * The decoded Bitmap is mutable so it can later be reused via
+     * a BitmapPool.
+     */
+    public static BitmapFactory.Options makeOptions(DecodePlan plan) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = plan.getSampleSize();
+        options.inPreferredConfig = plan.useRgb565()
+            ? Bitmap.Config.RGB_565
+            : Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        return options;
+    }
+
+    /**
+     * Decode the image in @a file for display at @a targetWidth by
+     * @a targetHeight within @a byteBudget bytes, reusing a Bitmap
+     * from the @a pool (if it's not null) to hold the pixels.
+     *
+     * @return The Bitmap, or null if the file couldn't be decoded.
+     */
+    public static Bitmap decodeFile(File file,
+                                    int targetWidth,
+                                    int targetHeight,
+                                    long byteBudget,
+                                    BitmapPool pool) {
+        DecodePlan plan =
+            plan(file, targetWidth, targetHeight, byteBudget);
+        if (plan == null)
+            return null;
+
+        Log.d(TAG,
+              "decoding " + file.getName() + " " + plan);
+        BitmapFactory.Options options = makeOptions(plan);
+        if (pool != null)
+            options.inBitmap = pool.get(plan.getByteCount());
+
+        try {
+            return BitmapFactory.decodeFile(file.getAbsolutePath(),
+                                            options);
+        } catch (IllegalArgumentException e) {
+            // The decoder can't reuse the pooled Bitmap, so recycle
+            // it and allocate a new one.
+            if (options.inBitmap == null)
+                throw e;
+            pool.unget(options.inBitmap, plan.getByteCount());
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getAbsolutePath(),
+                                            options);
+        }
+    }
+}
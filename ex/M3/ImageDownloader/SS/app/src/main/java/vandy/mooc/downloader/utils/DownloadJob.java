@@ -0,0 +1,150 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.File;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+/**
+ * The state of one image as it moves through the stages of a
+ * download: fetch, decode, encode, persist, and index.  Each stage
+ * (see DownloadUtils) reads the fields set by the previous ones and
+ * sets its own, so the stages can run in the same thread or be handed
+ * from one thread to another by a DownloadPipeline.  A job that
+ * needs no further stages, e.g., because the image was cached or the
+ * download failed, is done and holds its result.
+ */
+class DownloadJob {
+    /**
+     * The context in which to write the file.
+     */
+    final Context mContext;
+
+    /**
+     * The URL of the image.
+     */
+    final Uri mUrl;
+
+    /**
+     * Options that control the download.
+     */
+    final DownloadOptions mOptions;
+
+    /**
+     * The key under which the image is stored and cached, which tells
+     * a re-encoded image apart from the original one of the same URL.
+     */
+    final String mKey;
+
+    /**
+     * The file named after the key, which keys the partial download
+     * and the validators of the image.
+     */
+    final File mKeyFile;
+
+    /**
+     * The file that held the image of a previous download under the
+     * same key, or null.
+     */
+    final File mPreviousFile;
+
+    /**
+     * The temporary file and journal that hold the downloaded bytes.
+     */
+    PartialDownload mPartial;
+
+    /**
+     * The format and dimensions of the downloaded image.
+     */
+    ImageHeader mHeader;
+
+    /**
+     * The validators of the response to store with the image, or
+     * null.
+     */
+    CacheValidators mValidators;
+
+    /**
+     * The decoded image if it's being re-encoded, or null once it's
+     * been encoded and returned to the Bitmap pool.
+     */
+    Bitmap mBitmap;
+
+    /**
+     * The re-encoded image if it's being re-encoded, or null.
+     */
+    File mEncodedFile;
+
+    /**
+     * The name of the SHA-256 digest of the stored image.
+     */
+    String mDigest;
+
+    /**
+     * The file in the image store where the image is stored.
+     */
+    File mImageFile;
+
+    /**
+     * True if the same image was already stored for this or another
+     * URL.
+     */
+    boolean mDuplicate;
+
+    /**
+     * True if the fetch failed in a way that may succeed if it's
+     * retried, e.g., a network error or an overloaded server.
+     */
+    boolean mRetryable;
+
+    /**
+     * The absolute path to the image file, or null on failure.
+     */
+    private Uri mResult;
+
+    /**
+     * True if the job needs no further stages.
+     */
+    private boolean mDone;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    DownloadJob(Context context,
+                Uri url,
+                DownloadOptions options) {
+        mContext = context;
+        mUrl = url;
+        mOptions = options;
+        mKey = DownloadUtils.keyOf(url.toString(), options);
+        mKeyFile = DownloadUtils.getKeyFile(mKey);
+        mPreviousFile =
+            DownloadUtils.getImageStore().getFile(mKey);
+    }
+
+    /**
+     * Skip the remaining stages and complete the job with @a result.
+     *
+     * @return This job.
+     */
+    DownloadJob finish(Uri result) {
+        mResult = result;
+        mDone = true;
+        return this;
+    }
+
+    /**
+     * @return True if the job needs no further stages.
+     */
+    boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return The absolute path to the image file, or null on failure.
+     */
+    Uri getResult() {
+        return mResult;
+    }
+}
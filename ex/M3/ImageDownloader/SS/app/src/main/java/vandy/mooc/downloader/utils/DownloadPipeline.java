@@ -0,0 +1,233 @@
+package vandy.mooc.downloader.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * Downloads images in stages (fetch, decode, encode, persist, and
+ * index), each of which runs in its own PipelineStage, so that the
+ * network, CPU, and storage work of different images overlap instead
+ * of each image holding one thread from start to finish.  Every stage
+ * is bounded, so a slow stage pushes back on the stages before it
+ * and, ultimately, on the caller of submit().
+ *
+ * Images wait to be fetched in a HostScheduler, which lets hosts take
+ * turns and keeps any one host from occupying every fetch thread.
+ */
+public class DownloadPipeline {
+    /**
+     * Number of pieces of work each stage admits beyond those it's
+     * running.
+     */
+    private static final int QUEUE_CAPACITY = 8;
+
+    /**
+     * Number of threads that fetch images, which mostly wait for the
+     * network.
+     */
+    private static final int FETCH_THREADS = 4;
+
+    /**
+     * Number of threads that persist images, which mostly wait for
+     * the disk to sync them.
+     */
+    private static final int PERSIST_THREADS = 4;
+
+    /**
+     * Number of images that may wait to be fetched before submit()
+     * blocks.
+     */
+    private static final int PENDING_CAPACITY = 64;
+
+    /**
+     * The singleton instance, which is created lazily.
+     */
+    private static DownloadPipeline sInstance;
+
+    /**
+     * The stages, in the order each image moves through them.
+     */
+    private final PipelineStage mFetch;
+    private final PipelineStage mDecode;
+    private final PipelineStage mEncode;
+    private final PipelineStage mPersist;
+    private final PipelineStage mIndex;
+
+    /**
+     * Fetches that wait for their host to have room, each of which
+     * submits its image to the fetch stage.  Hosts are limited to
+     * HostScheduler.DEFAULT_MAX_PER_HOST fetches at once unless
+     * setMaxPerHost() is called.
+     */
+    private final HostScheduler<Runnable> mPending =
+        new HostScheduler<>(HostScheduler.DEFAULT_MAX_PER_HOST,
+                            PENDING_CAPACITY,
+                            null);
+
+    /**
+     * Return the singleton DownloadPipeline, creating it if necessary.
+     */
+    public static synchronized DownloadPipeline getInstance() {
+        if (sInstance == null)
+            sInstance = new DownloadPipeline();
+        return sInstance;
+    }
+
+    /**
+     * Constructor creates the stages.  Decoding and encoding are
+     * CPU-bound, so they get one thread per core, whereas a single
+     * thread indexes images so they don't compete for the storage
+     * device.  Persisting mostly waits for the disk to sync, so there
+     * are several persist threads, and at least as many as images
+     * synced in one batch by DownloadUtils' GroupCommit, which issues
+     * their syncs together.  If DownloadUtils has a ConcurrencyLimiter,
+     * there are enough fetch threads for its largest limit.
+     */
+    private DownloadPipeline() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ConcurrencyLimiter limiter = DownloadUtils.getConcurrencyLimiter();
+        int fetchThreads = limiter != null
+            ? Math.max(FETCH_THREADS, limiter.getMaxLimit())
+            : FETCH_THREADS;
+        mFetch = new PipelineStage("fetch", fetchThreads, QUEUE_CAPACITY);
+        mDecode = new PipelineStage("decode", cores, QUEUE_CAPACITY);
+        mEncode = new PipelineStage("encode", cores, QUEUE_CAPACITY);
+        int persistThreads =
+            Math.max(PERSIST_THREADS,
+                     DownloadUtils.getGroupCommit().getBatchSize());
+        mPersist = new PipelineStage("persist", persistThreads, QUEUE_CAPACITY);
+        mIndex = new PipelineStage("index", 1, QUEUE_CAPACITY);
+
+        // Hand the pending fetches to the fetch stage as their hosts
+        // have room for them.
+        Thread dispatcher = new Thread(this::dispatch, "DownloadPipeline");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Download the image located at @a url through the stages of the
+     * pipeline, blocking the calling thread while too many images are
+     * waiting to be fetched.  A download of the same image that's
+     * already in progress, either in the pipeline or via
+     * DownloadUtils.downloadImage(), is shared rather than repeated,
+     * and cancelling this request only cancels the shared download
+     * once every request for the image has been cancelled.
+     *
+     * @param context   the context in which to write the file.
+     * @param url       the web url.
+     * @param options   options that control the download, or null to
+     *                  use the defaults.
+     *
+     * @return A future that completes with the absolute path to the
+     *         downloaded image file, or null on failure.
+     */
+    public CompletableFuture<Uri> submit(Context context,
+                                         Uri url,
+                                         DownloadOptions options) {
+        DownloadOptions requested =
+            options != null ? options : new DownloadOptions();
+        return DownloadUtils.sInFlight.executeAsync
+            (url.toString(),
+             DownloadUtils.variantOf(requested),
+             requested.priority,
+             DownloadUtils.cancellationOf(requested),
+             flight -> fetch(context,
+                             url,
+                             DownloadUtils.share(requested, flight))
+             .thenCompose(job -> run(mDecode, job, DownloadUtils::decode))
+             .thenCompose(job -> run(mEncode, job, DownloadUtils::encode))
+             .thenCompose(job -> run(mPersist, job, DownloadUtils::persist))
+             .thenCompose(job -> run(mIndex, job, DownloadUtils::index))
+             .thenApply(DownloadJob::getResult))
+            // Report failures the same way downloadImage() does.
+            .exceptionally(throwable -> null);
+    }
+
+    /**
+     * Allow up to @a maxPerHost fetches from each host at once.
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        mPending.setMaxPerHost(maxPerHost);
+    }
+
+    /**
+     * @return A summary of the counters of each stage and of the
+     * fetches in flight and waiting for each host.
+     */
+    public String getStats() {
+        return mPending.getStats()
+            + " " + mFetch.getStats()
+            + "; " + mDecode.getStats()
+            + "; " + mEncode.getStats()
+            + "; " + mPersist.getStats()
+            + "; " + mIndex.getStats();
+    }
+
+    /**
+     * Queue the fetch of the image at @a url until its host has room
+     * for it.
+     *
+     * @return A future that completes with the fetched job.
+     */
+    private CompletableFuture<DownloadJob> fetch(Context context,
+                                                 Uri url,
+                                                 DownloadOptions options) {
+        CompletableFuture<DownloadJob> future = new CompletableFuture<>();
+        String host = HostScheduler.hostOf(url.toString());
+        Runnable fetch = () ->
+            mFetch.submit(() -> DownloadUtils.fetch(context, url, options))
+            .whenComplete((job, throwable) -> {
+                    // Make room for the host's next image.
+                    mPending.onFinished(host);
+                    if (throwable != null)
+                        future.completeExceptionally(throwable);
+                    else
+                        future.complete(job);
+                });
+
+        try {
+            mPending.put(host, fetch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Hand each pending fetch to the fetch stage once its host has
+     * room for it, which blocks while the fetch stage is full.  This
+     * method runs in the pipeline's dispatcher thread.
+     */
+    private void dispatch() {
+        try {
+            for (;;)
+                mPending.take().run();
+        } catch (InterruptedException e) {
+            // The process is exiting.
+        }
+    }
+
+    /**
+     * Run @a step on the @a job in @a stage, skipping the stage if
+     * the job is done or, for the decode and encode stages, isn't
+     * being re-encoded.
+     */
+    private CompletableFuture<DownloadJob> run(PipelineStage stage,
+                                               DownloadJob job,
+                                               Consumer<DownloadJob> step) {
+        if (job.isDone()
+            || (!job.mOptions.reencode
+                && (stage == mDecode || stage == mEncode)))
+            return CompletableFuture.completedFuture(job);
+
+        return stage.submit(() -> {
+                step.accept(job);
+                return job;
+            });
+    }
+}
@@ -0,0 +1,389 @@
+package vandy.mooc.downloader.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Adds downloaded images to the MediaStore so they're viewable in the
+ * Gallery, and removes them again, in batches.  Changes are buffered
+ * per file path and written by a background thread once a batch fills
+ * up or shortly after the first change, so a burst of downloads costs
+ * a few calls to the media provider rather than one per image.
+ *
+ * Indexing is idempotent: the rows that already exist for the paths
+ * in a batch are looked up with one query and updated rather than
+ * inserted again, and any extra rows earlier versions inserted for
+ * the same path are deleted, so downloading an image again never adds
+ * another row.
+ *
+ * A batch the media provider rejects isn't lost: its changes are
+ * buffered again, unless the same file has changed since, and
+ * retried with a growing delay.
+ */
+public class MediaIndexer {
+    /**
+     * Used for debugging.
+     */
+    private final static String TAG =
+        MediaIndexer.class.getCanonicalName();
+
+    /**
+     * Number of buffered changes that are written right away.
+     */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     * Longest time (in milliseconds) a change is buffered before
+     * it's written.
+     */
+    private static final long FLUSH_DELAY = 500;
+
+    /**
+     * Largest number of paths looked up by one query, which keeps
+     * the query well below SQLite's limit on arguments.
+     */
+    private static final int MAX_QUERY_PATHS = 100;
+
+    /**
+     * Longest time (in milliseconds) between retries of a batch the
+     * media provider rejected.
+     */
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+    /**
+     * Number of times in a row a batch is written before its changes
+     * are given up on.
+     */
+    private static final int MAX_ATTEMPTS = 8;
+
+    /**
+     * The table of images in the MediaStore.
+     */
+    private static final Uri IMAGES =
+        MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+
+    /**
+     * The singleton instance, which is created lazily.
+     */
+    private static MediaIndexer sInstance;
+
+    /**
+     * Sends the batches to the media provider.
+     */
+    private final ContentResolver mResolver;
+
+    /**
+     * Writes the batches.
+     */
+    private final ScheduledExecutorService mExecutor =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "MediaIndexer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Maps the path of each changed file to the values of its row,
+     * or to null if its row is to be deleted, in the order the files
+     * were first changed.
+     */
+    private Map<String, ContentValues> mPending = new LinkedHashMap<>();
+
+    /**
+     * True while a task that writes the pending changes is scheduled.
+     */
+    private boolean mFlushScheduled;
+
+    /**
+     * Number of batches in a row the media provider has rejected,
+     * which is 0 unless a retry is due.
+     */
+    private int mFailedAttempts;
+
+    /**
+     * Counters that describe the indexer's work.
+     */
+    private long mInserted;
+    private long mUpdated;
+    private long mDeleted;
+    private long mCoalesced;
+    private long mBatches;
+    private long mFailures;
+    private long mDropped;
+
+    /**
+     * Return the singleton MediaIndexer, creating it if necessary.
+     */
+    public static synchronized MediaIndexer getInstance(Context context) {
+        if (sInstance == null)
+            sInstance =
+                new MediaIndexer(context.getApplicationContext()
+                                 .getContentResolver());
+        return sInstance;
+    }
+
+    /**
+     * Constructor sends the batches through @a resolver.
+     */
+    private MediaIndexer(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Add @a file, described by @a values, to the MediaStore, or
+     * update its row if it has one.  The "_data" column of
+     * @a values is set to the absolute path of the file, which
+     * identifies its row.
+     */
+    public synchronized void index(File file,
+                                   ContentValues values) {
+        values.put(MediaStore.MediaColumns.DATA, file.getAbsolutePath());
+        change(file.getAbsolutePath(), values);
+    }
+
+    /**
+     * Remove the rows of @a file from the MediaStore, e.g., because
+     * it was deleted.
+     */
+    public synchronized void remove(File file) {
+        change(file.getAbsolutePath(), null);
+    }
+
+    /**
+     * Write the pending changes in the background right away, e.g.,
+     * before the process may be stopped.
+     */
+    public synchronized void flush() {
+        if (!mPending.isEmpty())
+            mExecutor.execute(this::writePending);
+    }
+
+    /**
+     * @return A summary of the rows written and the batches used.
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.US,
+                             "media index: %d inserted, %d updated, "
+                             + "%d deleted, %d coalesced in %d batches, "
+                             + "%d failed batches, %d dropped, %d pending",
+                             mInserted,
+                             mUpdated,
+                             mDeleted,
+                             mCoalesced,
+                             mBatches,
+                             mFailures,
+                             mDropped,
+                             mPending.size());
+    }
+
+    /**
+     * Buffer the change of the row of the file at @a path to
+     * @a values (or its deletion if @a values is null), replacing any
+     * pending change of the same file, and schedule writing it.
+     * While a rejected batch waits to be retried, the change waits
+     * with it rather than forcing an early write.
+     */
+    private void change(String path,
+                        ContentValues values) {
+        if (mPending.containsKey(path))
+            mCoalesced++;
+        mPending.put(path, values);
+
+        if (mPending.size() == BATCH_SIZE && mFailedAttempts == 0)
+            mExecutor.execute(this::writePending);
+        else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mExecutor.schedule(this::writePending,
+                               FLUSH_DELAY,
+                               TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write the pending changes as one batch.  Rows that exist are
+     * updated (or deleted) and the others are inserted with a single
+     * applyBatch() call, or with a single bulkInsert() call if every
+     * row is new.  This method runs in the indexer's thread.
+     */
+    private void writePending() {
+        Map<String, ContentValues> pending;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty())
+                return;
+            pending = mPending;
+            mPending = new LinkedHashMap<>();
+        }
+
+        int inserted = 0;
+        int updated = 0;
+        int deleted = 0;
+        try {
+            Map<String, List<Long>> rows = queryRows(pending);
+            ArrayList<ContentProviderOperation> operations =
+                new ArrayList<>();
+            List<ContentValues> inserts = new ArrayList<>();
+
+            for (Map.Entry<String, ContentValues> entry : pending.entrySet()) {
+                String path = entry.getKey();
+                ContentValues values = entry.getValue();
+                List<Long> ids = rows.get(path);
+
+                if (values == null) {
+                    operations.add(ContentProviderOperation.newDelete(IMAGES)
+                                   .withSelection(MediaStore.MediaColumns.DATA
+                                                  + "=?",
+                                                  new String[] { path })
+                                   .build());
+                    deleted++;
+                } else if (ids == null)
+                    inserts.add(values);
+                else {
+                    // Update the first row and drop any duplicates.
+                    Iterator<Long> iterator = ids.iterator();
+                    operations.add(ContentProviderOperation.newUpdate
+                                   (ContentUris.withAppendedId(IMAGES,
+                                                               iterator.next()))
+                                   .withValues(values)
+                                   .build());
+                    updated++;
+                    while (iterator.hasNext()) {
+                        operations.add(ContentProviderOperation.newDelete
+                                       (ContentUris.withAppendedId(IMAGES,
+                                                                   iterator.next()))
+                                       .build());
+                        deleted++;
+                    }
+                }
+            }
+
+            if (operations.isEmpty())
+                mResolver.bulkInsert(IMAGES,
+                                     inserts.toArray(new ContentValues[0]));
+            else {
+                for (ContentValues values : inserts)
+                    operations.add(ContentProviderOperation.newInsert(IMAGES)
+                                   .withValues(values)
+                                   .build());
+                mResolver.applyBatch(MediaStore.AUTHORITY, operations);
+            }
+            inserted = inserts.size();
+        } catch (RemoteException
+                 | OperationApplicationException
+                 | RuntimeException e) {
+            Log.w(TAG,
+                  "unable to index " + pending.size() + " images",
+                  e);
+            retry(pending);
+            return;
+        }
+
+        synchronized (this) {
+            mFailedAttempts = 0;
+            mInserted += inserted;
+            mUpdated += updated;
+            mDeleted += deleted;
+            mBatches++;
+        }
+    }
+
+    /**
+     * Buffer the changes in the rejected batch @a failed again, ahead
+     * of the changes made since it was taken, except for files whose
+     * rows have changed since, and schedule writing them after a delay
+     * that doubles with each failure in a row.  After MAX_ATTEMPTS
+     * failures the changes are dropped, so a batch the provider never
+     * accepts can't hold up the rest forever; the images then stay
+     * out of (or in) the Gallery until they're downloaded or deleted
+     * again.
+     */
+    private synchronized void retry(Map<String, ContentValues> failed) {
+        mFailures++;
+        if (++mFailedAttempts >= MAX_ATTEMPTS) {
+            mDropped += failed.size();
+            mFailedAttempts = 0;
+        } else {
+            Map<String, ContentValues> pending = new LinkedHashMap<>();
+            for (Map.Entry<String, ContentValues> entry : failed.entrySet())
+                if (!mPending.containsKey(entry.getKey()))
+                    pending.put(entry.getKey(), entry.getValue());
+            pending.putAll(mPending);
+            mPending = pending;
+        }
+
+        if (!mPending.isEmpty() && !mFlushScheduled) {
+            mFlushScheduled = true;
+            mExecutor.schedule(this::writePending,
+                               Math.min(FLUSH_DELAY << mFailedAttempts,
+                                        MAX_RETRY_DELAY),
+                               TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The IDs of the rows that exist for the files in
+     * @a pending whose rows are updated rather than deleted, keyed by
+     * their path, found with as few queries as possible.
+     */
+    private Map<String, List<Long>> queryRows(Map<String, ContentValues> pending) {
+        List<String> paths = new ArrayList<>();
+        for (Map.Entry<String, ContentValues> entry : pending.entrySet())
+            if (entry.getValue() != null)
+                paths.add(entry.getKey());
+
+        Map<String, List<Long>> rows = new HashMap<>();
+        for (int start = 0; start < paths.size(); start += MAX_QUERY_PATHS) {
+            List<String> chunk =
+                paths.subList(start,
+                              Math.min(start + MAX_QUERY_PATHS, paths.size()));
+            StringBuilder selection =
+                new StringBuilder(MediaStore.MediaColumns.DATA + " IN (");
+            for (int i = 0; i < chunk.size(); i++)
+                selection.append(i == 0 ? "?" : ",?");
+            selection.append(')');
+
+            try (Cursor cursor =
+                 mResolver.query(IMAGES,
+                                 new String[] {
+                                     MediaStore.MediaColumns._ID,
+                                     MediaStore.MediaColumns.DATA
+                                 },
+                                 selection.toString(),
+                                 chunk.toArray(new String[0]),
+                                 MediaStore.MediaColumns._ID)) {
+                if (cursor == null)
+                    continue;
+                while (cursor.moveToNext()) {
+                    List<Long> ids = rows.get(cursor.getString(1));
+                    if (ids == null) {
+                        ids = new ArrayList<>();
+                        rows.put(cursor.getString(1), ids);
+                    }
+                    ids.add(cursor.getLong(0));
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,29 @@
+package vandy.mooc.downloader.utils;
+
+/**
+ * Receives progress updates while DownloadUtils downloads an image.
+ * Updates are delivered in the downloading thread(s) for every chunk
+ * that's written, so implementations should be cheap and, since a
+ * segmented download reports from several threads, thread-safe.
+ */
+public interface ProgressListener {
+    /**
+     * Hook method called after more of the image has been written.
+     *
+     * @param bytesRead   number of bytes of the image written so far.
+     * @param totalBytes  length of the image in bytes, or -1 if the
+     *                    server didn't say.
+     */
+    void onProgress(long bytesRead,
+                    long totalBytes);
+
+    /**
+     * Hook method called once the whole image, which is
+     * @a totalBytes long, has been written, even if the server
+     * didn't say how long it would be.  By default it's reported as
+     * a final progress update.
+     */
+    default void onCompleted(long totalBytes) {
+        onProgress(totalBytes, totalBytes);
+    }
+}
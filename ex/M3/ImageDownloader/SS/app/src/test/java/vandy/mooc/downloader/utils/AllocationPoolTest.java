@@ -0,0 +1,214 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bookkeeping of a BitmapPool with fake Bitmaps: pooled
+ * allocations are reused only if they're large enough but not too
+ * large, and the pool stays within its byte cap.  Also compares the
+ * bytes allocated and the garbage collections of decoding a batch of
+ * images with and without the pool.
+ */
+public class AllocationPoolTest {
+    /**
+     * Stands in for a Bitmap, whose pixels are a byte array.
+     */
+    private static class FakeBitmap {
+        final byte[] mPixels;
+        boolean mMutable = true;
+        boolean mRecycled;
+
+        FakeBitmap(int byteCount) {
+            mPixels = new byte[byteCount];
+        }
+    }
+
+    /**
+     * Tells the pool about fake Bitmaps as BitmapPool does about real
+     * ones.
+     */
+    private static final AllocationPool.Allocations<FakeBitmap> BITMAPS =
+        new AllocationPool.Allocations<FakeBitmap>() {
+            @Override
+            public int sizeOf(FakeBitmap bitmap) {
+                return bitmap.mPixels.length;
+            }
+
+            @Override
+            public boolean isReusable(FakeBitmap bitmap) {
+                return bitmap.mMutable && !bitmap.mRecycled;
+            }
+
+            @Override
+            public void free(FakeBitmap bitmap) {
+                bitmap.mRecycled = true;
+            }
+        };
+
+    /**
+     * Sizes (in bytes of ARGB_8888 pixels) of the images in a batch.
+     */
+    private static final int[] SIZES = {
+        1024 * 768 * 4,
+        800 * 600 * 4,
+        1280 * 720 * 4,
+        640 * 480 * 4
+    };
+
+    @Test
+    public void get_reusesOnlySuitableSizes() {
+        AllocationPool<FakeBitmap> pool =
+            new AllocationPool<>(10 * 1000, BITMAPS);
+        FakeBitmap small = new FakeBitmap(1000);
+        FakeBitmap large = new FakeBitmap(4000);
+        pool.put(small);
+        pool.put(large);
+
+        // Nothing is large enough.
+        assertNull(pool.get(5000));
+
+        // The smallest allocation that's large enough is chosen.
+        assertSame(small, pool.get(900));
+
+        // An allocation more than twice as large isn't.
+        assertNull(pool.get(1500));
+        assertSame(large, pool.get(2500));
+        assertEquals(0, pool.getBytes());
+        assertTrue(pool.getStats(),
+                   pool.getStats().startsWith("2 hits, 2 misses"));
+    }
+
+    @Test
+    public void put_freesWhatItCantKeep() {
+        AllocationPool<FakeBitmap> pool =
+            new AllocationPool<>(5000, BITMAPS);
+
+        FakeBitmap immutable = new FakeBitmap(1000);
+        immutable.mMutable = false;
+        pool.put(immutable);
+        assertTrue(immutable.mRecycled);
+
+        FakeBitmap tooLarge = new FakeBitmap(6000);
+        pool.put(tooLarge);
+        assertTrue(tooLarge.mRecycled);
+
+        // The least recently added allocations are dropped first.
+        FakeBitmap first = new FakeBitmap(2000);
+        FakeBitmap second = new FakeBitmap(2000);
+        FakeBitmap third = new FakeBitmap(2000);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+        assertTrue(first.mRecycled);
+        assertFalse(second.mRecycled);
+        assertFalse(third.mRecycled);
+        assertEquals(4000, pool.getBytes());
+
+        pool.trimToSize(0);
+        assertTrue(second.mRecycled);
+        assertTrue(third.mRecycled);
+        assertEquals(0, pool.getBytes());
+    }
+
+    @Test
+    public void unget_countsAMissAndFrees() {
+        AllocationPool<FakeBitmap> pool =
+            new AllocationPool<>(5000, BITMAPS);
+        FakeBitmap bitmap = new FakeBitmap(1000);
+        pool.put(bitmap);
+
+        assertSame(bitmap, pool.get(1000));
+        pool.unget(bitmap, 1000);
+        assertTrue(bitmap.mRecycled);
+        assertEquals(0, pool.getBytes());
+        assertTrue(pool.getStats(),
+                   pool.getStats().startsWith("0 hits, 1 misses"));
+    }
+
+    @Test
+    public void benchmark_batchWithAndWithoutPool() {
+        int images = 500;
+
+        // Warm up.
+        decodeBatch(images, null);
+        decodeBatch(images, new AllocationPool<>(12 * 1024 * 1024, BITMAPS));
+
+        long[] without = decodeBatch(images, null);
+        AllocationPool<FakeBitmap> pool =
+            new AllocationPool<>(12 * 1024 * 1024, BITMAPS);
+        long[] with = decodeBatch(images, pool);
+
+        for (long[] result : new long[][] { without, with })
+            System.out.println(String.format(Locale.US,
+                                             "%d images %s the pool: "
+                                             + "%.1f MB allocated, "
+                                             + "%.0f MB/s, %d GCs",
+                                             images,
+                                             result == with ? "with" : "without",
+                                             result[0] / 1e6,
+                                             result[0] * 1e3 / Math.max(1, result[1]),
+                                             result[2]));
+        System.out.println(pool.getStats());
+
+        // The pool allocates a handful of Bitmaps instead of one per image.
+        assertTrue(with[0] * 20 < without[0]);
+    }
+
+    /**
+     * Decode @a images images of the sizes in SIZES as the re-encoding
+     * path does, taking each Bitmap from the @a pool, if any, and
+     * returning it once the image has been encoded.
+     *
+     * @return The bytes allocated, the elapsed nanoseconds, and the
+     *         number of garbage collections.
+     */
+    private static long[] decodeBatch(int images,
+                                      AllocationPool<FakeBitmap> pool) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long collections = countCollections();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+
+        long checksum = 0;
+        for (int i = 0; i < images; i++) {
+            int size = SIZES[i % SIZES.length];
+            FakeBitmap bitmap = pool != null ? pool.get(size) : null;
+            if (bitmap == null)
+                bitmap = new FakeBitmap(size);
+
+            // "Decode" into the Bitmap and "encode" it.
+            bitmap.mPixels[size - 1] = (byte) i;
+            checksum += bitmap.mPixels[size - 1];
+
+            if (pool != null)
+                pool.put(bitmap);
+        }
+        assertTrue(checksum != Long.MIN_VALUE);
+
+        return new long[] {
+            threads.getThreadAllocatedBytes(thread) - allocated,
+            System.nanoTime() - start,
+            countCollections() - collections
+        };
+    }
+
+    /**
+     * @return The number of garbage collections so far.
+     */
+    private static long countCollections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector :
+                 ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, collector.getCollectionCount());
+        return count;
+    }
+}
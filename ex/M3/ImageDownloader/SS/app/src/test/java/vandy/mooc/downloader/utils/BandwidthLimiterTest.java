@@ -0,0 +1,111 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that downloads are shaped to the rate of their priority
+ * class, and that a limit changed mid-transfer takes effect.
+ */
+public class BandwidthLimiterTest {
+    private static final HttpTransport TRANSPORT =
+        new UrlConnectionTransport();
+
+    private static final int IMAGE_SIZE = 512 * 1024;
+
+    @After
+    public void removeLimits() {
+        BandwidthLimiter.setGlobalRate(TokenBucket.UNLIMITED);
+        BandwidthLimiter.setRate(DownloadOptions.PRIORITY_INTERACTIVE,
+                                 TokenBucket.UNLIMITED);
+        BandwidthLimiter.setRate(DownloadOptions.PRIORITY_BACKGROUND,
+                                 TokenBucket.UNLIMITED);
+    }
+
+    @Test
+    public void backgroundDownload_achievesItsRate() throws Exception {
+        long rate = 1024 * 1024;
+        BandwidthLimiter.setRate(DownloadOptions.PRIORITY_BACKGROUND, rate);
+
+        try (TestImageServer server =
+             new TestImageServer(new byte[IMAGE_SIZE])) {
+            // Warm up the JIT and the connection, which would
+            // otherwise count against the unlimited rate.
+            download(server, DownloadOptions.PRIORITY_INTERACTIVE);
+
+            // Interactive downloads aren't limited.
+            double interactive =
+                measureRate(server, DownloadOptions.PRIORITY_INTERACTIVE);
+            assertTrue("interactive " + interactive, interactive > 2 * rate);
+
+            double background =
+                measureRate(server, DownloadOptions.PRIORITY_BACKGROUND);
+            assertEquals(rate, background, rate * 0.2);
+        }
+    }
+
+    @Test
+    public void rateChange_takesEffectMidTransfer() throws Exception {
+        long rate = 256 * 1024;
+        BandwidthLimiter.setGlobalRate(rate);
+
+        try (TestImageServer server =
+             new TestImageServer(new byte[IMAGE_SIZE])) {
+            // Lift the limit after about a quarter of the image,
+            // which a limit that stuck would take 1.5 seconds more to
+            // finish.
+            Thread lifter = new Thread(() -> {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    BandwidthLimiter.setGlobalRate(TokenBucket.UNLIMITED);
+                });
+            lifter.start();
+
+            long start = System.nanoTime();
+            assertEquals(IMAGE_SIZE,
+                         download(server, DownloadOptions.PRIORITY_INTERACTIVE));
+            long millis = (System.nanoTime() - start) / 1000000;
+            lifter.join();
+            assertTrue("took " + millis + " ms", millis >= 400 && millis < 1200);
+        }
+    }
+
+    /**
+     * @return The rate in bytes per second at which the image is
+     * downloaded from @a server by a download of @a priority.
+     */
+    private static double measureRate(TestImageServer server,
+                                      int priority) throws Exception {
+        long start = System.nanoTime();
+        long bytes = download(server, priority);
+        return bytes * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Download the image from @a server through the BandwidthLimiter
+     * as a download of @a priority.
+     *
+     * @return The number of bytes downloaded.
+     */
+    private static long download(TestImageServer server,
+                                 int priority) throws Exception {
+        HttpURLConnection connection =
+            TRANSPORT.open(server.url("/image.jpg"));
+        long total = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream =
+             BandwidthLimiter.wrap(connection.getInputStream(), priority)) {
+            for (int count; (count = inputStream.read(buffer)) >= 0; )
+                total += count;
+        }
+        return total;
+    }
+}
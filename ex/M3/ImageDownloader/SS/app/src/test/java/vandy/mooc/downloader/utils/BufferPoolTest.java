@@ -0,0 +1,75 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that copies reuse pooled buffers instead of allocating new
+ * ones in steady state.
+ */
+public class BufferPoolTest {
+    @After
+    public void restoreBufferSize() {
+        BufferPool.setBufferSize(BufferPool.DEFAULT_BUFFER_SIZE);
+    }
+
+    @Test
+    public void steadyState_allocatesNothing() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Warm up each worker's buffers.
+            runCopies(executor, 100);
+            long allocations = BufferPool.getAllocationCount();
+
+            runCopies(executor, 10000);
+            assertEquals(allocations, BufferPool.getAllocationCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void bufferSize_isConfigurable() {
+        BufferPool.setBufferSize(16 * 1024);
+        ByteBuffer buffer = BufferPool.acquire();
+        assertEquals(16 * 1024, buffer.capacity());
+        BufferPool.release(buffer);
+
+        // Buffers of the old size aren't handed out again.
+        BufferPool.setBufferSize(256 * 1024);
+        buffer = BufferPool.acquire();
+        assertEquals(256 * 1024, buffer.capacity());
+        BufferPool.release(buffer);
+    }
+
+    /**
+     * Run @a count simulated copies, each holding two buffers like a
+     * download that reads its header into one buffer while another
+     * copy is in progress.
+     */
+    private static void runCopies(ExecutorService executor,
+                                  int count) throws Exception {
+        CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++)
+            executor.execute(() -> {
+                    ByteBuffer first = BufferPool.acquire();
+                    ByteBuffer second = BufferPool.acquire();
+                    first.put((byte) 1);
+                    second.put((byte) 2);
+                    BufferPool.release(second);
+                    BufferPool.release(first);
+                    done.countDown();
+                });
+
+        // Wait for the copies to finish.
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,81 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that stored validators turn repeated downloads into
+ * conditional requests that transfer no body.
+ */
+public class CacheValidatorsTest {
+    @Test
+    public void revalidation_skipsBodyTransfer() throws Exception {
+        byte[] image = new byte[10000];
+        try (TestImageServer server = new TestImageServer(image)) {
+            File imageFile =
+                new File(System.getProperty("java.io.tmpdir"),
+                         "image" + System.nanoTime());
+
+            // The first download transfers the body and stores the
+            // validators next to the image file.
+            HttpURLConnection connection = open(server.url("/a.jpg"));
+            assertEquals(200, connection.getResponseCode());
+            drain(connection);
+            CacheValidators.fromResponse(connection,
+                                         System.currentTimeMillis())
+                .save(imageFile);
+            assertEquals(image.length, server.getBodyBytes());
+
+            // The second download sends the stored validators and
+            // gets a "304 Not Modified" without a body.
+            CacheValidators validators = CacheValidators.load(imageFile);
+            assertNotNull(validators);
+            assertTrue(validators.hasValidators());
+            connection = open(server.url("/a.jpg"));
+            validators.addTo(connection);
+            assertEquals(304, connection.getResponseCode());
+            assertEquals(image.length, server.getBodyBytes());
+            assertEquals(2, server.getRequestCount());
+
+            CacheValidators.delete(imageFile);
+            assertNull(CacheValidators.load(imageFile));
+        }
+    }
+
+    @Test
+    public void freshness_followsCacheControl() {
+        assertEquals(60000, CacheValidators.parseMaxAge("public, max-age=60"));
+        assertEquals(0, CacheValidators.parseMaxAge("no-cache"));
+        assertEquals(CacheValidators.UNKNOWN_MAX_AGE,
+                     CacheValidators.parseMaxAge(null));
+
+        CacheValidators validators =
+            new CacheValidators("\"x\"", null, 60000, 1000);
+        assertTrue(validators.isFresh(60999, 0));
+        assertFalse(validators.isFresh(61000, 0));
+
+        // Without a lifetime, validated images are always revalidated.
+        validators = new CacheValidators("\"x\"", null,
+                                         CacheValidators.UNKNOWN_MAX_AGE,
+                                         1000);
+        assertFalse(validators.isFresh(1000, 60000));
+    }
+
+    private static HttpURLConnection open(String url) throws Exception {
+        return (HttpURLConnection) new URL(url).openConnection();
+    }
+
+    private static void drain(HttpURLConnection connection) throws Exception {
+        try (InputStream inputStream = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            while (inputStream.read(buffer) >= 0)
+                continue;
+        }
+    }
+}
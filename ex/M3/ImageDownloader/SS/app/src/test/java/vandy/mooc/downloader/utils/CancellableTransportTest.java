@@ -0,0 +1,52 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that cancelling a download aborts a transfer in progress.
+ */
+public class CancellableTransportTest {
+    @Test
+    public void cancel_abortsTransferInProgress() throws Exception {
+        byte[] image = new byte[8 * 1024 * 1024];
+        try (TestImageServer server = new TestImageServer(image)) {
+            CancellableTransport transport =
+                new CancellableTransport(new UrlConnectionTransport());
+            HttpURLConnection connection =
+                transport.open(server.url("/large.jpg"));
+            assertEquals(200, connection.getResponseCode());
+
+            long read = 0;
+            byte[] buffer = new byte[16 * 1024];
+            try (InputStream inputStream = connection.getInputStream()) {
+                read += inputStream.read(buffer);
+
+                // Cancel from another thread, as DownloadService does.
+                Thread canceller = new Thread(transport::cancel);
+                canceller.start();
+                canceller.join();
+
+                for (int count;
+                     (count = inputStream.read(buffer)) >= 0; )
+                    read += count;
+                fail("read " + read + " bytes after cancelling");
+            } catch (IOException e) {
+                // The socket was closed mid-transfer.
+                assertTrue(read < image.length);
+            }
+
+            try {
+                transport.open(server.url("/large.jpg"));
+                fail("opened a connection after cancelling");
+            } catch (IOException e) {
+                assertTrue(transport.isCancelled());
+            }
+        }
+    }
+}
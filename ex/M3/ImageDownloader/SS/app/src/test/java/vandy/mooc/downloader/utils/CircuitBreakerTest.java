@@ -0,0 +1,57 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a host's breaker opens after repeated failures, fails
+ * fast during the cool-down without affecting other hosts, and lets
+ * a single trial decide whether to close again.
+ */
+public class CircuitBreakerTest {
+    @Test
+    public void breaker_opensFailsFastAndRecoversAfterCoolDown()
+        throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 100);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allowRequest("down.example.com"));
+            breaker.onFailure("down.example.com");
+        }
+        assertEquals(CircuitBreaker.State.OPEN,
+                     breaker.getState("down.example.com"));
+        assertFalse(breaker.allowRequest("down.example.com"));
+        assertTrue(breaker.allowRequest("up.example.com"));
+        assertTrue(breaker.allowRequest(null));
+
+        // After the cool-down only one trial is let through, and its
+        // failure reopens the breaker.
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest("down.example.com"));
+        assertFalse(breaker.allowRequest("down.example.com"));
+        breaker.onFailure("down.example.com");
+        assertFalse(breaker.allowRequest("down.example.com"));
+
+        // A successful trial closes it.
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest("down.example.com"));
+        breaker.onSuccess("down.example.com");
+        assertEquals(CircuitBreaker.State.CLOSED,
+                     breaker.getState("down.example.com"));
+        assertTrue(breaker.allowRequest("down.example.com"));
+        System.out.println(breaker.getStats());
+    }
+
+    @Test
+    public void breaker_countsOnlyConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 100);
+
+        breaker.onFailure("flaky.example.com");
+        breaker.onFailure("flaky.example.com");
+        breaker.onSuccess("flaky.example.com");
+        breaker.onFailure("flaky.example.com");
+        breaker.onFailure("flaky.example.com");
+        assertTrue(breaker.allowRequest("flaky.example.com"));
+    }
+}
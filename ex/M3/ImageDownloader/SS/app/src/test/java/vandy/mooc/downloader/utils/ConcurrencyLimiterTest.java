@@ -0,0 +1,136 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the concurrency limit grows on a link that's limited
+ * by latency, stays low on one that's limited by bandwidth, and backs
+ * off when downloads fail.  Also checks that tryAcquire() turns
+ * callers away rather than blocking them.
+ */
+public class ConcurrencyLimiterTest {
+    private static final HttpTransport TRANSPORT =
+        new UrlConnectionTransport();
+
+    @Test
+    public void latencyBoundLink_raisesLimit() throws Exception {
+        try (TestImageServer server =
+             new TestImageServer(new byte[16 * 1024])) {
+            server.setLatency(30);
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 8);
+
+            download(server, limiter, 150);
+            assertTrue(limiter.getStats(), limiter.getLimit() >= 4);
+        }
+    }
+
+    @Test
+    public void bandwidthBoundLink_keepsLimitLow() throws Exception {
+        try (TestImageServer server =
+             new TestImageServer(new byte[64 * 1024])) {
+            server.setBandwidth(4 * 1024 * 1024);
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 8);
+            AtomicInteger decreases = new AtomicInteger();
+            limiter.setListener((oldLimit, newLimit, reason) -> {
+                    if (newLimit < oldLimit)
+                        decreases.incrementAndGet();
+                });
+
+            download(server, limiter, 150);
+            assertTrue(limiter.getStats(), limiter.getLimit() <= 3);
+            assertTrue(limiter.getStats(), decreases.get() > 0);
+        }
+    }
+
+    @Test
+    public void failures_backOffMultiplicatively() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8);
+        List<String> reasons = new ArrayList<>();
+        limiter.setListener((oldLimit, newLimit, reason) ->
+                            reasons.add(oldLimit + "->" + newLimit));
+
+        limiter.onDropped(limiter.acquire());
+        assertEquals(4, limiter.getLimit());
+        limiter.onDropped(limiter.acquire());
+        limiter.onDropped(limiter.acquire());
+        limiter.onDropped(limiter.acquire());
+        assertEquals(1, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals("[8->4, 4->2, 2->1]", reasons.toString());
+    }
+
+    @Test
+    public void tryAcquire_turnsAwayAndAnnouncesRoom() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 8);
+        AtomicInteger announcements = new AtomicInteger();
+        limiter.setOnAvailable(announcements::incrementAndGet);
+
+        long first = limiter.tryAcquire();
+        long second = limiter.tryAcquire();
+        assertNotEquals(ConcurrencyLimiter.NO_PERMIT, first);
+        assertNotEquals(ConcurrencyLimiter.NO_PERMIT, second);
+        assertEquals(ConcurrencyLimiter.NO_PERMIT, limiter.tryAcquire());
+
+        // A permit that's given back unused isn't announced.
+        limiter.cancel(second);
+        assertEquals(0, announcements.get());
+        assertEquals(1, limiter.getInFlight());
+
+        // A finished download is.
+        limiter.onIgnored(first);
+        assertEquals(1, announcements.get());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Download the image from @a server @a count times using as many
+     * threads as the @a limiter could allow, each of which waits for
+     * the limiter before downloading.
+     */
+    private static void download(TestImageServer server,
+                                 ConcurrencyLimiter limiter,
+                                 int count) throws Exception {
+        ExecutorService executor =
+            Executors.newFixedThreadPool(limiter.getMaxLimit());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String url = server.url("/image" + i + ".jpg");
+                futures.add(executor.submit(() -> {
+                        long start = limiter.acquire();
+                        limiter.onSuccess(start, readAll(url));
+                        return null;
+                    }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The number of bytes in the body at @a url.
+     */
+    private static long readAll(String url) throws Exception {
+        HttpURLConnection connection = TRANSPORT.open(url);
+        long total = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream inputStream = connection.getInputStream()) {
+            for (int count; (count = inputStream.read(buffer)) >= 0; )
+                total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,63 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that decode plans bound the peak heap used to decode large
+ * images.
+ */
+public class DecodePlanTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void largePhoto_fitsMemoryBudget() {
+        // A 12-megapixel JPEG on a device with a 64 MB memory class,
+        // which allows 16 MB per decode.
+        DecodePlan plan =
+            DecodePlan.plan(4000, 3000, true,
+                            DecodePlan.ANY_SIZE, DecodePlan.ANY_SIZE,
+                            64 * MB / 4);
+        assertEquals(48000000, plan.getFullByteCount());
+        assertTrue(plan.getByteCount() <= 16 * MB);
+
+        // RGB_565 is used before resolution is given up.
+        assertTrue(plan.useRgb565());
+        assertEquals(2, plan.getSampleSize());
+        assertEquals(2000, plan.getWidth());
+        assertEquals(1500, plan.getHeight());
+    }
+
+    @Test
+    public void targetSize_limitsSampling() {
+        DecodePlan plan =
+            DecodePlan.plan(4000, 3000, false, 1080, 720, Long.MAX_VALUE);
+
+        // 1/2 keeps both dimensions at or above the target but 1/4
+        // wouldn't.
+        assertEquals(2, plan.getSampleSize());
+        assertFalse(plan.useRgb565());
+        assertEquals(2000L * 1500 * 4, plan.getByteCount());
+    }
+
+    @Test
+    public void translucentImages_keepArgb8888() {
+        DecodePlan plan =
+            DecodePlan.plan(4000, 3000, false,
+                            DecodePlan.ANY_SIZE, DecodePlan.ANY_SIZE,
+                            16 * MB);
+        assertFalse(plan.useRgb565());
+        assertEquals(2, plan.getSampleSize());
+        assertTrue(plan.getByteCount() <= 16 * MB);
+    }
+
+    @Test
+    public void smallImages_decodeAtFullSize() {
+        DecodePlan plan =
+            DecodePlan.plan(640, 480, true, 1080, 720, 16 * MB);
+        assertEquals(1, plan.getSampleSize());
+        assertFalse(plan.useRgb565());
+        assertEquals(plan.getFullByteCount(), plan.getByteCount());
+    }
+}
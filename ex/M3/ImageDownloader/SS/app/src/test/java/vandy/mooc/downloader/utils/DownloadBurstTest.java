@@ -0,0 +1,139 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks a burst of downloads processed by one worker, as the
+ * started DownloadService does by default in its HandlerThread, and
+ * by a pool of workers, as it does if download_worker_count is larger
+ * than one.  Each request runs the steps DownloadUtils runs for an
+ * uncached image: download the body into a temporary file while
+ * hashing it, sync the file, and move it into the ImageStore.
+ */
+public class DownloadBurstTest {
+    /**
+     * Number of images in the burst.
+     */
+    private static final int BURST_SIZE = 50;
+
+    /**
+     * Latency (in milliseconds) of each response, which stands in for
+     * the round trips to a remote server.
+     */
+    private static final long LATENCY = 50;
+
+    @Test
+    public void workerPool_benchmarkBurst() throws Exception {
+        double[] imagesPerSecond = new double[3];
+        int[] workerCounts = { 1, 4, 8 };
+
+        try (TestImageServer server =
+             new TestImageServer(new byte[64 * 1024])) {
+            server.setLatency(LATENCY);
+
+            // Warm up the JIT and the server's thread pool.
+            runBurst(server, 8);
+
+            for (int i = 0; i < workerCounts.length; i++) {
+                long elapsed = runBurst(server, workerCounts[i]);
+                imagesPerSecond[i] = BURST_SIZE * 1e9 / elapsed;
+                System.out.println(String.format(Locale.US,
+                                                 "%d images with %d worker(s) "
+                                                 + "in %.1f ms, %.1f images/s",
+                                                 BURST_SIZE,
+                                                 workerCounts[i],
+                                                 elapsed / 1e6,
+                                                 imagesPerSecond[i]));
+            }
+        }
+
+        // With latency-bound downloads, a pool of four workers
+        // finishes the burst well over twice as fast as one.
+        assertTrue(imagesPerSecond[1] > 2 * imagesPerSecond[0]);
+    }
+
+    /**
+     * Download BURST_SIZE images from @a server using @a workers
+     * worker threads, each of which processes one request at a time.
+     *
+     * @return The elapsed time in nanoseconds.
+     */
+    private static long runBurst(TestImageServer server,
+                                 int workers) throws Exception {
+        HttpTransport transport = new UrlConnectionTransport();
+        GroupCommit commit = new GroupCommit();
+        File directory = makeDirectory();
+        ImageStore store = new ImageStore(directory);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < BURST_SIZE; i++) {
+                String url = server.url("/image" + i + ".jpg");
+                File temporary = new File(directory, i + ".part");
+                futures.add(executor.submit(() -> {
+                        download(transport, url, temporary, commit, store);
+                        return null;
+                    }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+            long elapsed = System.nanoTime() - start;
+
+            assertNotNull(store.getFile(server.url("/image0.jpg")));
+            return elapsed;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Download the image at @a url into @a temporary, make it durable
+     * via @a commit, and move it into @a store, as DownloadUtils'
+     * fetch and persist stages do.
+     */
+    private static void download(HttpTransport transport,
+                                 String url,
+                                 File temporary,
+                                 GroupCommit commit,
+                                 ImageStore store) throws Exception {
+        HttpURLConnection connection = transport.open(url);
+        assertEquals(200, connection.getResponseCode());
+
+        MessageDigest digest = ImageStore.newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream inputStream =
+             new DigestInputStream(connection.getInputStream(), digest);
+             FileOutputStream outputStream =
+             new FileOutputStream(temporary)) {
+            for (int count; (count = inputStream.read(buffer)) >= 0; )
+                outputStream.write(buffer, 0, count);
+        }
+
+        commit.sync(temporary);
+        store.put(url, temporary, ImageStore.toName(digest.digest()));
+    }
+
+    private static File makeDirectory() {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                                  "burst" + System.nanoTime());
+        directory.mkdirs();
+        return directory;
+    }
+}
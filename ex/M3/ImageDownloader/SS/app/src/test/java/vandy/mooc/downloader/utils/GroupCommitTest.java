@@ -0,0 +1,183 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that GroupCommit releases the syncs of a full batch together,
+ * syncs a lone file without waiting for the interval, and fails only the
+ * caller whose file couldn't be synced, and compares the throughput
+ * of writing images under each durability setting.
+ */
+public class GroupCommitTest {
+    @Test
+    public void batched_releasesFullBatchesWithoutWaiting() throws Exception {
+        GroupCommit commit =
+            new GroupCommit(GroupCommit.Durability.BATCHED, 4, 10 * 1000);
+        File directory = makeDirectory();
+
+        long start = System.nanoTime();
+        runConcurrently(8, i -> commit.sync(write(directory, i, 1000)));
+
+        // Full batches don't wait for the interval.
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(commit.getStats(),
+                   commit.getStats().contains("8 files, 8 syncs in "));
+    }
+
+    @Test
+    public void batched_syncsLoneFileRightAway() throws Exception {
+        GroupCommit commit =
+            new GroupCommit(GroupCommit.Durability.BATCHED, 8, 10 * 1000);
+        File directory = makeDirectory();
+
+        // One file after another, as from a single worker, never waits
+        // for a batch to fill.
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++)
+            commit.sync(write(directory, i, 1000));
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(elapsed < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(commit.getStats(),
+                   commit.getStats().contains("3 files, 3 syncs in 3 batches"));
+    }
+
+    @Test
+    public void batched_failsOnlyTheCallerOfTheFailedFile() throws Exception {
+        GroupCommit commit =
+            new GroupCommit(GroupCommit.Durability.BATCHED, 2, 10 * 1000);
+        File good = write(makeDirectory(), 0, 1000);
+        File bad = new File(new File(makeDirectory(), "missing"), "0");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> goodSync = executor.submit(() -> {
+                    commit.sync(good);
+                    return null;
+                });
+            Future<?> badSync = executor.submit(() -> {
+                    commit.sync(bad);
+                    return null;
+                });
+
+            goodSync.get(5, TimeUnit.SECONDS);
+            try {
+                badSync.get(5, TimeUnit.SECONDS);
+                fail("expected the sync of a missing file to fail");
+            } catch (java.util.concurrent.ExecutionException e) {
+                assertTrue(e.getCause() instanceof FileNotFoundException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void durability_benchmarkWriteSyncRename() throws Exception {
+        int images = 256;
+        int size = 64 * 1024;
+
+        // A single worker, as the service has by default, and a burst.
+        for (int threads : new int[] { 1, 8 }) {
+            for (GroupCommit.Durability durability
+                     : GroupCommit.Durability.values()) {
+                GroupCommit commit =
+                    new GroupCommit(durability,
+                                    GroupCommit.DEFAULT_BATCH_SIZE,
+                                    GroupCommit.DEFAULT_BATCH_INTERVAL);
+                File directory = makeDirectory();
+
+                long start = System.nanoTime();
+                runConcurrently(images, i -> {
+                        // Write a temporary file, make it durable, and
+                        // publish it, as DownloadUtils.persist() does.
+                        File temporary = write(directory, i, size);
+                        commit.sync(temporary);
+                        File published = new File(directory, i + ".jpg");
+                        assertTrue(temporary.renameTo(published));
+                    }, threads);
+                long elapsed = System.nanoTime() - start;
+
+                assertEquals(images, directory.list().length);
+                System.out.println(String.format(Locale.US,
+                                                 "%s: %d images of %d KB "
+                                                 + "from %d threads in %.1f ms, "
+                                                 + "%.0f images/s; %s",
+                                                 durability,
+                                                 images,
+                                                 size / 1024,
+                                                 threads,
+                                                 elapsed / 1e6,
+                                                 images * 1e9 / elapsed,
+                                                 commit.getStats()));
+            }
+        }
+    }
+
+    private interface Step {
+        void run(int i) throws Exception;
+    }
+
+    private static void runConcurrently(int count,
+                                        Step step) throws Exception {
+        runConcurrently(count, step, count);
+    }
+
+    /**
+     * Run @a step for 0 to @a count - 1 on @a threads threads and
+     * rethrow the first failure.
+     */
+    private static void runConcurrently(int count,
+                                        Step step,
+                                        int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                            step.run(index);
+                            return null;
+                        }));
+            }
+            for (Future<?> future : futures)
+                future.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static File write(File directory,
+                              int i,
+                              int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new Random(i).nextBytes(bytes);
+        File file = new File(directory, i + ".part");
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(bytes);
+        }
+        return file;
+    }
+
+    private static File makeDirectory() {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                                  "commit" + System.nanoTime());
+        directory.mkdirs();
+        return directory;
+    }
+}
@@ -0,0 +1,65 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the tail latency of requests to a server that
+ * occasionally stalls with hedging off and on, and checks that the
+ * hedges stay within their budget.
+ */
+public class HedgedRequestsTest {
+    private static final HttpTransport TRANSPORT =
+        new UrlConnectionTransport();
+
+    private static final int REQUESTS = 500;
+
+    @Test
+    public void hedging_cutsTailLatencyWithinBudget() throws Exception {
+        try (TestImageServer server = new TestImageServer(new byte[1024])) {
+            // One request in 50 stalls for 200 ms.
+            server.setStall(50, 200);
+
+            HedgedRequests off = new HedgedRequests();
+            run(server, off);
+
+            HedgedRequests on = new HedgedRequests();
+            on.setEnabled(true);
+            run(server, on);
+
+            System.out.println(off.getStats());
+            System.out.println(on.getStats());
+
+            long offP99 = off.getObservedLatency().getPercentile(99);
+            long onP99 = on.getObservedLatency().getPercentile(99);
+            assertTrue(offP99 >= 200 * 1000000L);
+            assertTrue(on.getStats(), onP99 < offP99 / 4);
+            assertTrue(on.getStats(),
+                       on.getHedgeCount()
+                       <= HedgedRequests.DEFAULT_BUDGET * REQUESTS);
+        }
+    }
+
+    /**
+     * Send REQUESTS requests to @a server one after another via
+     * @a hedging, reading each response.
+     */
+    private static void run(TestImageServer server,
+                            HedgedRequests hedging) throws Exception {
+        String url = server.url("/image.jpg");
+        byte[] buffer = new byte[4096];
+        for (int i = 0; i < REQUESTS; i++) {
+            HttpURLConnection connection =
+                hedging.execute(() -> TRANSPORT.open(url));
+            assertEquals(200, connection.getResponseCode());
+            try (InputStream inputStream = connection.getInputStream()) {
+                while (inputStream.read(buffer) >= 0)
+                    continue;
+            }
+        }
+    }
+}
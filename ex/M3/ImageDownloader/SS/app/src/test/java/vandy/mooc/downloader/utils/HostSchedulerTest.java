@@ -0,0 +1,84 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that hosts take turns, that no host exceeds its limit of
+ * downloads in flight, and that priority still comes first.
+ */
+public class HostSchedulerTest {
+    @Test
+    public void hosts_takeTurnsWithinTheirLimit() {
+        HostScheduler<String> scheduler =
+            new HostScheduler<>(2, Integer.MAX_VALUE, null);
+        for (int i = 0; i < 6; i++)
+            scheduler.offer("slow.example", "slow" + i);
+        scheduler.offer("fast.example", "fast0");
+        scheduler.offer("fast.example", "fast1");
+
+        assertEquals("slow0", scheduler.poll());
+        assertEquals("fast0", scheduler.poll());
+        assertEquals("slow1", scheduler.poll());
+        assertEquals("fast1", scheduler.poll());
+
+        // The slow host has as many downloads in flight as it may.
+        assertNull(scheduler.poll());
+        assertEquals(2, scheduler.getInFlightCount("slow.example"));
+        assertEquals(4, scheduler.getQueuedCount("slow.example"));
+
+        scheduler.onFinished("slow.example");
+        assertEquals("slow2", scheduler.poll());
+        assertNull(scheduler.poll());
+
+        scheduler.onFinished("fast.example");
+        scheduler.onFinished("fast.example");
+        assertEquals(0, scheduler.getInFlightCount("fast.example"));
+        assertEquals(3, scheduler.size());
+    }
+
+    @Test
+    public void priority_comesBeforeTurns() {
+        HostScheduler<Integer> scheduler =
+            new HostScheduler<>(4,
+                                Integer.MAX_VALUE,
+                                Comparator.naturalOrder());
+        scheduler.offer("a.example", 1);
+        scheduler.offer("a.example", 0);
+        scheduler.offer("b.example", 1);
+        scheduler.offer("c.example", 0);
+
+        assertEquals(Integer.valueOf(0), scheduler.poll());
+        assertEquals(Integer.valueOf(0), scheduler.poll());
+        assertEquals(Integer.valueOf(1), scheduler.poll());
+        assertEquals(Integer.valueOf(1), scheduler.poll());
+        assertEquals(2, scheduler.getInFlightCount("a.example"));
+    }
+
+    @Test
+    public void setMaxPerHost_changesTheLimit() {
+        HostScheduler<String> scheduler =
+            new HostScheduler<>(HostScheduler.DEFAULT_MAX_PER_HOST,
+                                Integer.MAX_VALUE,
+                                null);
+        scheduler.setMaxPerHost(1);
+        scheduler.offer("a.example", "a0");
+        scheduler.offer("a.example", "a1");
+
+        assertEquals("a0", scheduler.poll());
+        assertNull(scheduler.poll());
+
+        scheduler.setMaxPerHost(2);
+        assertEquals("a1", scheduler.poll());
+    }
+
+    @Test
+    public void hostOf_ignoresCaseAndPort() {
+        assertEquals("images.example.com",
+                     HostScheduler.hostOf("HTTP://Images.Example.com:8080/a.png"));
+        assertNull(HostScheduler.hostOf("not a url"));
+    }
+}
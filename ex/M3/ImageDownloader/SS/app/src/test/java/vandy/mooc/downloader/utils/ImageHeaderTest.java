@@ -0,0 +1,193 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that ImageHeader recognizes each supported format and finds
+ * its dimensions in the first few bytes, and that it asks for more
+ * bytes or gives up on truncated and unknown input.
+ */
+public class ImageHeaderTest {
+    @Test
+    public void jpeg_findsStartOfFrameAfterAppSegments() {
+        byte[] jpeg = bytes(0xFF, 0xD8,
+                            // APP0 (JFIF) with 14 bytes of payload.
+                            0xFF, 0xE0, 0x00, 0x10,
+                            'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0,
+                            // APP1 with 4 bytes of payload.
+                            0xFF, 0xE1, 0x00, 0x06, 1, 2, 3, 4,
+                            // Fill byte before the next marker.
+                            0xFF,
+                            // SOF2 (progressive) of 640x480.
+                            0xFF, 0xC2, 0x00, 0x11, 0x08,
+                            0x01, 0xE0, 0x02, 0x80, 0x03);
+        ImageHeader header = ImageHeader.parse(jpeg, jpeg.length);
+
+        assertEquals("image/jpeg", header.getMimeType());
+        assertEquals(640, header.getWidth());
+        assertEquals(480, header.getHeight());
+        assertFalse(header.needsMoreData(jpeg.length));
+    }
+
+    @Test
+    public void jpeg_needsMoreDataBeforeStartOfFrame() {
+        byte[] jpeg = bytes(0xFF, 0xD8, 0xFF, 0xE0, 0x00, 0x10, 'J', 'F');
+        ImageHeader header = ImageHeader.parse(jpeg, jpeg.length);
+
+        assertTrue(header.isSupported());
+        assertFalse(header.hasDimensions());
+        assertTrue(header.needsMoreData(jpeg.length));
+    }
+
+    @Test
+    public void jpeg_rejectsCorruptSegments() {
+        byte[] jpeg = bytes(0xFF, 0xD8, 0xFF, 0xE0, 0x00, 0x04, 1, 2,
+                            0x12, 0x34, 0x56, 0x78);
+        assertFalse(ImageHeader.parse(jpeg, jpeg.length).isSupported());
+    }
+
+    @Test
+    public void png_readsIhdr() {
+        byte[] png = bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A,
+                           0, 0, 0, 13, 'I', 'H', 'D', 'R',
+                           0, 0, 0x07, 0x80, 0, 0, 0x04, 0x38,
+                           8, 6, 0, 0, 0);
+        ImageHeader header = ImageHeader.parse(png, png.length);
+
+        assertEquals("image/png", header.getMimeType());
+        assertEquals(1920, header.getWidth());
+        assertEquals(1080, header.getHeight());
+
+        // The signature alone identifies the format.
+        header = ImageHeader.parse(png, 16);
+        assertEquals("image/png", header.getMimeType());
+        assertTrue(header.needsMoreData(16));
+    }
+
+    @Test
+    public void gif_readsLogicalScreen() {
+        byte[] gif = bytes('G', 'I', 'F', '8', '9', 'a',
+                           0x2C, 0x01, 0xC8, 0x00, 0, 0, 0, 0, 0, 0);
+        ImageHeader header = ImageHeader.parse(gif, gif.length);
+
+        assertEquals("image/gif", header.getMimeType());
+        assertEquals(300, header.getWidth());
+        assertEquals(200, header.getHeight());
+    }
+
+    @Test
+    public void webp_readsLossyLosslessAndExtended() {
+        // VP8: frame tag, start code, then 14-bit width and height.
+        ImageHeader lossy =
+            parseWebp("VP8 ",
+                      bytes(0x30, 0x01, 0x00, 0x9D, 0x01, 0x2A,
+                            0x20, 0x03, 0x58, 0x02));
+        assertEquals("image/webp", lossy.getMimeType());
+        assertEquals(800, lossy.getWidth());
+        assertEquals(600, lossy.getHeight());
+
+        // VP8L: signature, then 14-bit width - 1 and height - 1
+        // packed into 28 bits.
+        int width = 1000 - 1, height = 750 - 1;
+        long bits = width | (long) height << 14;
+        ImageHeader lossless =
+            parseWebp("VP8L",
+                      bytes(0x2F,
+                            (int) (bits & 0xFF),
+                            (int) (bits >> 8 & 0xFF),
+                            (int) (bits >> 16 & 0xFF),
+                            (int) (bits >> 24 & 0xFF),
+                            0, 0, 0, 0, 0));
+        assertEquals(1000, lossless.getWidth());
+        assertEquals(750, lossless.getHeight());
+
+        // VP8X: flags, then 24-bit canvas width - 1 and height - 1.
+        ImageHeader extended =
+            parseWebp("VP8X",
+                      bytes(0x10, 0, 0, 0,
+                            0x3F, 0x1F, 0x00,
+                            0xFF, 0x0F, 0x00));
+        assertEquals(8000, extended.getWidth());
+        assertEquals(4096, extended.getHeight());
+    }
+
+    @Test
+    public void bmp_readsInfoAndCoreHeaders() {
+        // BITMAPINFOHEADER of a top-down 64x-32 image.
+        byte[] info = bytes('B', 'M', 0, 0, 0, 0, 0, 0, 0, 0, 54, 0, 0, 0,
+                            40, 0, 0, 0,
+                            64, 0, 0, 0,
+                            0xE0, 0xFF, 0xFF, 0xFF);
+        ImageHeader header = ImageHeader.parse(info, info.length);
+        assertEquals("image/bmp", header.getMimeType());
+        assertEquals(64, header.getWidth());
+        assertEquals(32, header.getHeight());
+
+        // BITMAPCOREHEADER with 16-bit dimensions.
+        byte[] core = bytes('B', 'M', 0, 0, 0, 0, 0, 0, 0, 0, 26, 0, 0, 0,
+                            12, 0, 0, 0,
+                            0x10, 0x00, 0x08, 0x00,
+                            1, 0, 24, 0);
+        header = ImageHeader.parse(core, core.length);
+        assertEquals(16, header.getWidth());
+        assertEquals(8, header.getHeight());
+    }
+
+    @Test
+    public void truncatedAndUnknownInput_areHandled() {
+        // Nothing is known until the signature has arrived.
+        byte[] empty = new byte[0];
+        ImageHeader header = ImageHeader.parse(empty, 0);
+        assertFalse(header.isSupported());
+        assertTrue(header.needsMoreData(0));
+
+        // A truncated GIF is recognized but its dimensions aren't.
+        byte[] gif = bytes('G', 'I', 'F', '8', '9', 'a', 0x2C);
+        header = ImageHeader.parse(gif, gif.length);
+        assertEquals("image/gif", header.getMimeType());
+        assertFalse(header.hasDimensions());
+        assertTrue(header.needsMoreData(gif.length));
+
+        // Only the first length bytes count.
+        byte[] png = bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A);
+        assertFalse(ImageHeader.parse(png, 4).isSupported());
+
+        // HTML isn't an image, which is known once the signature
+        // length has been examined.
+        byte[] html = "<!DOCTYPE html><html>".getBytes();
+        header = ImageHeader.parse(html, html.length);
+        assertFalse(header.isSupported());
+        assertEquals(null, header.getMimeType());
+        assertTrue(header.needsMoreData(8));
+        assertFalse(header.needsMoreData(ImageHeader.SIGNATURE_LENGTH));
+    }
+
+    /**
+     * @return The header of a WebP whose first chunk is named
+     * @a chunk and starts with @a payload.
+     */
+    private static ImageHeader parseWebp(String chunk,
+                                         byte[] payload) {
+        ByteArrayOutputStream webp = new ByteArrayOutputStream();
+        webp.write('R'); webp.write('I'); webp.write('F'); webp.write('F');
+        webp.write(bytes(0, 0, 0, 0), 0, 4);
+        webp.write('W'); webp.write('E'); webp.write('B'); webp.write('P');
+        for (char c : chunk.toCharArray())
+            webp.write(c);
+        webp.write(bytes(payload.length, 0, 0, 0), 0, 4);
+        webp.write(payload, 0, payload.length);
+        byte[] data = webp.toByteArray();
+        return ImageHeader.parse(data, data.length);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte) values[i];
+        return bytes;
+    }
+}
@@ -0,0 +1,286 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the same image downloaded from different URLs is stored
+ * once, that a changed image replaces the old one, that a failed
+ * index update leaves the store as it was, that the index survives a
+ * restart, that an image stored again while it's being
+ * evicted is kept, and that images stored by earlier versions move
+ * into the sharded layout.  Also compares the latency of creating,
+ * finding, and deleting files in a flat directory and in the sharded
+ * layout as the number of files grows.
+ */
+public class ImageStoreTest {
+    @Test
+    public void duplicateImages_areStoredOnce() throws Exception {
+        File directory = makeDirectory();
+        ImageStore store = new ImageStore(directory);
+        byte[] image = randomBytes(1, 50000);
+
+        assertTrue(store.put("http://a.example.com/cat.jpg?w=1",
+                             write(directory, "part1", image),
+                             digestOf(image)));
+        assertFalse(store.put("http://cdn.example.com/cat.jpg",
+                              write(directory, "part2", image),
+                              digestOf(image)));
+
+        File stored = store.getFile("http://a.example.com/cat.jpg?w=1");
+        assertEquals(stored,
+                     store.getFile("http://cdn.example.com/cat.jpg"));
+        assertEquals(image.length, stored.length());
+        assertEquals(1, store.listFiles().size());
+        System.out.println(store.getStats());
+
+        // A restarted store finds both URLs in the index.
+        ImageStore restarted = new ImageStore(directory);
+        assertEquals(stored,
+                     restarted.getFile("http://cdn.example.com/cat.jpg"));
+    }
+
+    @Test
+    public void changedImage_deletesUnreferencedCopy() throws Exception {
+        File directory = makeDirectory();
+        ImageStore store = new ImageStore(directory);
+        byte[] oldImage = randomBytes(2, 1000);
+        byte[] newImage = randomBytes(3, 1000);
+
+        store.put("http://a.example.com/dog.jpg",
+                  write(directory, "part1", oldImage),
+                  digestOf(oldImage));
+        File oldFile = store.getFile("http://a.example.com/dog.jpg");
+        store.put("http://a.example.com/dog.jpg",
+                  write(directory, "part2", newImage),
+                  digestOf(newImage));
+
+        assertFalse(oldFile.exists());
+        assertEquals(1, store.listFiles().size());
+
+        // Evicting the image forgets its URL.
+        File newFile = store.getFile("http://a.example.com/dog.jpg");
+        assertEquals(1, store.removeObject(newFile.getName()).size());
+        assertNull(new ImageStore(directory)
+                   .getFile("http://a.example.com/dog.jpg"));
+    }
+
+    @Test
+    public void failedIndexUpdate_leavesStoreAsItWas() throws Exception {
+        File directory = makeDirectory();
+        ImageStore store = new ImageStore(directory);
+        byte[] oldImage = randomBytes(4, 1000);
+        byte[] newImage = randomBytes(5, 1000);
+
+        store.put("http://a.example.com/owl.jpg",
+                  write(directory, "part1", oldImage),
+                  digestOf(oldImage));
+        File oldFile = store.getFile("http://a.example.com/owl.jpg");
+
+        // Replace the index with a directory so it can't be appended
+        // to.
+        File index = new File(store.getIndexDirectory(), "urls");
+        assertTrue(index.delete());
+        assertTrue(index.mkdir());
+
+        try {
+            store.put("http://a.example.com/owl.jpg",
+                      write(directory, "part2", newImage),
+                      digestOf(newImage));
+            fail("expected the index update to fail");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // The URL still refers to its old image, and the new one
+        // isn't left in the store without a URL.
+        assertEquals(oldFile, store.getFile("http://a.example.com/owl.jpg"));
+        assertTrue(oldFile.exists());
+        assertFalse(store.getObjectFile(digestOf(newImage)).exists());
+        assertEquals(1, store.listFiles().size());
+    }
+
+    @Test
+    public void eviction_keepsImageStoredAgainAfterItWasChosen()
+        throws Exception {
+        File directory = makeDirectory();
+        ImageStore store = new ImageStore(directory);
+        byte[] image = randomBytes(4, 1000);
+        store.put("http://a.example.com/owl.jpg",
+                  write(directory, "part1", image),
+                  digestOf(image));
+
+        // A download finds the image already stored while it's being
+        // evicted, so it must survive.
+        store.beginEviction();
+        assertFalse(store.put("http://cdn.example.com/owl.jpg",
+                              write(directory, "part2", image),
+                              digestOf(image)));
+        assertNull(store.evictObject(digestOf(image)));
+        store.endEviction();
+        assertNotNull(store.getFile("http://cdn.example.com/owl.jpg"));
+
+        // Otherwise it's deleted and its URLs are forgotten.
+        store.beginEviction();
+        assertEquals(2, store.evictObject(digestOf(image)).size());
+        store.endEviction();
+        assertNull(store.getFile("http://a.example.com/owl.jpg"));
+        assertEquals(0, store.listFiles().size());
+    }
+
+    @Test
+    public void migrate_movesFlatImagesIntoShards() throws Exception {
+        File directory = makeDirectory();
+        byte[] image = randomBytes(4, 1000);
+        byte[] legacyImage = randomBytes(5, 1000);
+        write(directory, digestOf(image), image);
+        File legacyFile = write(directory, "legacy-cat", legacyImage);
+
+        ImageStore store = new ImageStore(directory);
+        List<File> moved = new ArrayList<>();
+        int migrated = store.migrate(new ImageStore.LegacyImages() {
+                @Override
+                public String getUrl(File file) {
+                    return file.getName().equals("legacy-cat")
+                        ? "http://a.example.com/cat.jpg"
+                        : null;
+                }
+
+                @Override
+                public void onMigrated(File file,
+                                       File object,
+                                       String url) {
+                    assertTrue(object.exists());
+                    if (url != null)
+                        assertEquals(legacyFile, file);
+                    moved.add(object);
+                }
+            });
+
+        assertEquals(2, migrated);
+        assertEquals(2, moved.size());
+        assertEquals(0, countImages(directory));
+        assertEquals(2, store.listFiles().size());
+        assertTrue(store.getObjectFile(digestOf(image)).exists());
+        assertEquals(store.getObjectFile(digestOf(legacyImage)),
+                     store.getFile("http://a.example.com/cat.jpg"));
+
+        // The migration only runs once.
+        write(directory, "legacy-cat", legacyImage);
+        assertEquals(0, new ImageStore(directory).migrate(null));
+    }
+
+    @Test
+    public void layouts_benchmarkCreateLookupDelete() throws Exception {
+        for (int size : new int[] { 1000, 10000, 40000 }) {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < size; i++)
+                names.add(digestOf(Integer.toString(i).getBytes()));
+
+            File flat = makeDirectory();
+            ImageStore sharded = new ImageStore(makeDirectory());
+            report("flat", size, benchmark(names, name -> new File(flat, name)));
+            report("sharded", size, benchmark(names, sharded::getObjectFile));
+        }
+    }
+
+    /**
+     * Create, find, and delete a file for each of @a names at the
+     * location given by @a layout.
+     *
+     * @return The average nanoseconds per create, lookup, and delete.
+     */
+    private static long[] benchmark(List<String> names,
+                                    Function<String, File> layout)
+        throws Exception {
+        long[] nanos = new long[3];
+
+        long start = System.nanoTime();
+        for (String name : names) {
+            File file = layout.apply(name);
+            File parent = file.getParentFile();
+            if (!parent.isDirectory())
+                parent.mkdirs();
+            new FileOutputStream(file).close();
+        }
+        nanos[0] = System.nanoTime() - start;
+
+        // Look the files up in a different order than they were
+        // created.
+        List<String> shuffled = new ArrayList<>(names);
+        Collections.shuffle(shuffled, new Random(6));
+        start = System.nanoTime();
+        for (String name : shuffled)
+            assertTrue(layout.apply(name).exists());
+        nanos[1] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (String name : shuffled)
+            assertTrue(layout.apply(name).delete());
+        nanos[2] = System.nanoTime() - start;
+
+        for (int i = 0; i < nanos.length; i++)
+            nanos[i] /= names.size();
+        return nanos;
+    }
+
+    private static void report(String layout,
+                               int size,
+                               long[] nanos) {
+        System.out.println(String.format(Locale.US,
+                                         "%s layout, %d files: create %.1f us, "
+                                         + "lookup %.1f us, delete %.1f us",
+                                         layout,
+                                         size,
+                                         nanos[0] / 1000.0,
+                                         nanos[1] / 1000.0,
+                                         nanos[2] / 1000.0));
+    }
+
+    private static String digestOf(byte[] image) {
+        return ImageStore.toName(ImageStore.newDigest().digest(image));
+    }
+
+    private static byte[] randomBytes(long seed,
+                                      int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static File write(File directory,
+                              String name,
+                              byte[] bytes) throws Exception {
+        File file = new File(directory, name);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(bytes);
+        }
+        return file;
+    }
+
+    private static int countImages(File directory) {
+        int count = 0;
+        for (File file : directory.listFiles())
+            if (file.isFile())
+                count++;
+        return count;
+    }
+
+    private static File makeDirectory() {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                                  "store" + System.nanoTime());
+        directory.mkdirs();
+        return directory;
+    }
+}
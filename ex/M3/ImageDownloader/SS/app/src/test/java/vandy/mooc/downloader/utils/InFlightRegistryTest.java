@@ -0,0 +1,179 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that concurrent requests for the same image share one fetch,
+ * that different variants of a URL don't, that the shared fetch is
+ * only cancelled once every caller has cancelled, and that an urgent
+ * caller raises its priority.
+ */
+public class InFlightRegistryTest {
+    @Test
+    public void concurrentRequests_shareOneFetch() throws Exception {
+        InFlightRegistry<String> registry = new InFlightRegistry<>();
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            Future<String> first = executor.submit
+                (() -> registry.execute("http://Example.com:80/a.jpg#top",
+                                        "",
+                                        DownloadOptions.PRIORITY_INTERACTIVE,
+                                        null,
+                                        flight -> {
+                                            fetches.incrementAndGet();
+                                            started.countDown();
+                                            release.await();
+                                            return "/sdcard/a.jpg";
+                                        }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            Future<String> second = executor.submit
+                (() -> registry.execute("http://example.com/a.jpg",
+                                        "",
+                                        DownloadOptions.PRIORITY_INTERACTIVE,
+                                        null,
+                                        flight -> {
+                                            fetches.incrementAndGet();
+                                            return "duplicate";
+                                        }));
+
+            // Wait until the second request has attached.
+            while (registry.getCoalescedCount() == 0)
+                Thread.sleep(1);
+            release.countDown();
+
+            assertEquals("/sdcard/a.jpg", first.get(5, TimeUnit.SECONDS));
+            assertEquals("/sdcard/a.jpg", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, fetches.get());
+            assertEquals(0, registry.getInFlightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void differentVariants_fetchSeparately() {
+        InFlightRegistry<String> registry = new InFlightRegistry<>();
+        CompletableFuture<String> original = new CompletableFuture<>();
+
+        CompletableFuture<String> first =
+            registry.executeAsync("http://example.com/a.jpg", "", 0, null,
+                                  flight -> original);
+        CompletableFuture<String> second =
+            registry.executeAsync("http://example.com/a.jpg", " jpeg 90", 0, null,
+                                  flight -> CompletableFuture
+                                  .completedFuture("/sdcard/a-90.jpg"));
+
+        assertEquals("/sdcard/a-90.jpg", second.join());
+        assertFalse(first.isDone());
+        assertEquals(0, registry.getCoalescedCount());
+        original.complete("/sdcard/a.jpg");
+        assertEquals("/sdcard/a.jpg", first.join());
+    }
+
+    @Test
+    public void sharedFetch_isCancelledOnlyOnceEveryCallerCancels() {
+        InFlightRegistry<String> registry = new InFlightRegistry<>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        TestCancellation starter = new TestCancellation();
+        TestCancellation waiter = new TestCancellation();
+
+        CompletableFuture<String> first =
+            registry.executeAsync("http://example.com/a.jpg", "", 0, starter,
+                                  flight -> {
+                                      flight.setOnCancel(() -> aborted.set(true));
+                                      return new CompletableFuture<>();
+                                  });
+        CompletableFuture<String> second =
+            registry.executeAsync("http://example.com/a.jpg", "", 0, waiter,
+                                  flight -> null);
+
+        // The caller that started the fetch stops waiting, but the
+        // other one still needs the image.
+        starter.cancel();
+        assertTrue(first.isCompletedExceptionally());
+        assertFalse(second.isDone());
+        assertFalse(aborted.get());
+
+        waiter.cancel();
+        assertTrue(second.isCompletedExceptionally());
+        assertTrue(aborted.get());
+        assertEquals(0, registry.getInFlightCount());
+    }
+
+    @Test
+    public void urgentCaller_raisesPriorityOfSharedFetch() {
+        InFlightRegistry<String> registry = new InFlightRegistry<>();
+        AtomicInteger priority = new AtomicInteger(-1);
+        CompletableFuture<String> fetch = new CompletableFuture<>();
+
+        registry.executeAsync("http://example.com/a.jpg", "",
+                              DownloadOptions.PRIORITY_BACKGROUND, null,
+                              flight -> {
+                                  flight.setOnPriorityRaised(priority::set);
+                                  return fetch;
+                              });
+        assertEquals(DownloadOptions.PRIORITY_BACKGROUND, priority.get());
+
+        registry.executeAsync("http://example.com/a.jpg", "",
+                              DownloadOptions.PRIORITY_INTERACTIVE, null,
+                              flight -> null);
+        assertEquals(DownloadOptions.PRIORITY_INTERACTIVE, priority.get());
+        fetch.complete("/sdcard/a.jpg");
+    }
+
+    @Test
+    public void normalize_mapsEquivalentUrlsTogether() {
+        assertEquals("http://example.com/",
+                     InFlightRegistry.normalize("HTTP://EXAMPLE.com"));
+        assertEquals("https://example.com/b/c.jpg?x=1",
+                     InFlightRegistry.normalize("https://example.com:443/b/./a/../c.jpg?x=1#f"));
+        assertEquals("http://example.com:8080/a.jpg",
+                     InFlightRegistry.normalize("http://example.com:8080/a.jpg"));
+    }
+
+    /**
+     * A cancellation that's triggered by calling cancel(), like a
+     * CancellationSignal.
+     */
+    private static class TestCancellation
+            implements InFlightRegistry.Cancellation {
+        private Runnable mOnCancel;
+        private boolean mCancelled;
+
+        @Override
+        public void setOnCancel(Runnable onCancel) {
+            synchronized (this) {
+                mOnCancel = onCancel;
+                if (!mCancelled || onCancel == null)
+                    return;
+            }
+            onCancel.run();
+        }
+
+        void cancel() {
+            Runnable onCancel;
+            synchronized (this) {
+                mCancelled = true;
+                onCancel = mOnCancel;
+            }
+            if (onCancel != null)
+                onCancel.run();
+        }
+    }
+}
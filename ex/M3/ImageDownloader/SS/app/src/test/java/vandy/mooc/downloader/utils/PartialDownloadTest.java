@@ -0,0 +1,165 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an interrupted download resumes with a Range request,
+ * that the journal is discarded when it can't be trusted, and that
+ * only a rejected Range request makes a download start over.
+ */
+public class PartialDownloadTest {
+    @Test
+    public void interruptedDownload_resumesAtOffset() throws Exception {
+        byte[] image = new byte[100000];
+        new Random(1).nextBytes(image);
+        File imageFile = makeImageFile();
+
+        try (TestImageServer server = new TestImageServer(image)) {
+            String url = server.url("/large.jpg");
+
+            // Download the first 30000 bytes and then "crash".
+            PartialDownload partial = PartialDownload.open(imageFile, url);
+            HttpURLConnection connection = open(url, partial);
+            assertEquals(200, connection.getResponseCode());
+            partial.start(connection, false);
+            copy(connection, partial, 30000);
+            partial.checkpoint();
+            connection.disconnect();
+
+            // A later download requests only the remaining bytes.
+            partial = PartialDownload.open(imageFile, url);
+            assertTrue(partial.isResumable());
+            assertEquals(30000, partial.getOffset());
+            long bytesBefore = server.getBodyBytes();
+            connection = open(url, partial);
+            assertEquals(206, connection.getResponseCode());
+            assertTrue(partial.isContinuation(connection));
+            partial.start(connection, true);
+            copy(connection, partial, Integer.MAX_VALUE);
+            assertEquals(image.length - 30000,
+                         server.getBodyBytes() - bytesBefore);
+
+            // The stitched file matches the original image.
+            assertTrue(partial.commit(imageFile));
+            assertArrayEquals(image, readAll(imageFile));
+            assertFalse(PartialDownload.open(imageFile, url).isResumable());
+        } finally {
+            imageFile.delete();
+        }
+    }
+
+    @Test
+    public void journalForOtherUrl_isDiscarded() throws Exception {
+        byte[] image = new byte[1000];
+        File imageFile = makeImageFile();
+
+        try (TestImageServer server = new TestImageServer(image)) {
+            PartialDownload partial =
+                PartialDownload.open(imageFile, server.url("/a.jpg"));
+            HttpURLConnection connection =
+                open(server.url("/a.jpg"), partial);
+            partial.start(connection, false);
+            copy(connection, partial, 500);
+            partial.checkpoint();
+
+            partial = PartialDownload.open(imageFile, server.url("/b.jpg"));
+            assertFalse(partial.isResumable());
+            assertEquals(0, partial.getOffset());
+        }
+    }
+
+    @Test
+    public void rejectedRange_startsOverOnlyOnce() throws Exception {
+        byte[] image = new byte[100000];
+        File imageFile = makeImageFile();
+
+        try (TestImageServer server = new TestImageServer(image)) {
+            String url = server.url("/large.jpg");
+
+            // Download the first 30000 bytes and then "crash".
+            PartialDownload partial = PartialDownload.open(imageFile, url);
+            HttpURLConnection connection = open(url, partial);
+            partial.start(connection, false);
+            copy(connection, partial, 30000);
+            partial.checkpoint();
+            connection.disconnect();
+
+            // The server now rejects every request with a 416, so the
+            // range of the resumed download is rejected...
+            server.setStatus(416);
+            partial = PartialDownload.open(imageFile, url);
+            connection = open(url, partial);
+            assertEquals(416, connection.getResponseCode());
+            assertTrue(partial.isRangeRejected(connection));
+            partial.discard();
+
+            // ...but the request that starts over has no range, so its
+            // 416 is a plain failure rather than another restart.
+            connection = open(url, partial);
+            assertEquals(416, connection.getResponseCode());
+            assertFalse(partial.isRangeRejected(connection));
+            assertFalse(partial.isContinuation(connection));
+        } finally {
+            imageFile.delete();
+        }
+    }
+
+    private static File makeImageFile() {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                                  "images" + System.nanoTime());
+        directory.mkdirs();
+        return new File(directory, "image");
+    }
+
+    private static HttpURLConnection open(String url,
+                                          PartialDownload partial)
+        throws Exception {
+        HttpURLConnection connection =
+            (HttpURLConnection) new URL(url).openConnection();
+        partial.addRangeTo(connection);
+        return connection;
+    }
+
+    /**
+     * Append up to @a limit bytes of the response to the partial file.
+     */
+    private static void copy(HttpURLConnection connection,
+                             PartialDownload partial,
+                             int limit) throws Exception {
+        byte[] buffer = new byte[4096];
+        try (InputStream inputStream = connection.getInputStream();
+             FileOutputStream outputStream =
+                 new FileOutputStream(partial.getFile(), true)) {
+            int total = 0;
+            int count;
+            while (total < limit
+                   && (count = inputStream.read
+                       (buffer, 0, Math.min(buffer.length,
+                                            limit - total))) >= 0) {
+                outputStream.write(buffer, 0, count);
+                partial.onWritten(count);
+                total += count;
+            }
+        }
+    }
+
+    private static byte[] readAll(File file) throws Exception {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length)
+                offset += inputStream.read(data, offset, data.length - offset);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,63 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a pipeline stage blocks its submitters once it's full
+ * and keeps count of the work it has done.
+ */
+public class PipelineStageTest {
+    @Test
+    public void fullStage_blocksSubmitter() throws Exception {
+        PipelineStage stage = new PipelineStage("test", 1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // One piece of work runs and two wait, which fills the stage.
+        for (int i = 0; i < 3; i++)
+            stage.submit(() -> release.await(10, TimeUnit.SECONDS));
+
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread submitter = new Thread(() -> {
+                stage.submit(() -> true);
+                submitted.countDown();
+            });
+        submitter.start();
+
+        // The fourth submit waits until the stage has room.
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, stage.getQueueDepth());
+
+        release.countDown();
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        submitter.join();
+    }
+
+    @Test
+    public void stats_countCompletedAndFailedWork() throws Exception {
+        PipelineStage stage = new PipelineStage("test", 2, 4);
+
+        CompletableFuture<Integer> ok = stage.submit(() -> 42);
+        CompletableFuture<Integer> failed = stage.submit(() -> {
+                throw new IllegalStateException("boom");
+            });
+
+        assertEquals(Integer.valueOf(42), ok.get(10, TimeUnit.SECONDS));
+        try {
+            failed.join();
+            fail("expected the failure to propagate");
+        } catch (Exception e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(1, stage.getCompletedCount());
+        assertEquals(1, stage.getFailedCount());
+        assertTrue(stage.getMaxQueueDepth() >= 1);
+        assertTrue(stage.getStats().startsWith("test: 1 completed, 1 failed"));
+    }
+}
@@ -0,0 +1,48 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which failures are retried and that the backoff is jittered
+ * within an exponentially growing, capped bound.
+ */
+public class RetryPolicyTest {
+    @Test
+    public void isTransient_retriesNetworkErrorsAndOverloadOnly() {
+        assertTrue(RetryPolicy.isTransient(503));
+        assertTrue(RetryPolicy.isTransient(429));
+        assertFalse(RetryPolicy.isTransient(404));
+        assertFalse(RetryPolicy.isTransient(403));
+
+        assertTrue(RetryPolicy.isTransient(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isTransient(new IOException("reset")));
+        assertFalse(RetryPolicy.isTransient(new FileNotFoundException()));
+        assertFalse(RetryPolicy.isTransient(new IllegalStateException()));
+    }
+
+    @Test
+    public void getDelay_growsExponentiallyWithJitterUpToCap() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+
+        for (int retry = 1; retry <= 8; retry++) {
+            long bound = Math.min(1000, 100L << (retry - 1));
+            long max = 0;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.getDelay(retry);
+                assertTrue(delay >= 0 && delay <= bound);
+                max = Math.max(max, delay);
+                min = Math.min(min, delay);
+            }
+            // The delays are spread over the whole range.
+            assertTrue(max > bound * 3 / 4);
+            assertTrue(min < bound / 4);
+        }
+    }
+}
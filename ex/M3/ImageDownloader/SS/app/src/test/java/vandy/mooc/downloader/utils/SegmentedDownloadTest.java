@@ -0,0 +1,125 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a large image downloaded over several Range requests
+ * is reassembled correctly, that a failed download reports the
+ * bytes at the start of the file a later download can keep, and that
+ * a failed probe falls back to a single connection.
+ */
+public class SegmentedDownloadTest {
+    private static final HttpTransport TRANSPORT =
+        new UrlConnectionTransport();
+
+    @Test
+    public void segments_areStitchedInPlace() throws Exception {
+        byte[] image = new byte[3 * 1024 * 1024 + 17];
+        new Random(2).nextBytes(image);
+        File file = new File(System.getProperty("java.io.tmpdir"),
+                             "segmented" + System.nanoTime());
+
+        try (TestImageServer server = new TestImageServer(image)) {
+            String url = server.url("/large.jpg");
+            SegmentedDownload.Probe probe = SegmentedDownload.probe(TRANSPORT, url);
+            assertNotNull(probe);
+            assertTrue(probe.acceptsRanges);
+            assertEquals(image.length, probe.contentLength);
+
+            int segments = SegmentedDownload.chooseSegmentCount(probe, 4);
+            assertEquals(4, segments);
+
+            AtomicLong progress = new AtomicLong();
+            SegmentedDownload.download(TRANSPORT, url, probe, segments, file,
+                                       (bytesRead, totalBytes) -> {
+                                           assertEquals(image.length, totalBytes);
+                                           progress.accumulateAndGet(bytesRead, Math::max);
+                                       });
+            assertEquals(image.length, progress.get());
+            assertEquals(image.length, server.getBodyBytes());
+            assertEquals(1 + segments, server.getRequestCount());
+            assertArrayEquals(image, readAll(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void failedSegment_reportsGaplessPrefix() throws Exception {
+        byte[] image = new byte[2 * 1024 * 1024];
+        new Random(3).nextBytes(image);
+        // The second server has lost the end of the image, so the
+        // second segment ends early.
+        byte[] truncated = Arrays.copyOf(image, 3 * 1024 * 1024 / 2);
+        File file = new File(System.getProperty("java.io.tmpdir"),
+                             "segmented" + System.nanoTime());
+
+        try (TestImageServer server = new TestImageServer(image);
+             TestImageServer broken = new TestImageServer(truncated)) {
+            SegmentedDownload.Probe probe =
+                SegmentedDownload.probe(TRANSPORT, server.url("/large.jpg"));
+
+            AtomicLong prefix = new AtomicLong(-1);
+            try {
+                SegmentedDownload.download(TRANSPORT, broken.url("/large.jpg"),
+                                           probe, 2, file, null, () -> 0,
+                                           length -> {
+                                               assertTrue(length >= prefix.get());
+                                               prefix.set(length);
+                                           });
+                fail("expected the truncated segment to fail");
+            } catch (IOException e) {
+                // Expected.
+            }
+
+            // The whole first segment and what arrived of the second
+            // can be kept.
+            assertEquals(truncated.length, prefix.get());
+            assertArrayEquals(truncated,
+                              Arrays.copyOf(readAll(file), truncated.length));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void smallImages_useOneConnection() throws Exception {
+        try (TestImageServer server = new TestImageServer(new byte[1000])) {
+            SegmentedDownload.Probe probe =
+                SegmentedDownload.probe(TRANSPORT, server.url("/small.jpg"));
+            assertEquals(1, SegmentedDownload.chooseSegmentCount(probe, 4));
+        }
+    }
+
+    @Test
+    public void failedProbe_fallsBackToOneConnection() throws Exception {
+        try (TestImageServer server =
+             new TestImageServer(new byte[4 * 1024 * 1024])) {
+            server.setDropHead(true);
+            SegmentedDownload.Probe probe =
+                SegmentedDownload.probe(TRANSPORT, server.url("/large.jpg"));
+            assertNull(probe);
+            assertEquals(1, SegmentedDownload.chooseSegmentCount(probe, 4));
+        }
+    }
+
+    private static byte[] readAll(File file) throws Exception {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length)
+                offset += inputStream.read(data, offset, data.length - offset);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,119 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the StorageManager evicts the least recently requested
+ * images in the background once the budget is exceeded, and that its
+ * index survives a restart without rescanning the directory and is
+ * loaded in the background.
+ */
+public class StorageManagerTest {
+    @Test
+    public void budget_evictsLeastRecentlyRequestedInBackground()
+        throws Exception {
+        ImageStore store = new ImageStore(makeDirectory());
+        List<File> evicted = Collections.synchronizedList(new ArrayList<>());
+        StorageManager storage =
+            new StorageManager(store,
+                               10 * 1000,
+                               (file, urls) -> evicted.add(file));
+
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            File file = putImage(store, i, 1000);
+            storage.onStored(file);
+            files.add(file);
+        }
+
+        // Requesting the oldest image again keeps it from being evicted.
+        storage.onRequested(files.get(0).getName());
+        storage.onStored(putImage(store, 10, 3000));
+
+        awaitSize(storage, 10 * 1000);
+        assertEquals(3, evicted.size());
+        assertTrue(files.get(0).exists());
+        assertFalse(files.get(1).exists());
+        assertFalse(files.get(2).exists());
+        assertFalse(files.get(3).exists());
+        assertTrue(files.get(4).exists());
+        System.out.println(storage.getStats());
+    }
+
+    @Test
+    public void index_survivesRestartWithoutRescanning() throws Exception {
+        ImageStore store = new ImageStore(makeDirectory());
+        StorageManager storage = new StorageManager(store, 1000 * 1000, null);
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            File file = putImage(store, i, 1000);
+            storage.onStored(file);
+            files.add(file);
+        }
+        storage.onRequested(files.get(0).getName());
+        storage.flush();
+
+        // A restarted manager loads the sizes and the request order
+        // from its index in the background.
+        StorageManager restarted = new StorageManager(store, 4000, null);
+        assertEquals(0, restarted.getSize());
+        restarted.flush();
+        assertEquals(5000, restarted.getSize());
+        assertTrue(restarted.getStats(),
+                   restarted.getStats().contains("1 loads/0 rebuilds"));
+        restarted.setBudget(3000);
+        awaitSize(restarted, 3000);
+        assertTrue(files.get(0).exists());
+        assertFalse(files.get(1).exists());
+        assertFalse(files.get(2).exists());
+    }
+
+    /**
+     * Wait until @a storage holds no more than @a budget bytes.
+     */
+    private static void awaitSize(StorageManager storage,
+                                  long budget) throws Exception {
+        // Apply the changes deferred until the index was loaded, since
+        // the size doesn't count them before then.
+        storage.flush();
+        for (int i = 0; i < 100 && storage.getSize() > budget; i++)
+            Thread.sleep(10);
+        storage.flush();
+        assertTrue(storage.getStats(), storage.getSize() <= budget);
+    }
+
+    /**
+     * Store an image of @a length random bytes made from @a seed.
+     *
+     * @return The file that holds it.
+     */
+    private static File putImage(ImageStore store,
+                                 long seed,
+                                 int length) throws Exception {
+        byte[] image = new byte[length];
+        new Random(seed).nextBytes(image);
+        File file = File.createTempFile("image", ".part");
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(image);
+        }
+        String digest = ImageStore.toName(ImageStore.newDigest().digest(image));
+        store.put("http://a.example.com/" + seed + ".jpg", file, digest);
+        return store.getObjectFile(digest);
+    }
+
+    private static File makeDirectory() {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                                  "storage" + System.nanoTime());
+        directory.mkdirs();
+        return directory;
+    }
+}
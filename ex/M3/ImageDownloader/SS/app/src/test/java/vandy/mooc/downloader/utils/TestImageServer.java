@@ -0,0 +1,282 @@
+package vandy.mooc.downloader.utils;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local HTTP server that stands in for a remote image server in
+ * unit tests.  It serves the same image at every path, supports
+ * conditional and Range requests, and counts the requests and
+ * connections it receives and the body bytes it sends.  It can also
+ * delay each response and share a limited bandwidth among all the
+ * bodies it sends, which simulates a slow link.
+ */
+class TestImageServer
+      implements AutoCloseable {
+    /**
+     * ETag and Last-Modified validators of the image.
+     */
+    static final String ETAG = "\"v1\"";
+    static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    static {
+        // Send small responses immediately rather than letting Nagle's
+        // algorithm delay them on reused connections.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * The underlying server, which listens on an ephemeral port.
+     */
+    private final HttpServer mServer;
+
+    /**
+     * The bytes of the image.
+     */
+    private final byte[] mImage;
+
+    /**
+     * Number of requests received and body bytes sent.
+     */
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBodyBytes = new AtomicLong();
+
+    /**
+     * Client ports seen, each of which identifies a connection.
+     */
+    private final Set<Integer> mClientPorts =
+        ConcurrentHashMap.newKeySet();
+
+    /**
+     * Delay (in milliseconds) before each response, and bandwidth
+     * (in bytes per second) of the simulated link, or 0 if unlimited.
+     */
+    private volatile long mLatencyMillis;
+    private volatile long mBandwidth;
+
+    /**
+     * Every mStallInterval-th request is delayed by mStallMillis
+     * milliseconds, or none if the interval is 0.
+     */
+    private volatile int mStallInterval;
+    private volatile long mStallMillis;
+
+    /**
+     * True if HEAD requests are answered by closing the connection.
+     */
+    private volatile boolean mDropHead;
+
+    /**
+     * Status with which every GET is answered instead of the image, or
+     * 0 to serve the image.
+     */
+    private volatile int mStatus;
+
+    /**
+     * Time (in nanoseconds) at which the simulated link finishes
+     * sending the chunks already given to it.
+     */
+    private long mLinkFreeAt;
+
+    /**
+     * Constructor starts serving @a image.
+     */
+    TestImageServer(byte[] image) throws IOException {
+        mImage = image;
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+                                    0);
+        mServer.createContext("/", this::handle);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+    }
+
+    /**
+     * @return The URL of the image at @a path.
+     */
+    String url(String path) {
+        return "http://127.0.0.1:"
+            + mServer.getAddress().getPort()
+            + path;
+    }
+
+    /**
+     * Delay each response by @a millis milliseconds.
+     */
+    void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * Delay every @a interval-th request by @a millis milliseconds,
+     * which simulates an occasional stalled server.
+     */
+    void setStall(int interval,
+                  long millis) {
+        mStallInterval = interval;
+        mStallMillis = millis;
+    }
+
+    /**
+     * Answer HEAD requests by closing the connection without a
+     * response if @a dropHead is true, like a server that rejects
+     * them.
+     */
+    void setDropHead(boolean dropHead) {
+        mDropHead = dropHead;
+    }
+
+    /**
+     * Answer every GET, with or without a Range header, with
+     * @a status and no body instead of the image, or serve the image
+     * again if it's 0.
+     */
+    void setStatus(int status) {
+        mStatus = status;
+    }
+
+    /**
+     * Share @a bytesPerSecond among all the bodies being sent, or
+     * don't limit them if it's 0.
+     */
+    void setBandwidth(long bytesPerSecond) {
+        mBandwidth = bytesPerSecond;
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    long getBodyBytes() {
+        return mBodyBytes.get();
+    }
+
+    int getConnectionCount() {
+        return mClientPorts.size();
+    }
+
+    /**
+     * Reply to a request, honoring If-None-Match, Range, and If-Range.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        int number = mRequestCount.incrementAndGet();
+        mClientPorts.add(exchange.getRemoteAddress().getPort());
+        if (mLatencyMillis > 0)
+            sleep(mLatencyMillis * 1000000);
+        if (mStallInterval > 0 && number % mStallInterval == 0)
+            sleep(mStallMillis * 1000000);
+        Headers request = exchange.getRequestHeaders();
+        Headers response = exchange.getResponseHeaders();
+        response.set("ETag", ETAG);
+        response.set("Last-Modified", LAST_MODIFIED);
+        response.set("Cache-Control", "max-age=60");
+        response.set("Accept-Ranges", "bytes");
+
+        if (ETAG.equals(request.getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        if (mStatus != 0 && "GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(mStatus, -1);
+            exchange.close();
+            return;
+        }
+
+        int start = 0;
+        int end = mImage.length - 1;
+        String range = request.getFirst("Range");
+        String ifRange = request.getFirst("If-Range");
+        boolean partial = range != null
+            && range.startsWith("bytes=")
+            && (ifRange == null || ETAG.equals(ifRange));
+
+        if (partial) {
+            String[] bounds = range.substring(6).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty())
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+            if (start > end) {
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            response.set("Content-Range",
+                         "bytes " + start + "-" + end + "/" + mImage.length);
+        }
+
+        int length = end - start + 1;
+        if ("HEAD".equals(exchange.getRequestMethod()) && mDropHead) {
+            exchange.close();
+            return;
+        } else if ("HEAD".equals(exchange.getRequestMethod())) {
+            response.set("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(partial ? 206 : 200, -1);
+            exchange.close();
+            return;
+        }
+
+        // Count the bytes before sending them so the count is
+        // up-to-date by the time the client has read them.
+        mBodyBytes.addAndGet(length);
+        exchange.sendResponseHeaders(partial ? 206 : 200, length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            if (mBandwidth == 0)
+                body.write(mImage, start, length);
+            else
+                for (int offset = start; offset <= end; offset += CHUNK_SIZE) {
+                    int count = Math.min(CHUNK_SIZE, end - offset + 1);
+                    sleep(reserveLink(count));
+                    body.write(mImage, offset, count);
+                }
+        }
+    }
+
+    /**
+     * Number of bytes sent at a time over a limited link.
+     */
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Reserve the simulated link to send @a count bytes after the
+     * chunks already given to it.
+     *
+     * @return How long (in nanoseconds) to wait until they're sent.
+     */
+    private synchronized long reserveLink(int count) {
+        long now = System.nanoTime();
+        mLinkFreeAt = Math.max(mLinkFreeAt, now)
+            + count * 1000000000L / mBandwidth;
+        return mLinkFreeAt - now;
+    }
+
+    /**
+     * Sleep for @a nanos nanoseconds.
+     */
+    private static void sleep(long nanos) throws IOException {
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Stop the server.
+     */
+    @Override
+    public void close() {
+        mServer.stop(0);
+    }
+}
@@ -0,0 +1,85 @@
+package vandy.mooc.downloader.utils;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks a batch of same-host downloads with and without
+ * connection reuse and checks that reuse avoids new connections.
+ */
+public class UrlConnectionTransportTest {
+    /**
+     * Number of images in each batch.
+     */
+    private static final int BATCH_SIZE = 200;
+
+    @Test
+    public void keepAlive_reusesConnections() throws Exception {
+        long pooledNanos;
+        long unpooledNanos;
+        int pooledConnections;
+        int unpooledConnections;
+
+        try (TestImageServer server = new TestImageServer(new byte[20000])) {
+            // Warm up the JIT and the server's thread pool.
+            fetchBatch(server, new UrlConnectionTransport());
+            int warmupConnections = server.getConnectionCount();
+
+            pooledNanos = fetchBatch(server, new UrlConnectionTransport());
+            pooledConnections =
+                server.getConnectionCount() - warmupConnections;
+        }
+
+        try (TestImageServer server = new TestImageServer(new byte[20000])) {
+            HttpTransport transport =
+                new UrlConnectionTransport
+                    (UrlConnectionTransport.DEFAULT_CONNECT_TIMEOUT,
+                     UrlConnectionTransport.DEFAULT_READ_TIMEOUT,
+                     false);
+            unpooledNanos = fetchBatch(server, transport);
+            unpooledConnections = server.getConnectionCount();
+        }
+
+        System.out.println(String.format
+                           (Locale.US,
+                            "%d images: %.3f ms/image over %d new connection(s) "
+                            + "with reuse, %.3f ms/image over %d "
+                            + "new connection(s) without",
+                            BATCH_SIZE,
+                            pooledNanos / 1e6 / BATCH_SIZE,
+                            pooledConnections,
+                            unpooledNanos / 1e6 / BATCH_SIZE,
+                            unpooledConnections));
+
+        assertTrue(pooledConnections <= 1);
+        assertEquals(BATCH_SIZE, unpooledConnections);
+    }
+
+    /**
+     * Download BATCH_SIZE images from @a server one after another.
+     *
+     * @return The elapsed time in nanoseconds.
+     */
+    private static long fetchBatch(TestImageServer server,
+                                   HttpTransport transport)
+        throws Exception {
+        byte[] buffer = new byte[8192];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            HttpURLConnection connection =
+                transport.open(server.url("/image" + i + ".jpg"));
+            assertEquals(200, connection.getResponseCode());
+            try (InputStream inputStream = connection.getInputStream()) {
+                while (inputStream.read(buffer) >= 0)
+                    continue;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}